@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.enterprise.sdk.onebox.OneBoxResults;
+import com.google.enterprise.sdk.onebox.bench.DirectoryWorkload;
+
+/**
+ * Generates employee directories of any size for the benchmarks, the same
+ * for the same size.
+ * <p>
+ * Last names are drawn from a pool that grows with the directory, so that a
+ * last name matches about {@link #ROWS_PER_NAME} entries whatever the size;
+ * first names, positions, departments and buildings from small fixed pools,
+ * whose strings are shared by the entries as a file's would be after
+ * loading.
+ */
+public class SyntheticDirectory implements DirectoryWorkload
+{
+	// Entries sharing each last name, on average
+	static final int ROWS_PER_NAME = 50;
+
+	private static final long SEED = 20061017L;
+
+	private static final String[] SYLLABLES = {
+		"an", "ber", "cal", "da", "el", "fen", "gar", "hol", "is", "jor", "ka", "lin",
+		"mor", "nor", "ol", "pet", "quin", "ros", "sa", "tor", "ul", "ven", "wal", "yo" };
+	private static final String[] FIRST_NAMES = {
+		"James", "John", "Robert", "Michael", "William", "Susan", "Richard", "Charles",
+		"Joseph", "Thomas", "Christopher", "Daniel", "Paul", "Mark", "Donald", "George",
+		"Kenneth", "Steven", "Edward", "Brian", "Ronald", "Anthony", "Kevin", "Jason",
+		"Jeff", "Jennifer", "Maria", "David", "Margaret", "Dorothy", "Linda", "Karen" };
+	private static final String[] POSITIONS = {
+		"Associate", "Sr Associate", "Jr Associate", "Manager", "Sr Manager", "Director",
+		"Developer", "Sr Developer", "Tech Lead", "Contractor", "Systems Admin" };
+	private static final String[] DEPARTMENTS = {
+		"Marketing", "Sales", "Support", "Engineering", "Operations" };
+	private static final String[] BUILDINGS = { "3214 Market St", "1900 Chestnut Ave" };
+
+	// The sample entries, read before any synthetic directory is published,
+	// so that the sample providers' users can be looked up
+	private static final List s_samples = samples();
+
+	private int m_names = 1;
+	private DirectorySnapshot m_directory;
+
+	private static List samples()
+	{
+		ArrayList samples = new ArrayList();
+		for (Iterator iter = EmployeeDirectory.current().iterator(); iter.hasNext(); )
+			samples.add(iter.next());
+		return samples;
+	}
+
+	public void publish(int rows, boolean columnar)
+	{
+		m_names = Math.max(1, rows / ROWS_PER_NAME);
+		m_directory = new DirectorySnapshot(entries(rows), ForkJoinPool.commonPool(), columnar);
+		EmployeeDirectory.publish(m_directory);
+	}
+
+	/**
+	 * @return the sample entries followed by <code>rows</code> synthetic ones
+	 */
+	List entries(int rows)
+	{
+		Random random = new Random(SEED);
+		String[] lastNames = new String[m_names];
+		for (int i = 0; i < m_names; i++)
+			lastNames[i] = lastName(i);
+		String[] offices = new String[400];
+		for (int i = 0; i < offices.length; i++)
+			offices[i] = Integer.toString(1000 + i * 7);
+
+		ArrayList entries = new ArrayList(s_samples.size() + rows);
+		entries.addAll(s_samples);
+		for (int i = 0; i < rows; i++)
+		{
+			String id = "e" + i;
+			entries.add(new EmployeeDirectory.EmployeeDirectoryEntry(id,
+					FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+					lastNames[random.nextInt(lastNames.length)],
+					"(408) " + (200 + i / 10000 % 800) + "-" + (10000 + i % 10000 + "").substring(1),
+					id + "@acme.com",
+					POSITIONS[random.nextInt(POSITIONS.length)],
+					DEPARTMENTS[random.nextInt(DEPARTMENTS.length)],
+					BUILDINGS[random.nextInt(BUILDINGS.length)],
+					offices[random.nextInt(offices.length)]));
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the last name with the given number, such as "Anber"
+	 */
+	static String lastName(int n)
+	{
+		StringBuffer name = new StringBuffer();
+		do {
+			name.append(SYLLABLES[n % SYLLABLES.length]);
+			n /= SYLLABLES.length;
+		} while (n > 0);
+		if (name.length() < 4)
+			name.append("son");
+		name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+		return name.toString();
+	}
+
+	public String[] queries(int count)
+	{
+		Random random = new Random(SEED + 1);
+		String[] queries = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			String lastName = lastName(random.nextInt(m_names));
+			String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+			switch (i % 4)
+			{
+			case 0:
+				queries[i] = lastName;
+				break;
+			case 1:
+				queries[i] = firstName + " " + lastName;
+				break;
+			case 2:
+				queries[i] = firstName;
+				break;
+			default:
+				// Swaps two letters, as a typing mistake would
+				int at = 1 + random.nextInt(lastName.length() - 2);
+				queries[i] = lastName.substring(0, at) + lastName.charAt(at + 1) +
+					lastName.charAt(at) + lastName.substring(at + 2);
+			}
+		}
+		return queries;
+	}
+
+	public int search(String query, boolean fuzzy)
+	{
+		return m_directory.search(query, OneBoxResults.MAX_RESULTS, null, fuzzy).getMatchCount();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.EventListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRegistration;
+import javax.servlet.SessionCookieConfig;
+import javax.servlet.descriptor.JspConfigDescriptor;
+
+/**
+ * The configuration of a servlet initialized outside a servlet container,
+ * with a context that only logs to standard error.
+ */
+public class BenchServletConfig implements ServletConfig
+{
+	private final String m_name;
+	private final Map m_initParameters;
+	private final ServletContext m_context = new Context();
+
+	/**
+	 * @param initParameters the init-params, names and values alternating
+	 */
+	public BenchServletConfig(String name, String[] initParameters)
+	{
+		m_name = name;
+		HashMap map = new HashMap();
+		for (int i = 0; i + 1 < initParameters.length; i += 2)
+			map.put(initParameters[i], initParameters[i + 1]);
+		m_initParameters = map;
+	}
+
+	public String getServletName() { return m_name; }
+	public ServletContext getServletContext() { return m_context; }
+	public String getInitParameter(String name) { return (String)m_initParameters.get(name); }
+	public Enumeration getInitParameterNames() { return Collections.enumeration(m_initParameters.keySet()); }
+
+	private static class Context implements ServletContext
+	{
+		private final HashMap m_attributes = new HashMap();
+
+		public void log(String msg) { System.err.println(msg); }
+		public void log(String msg, Throwable t)
+		{
+			System.err.println(msg);
+			t.printStackTrace();
+		}
+		@Deprecated public void log(Exception e, String msg) { log(msg, e); }
+
+		public Object getAttribute(String name) { return m_attributes.get(name); }
+		public Enumeration getAttributeNames() { return Collections.enumeration(m_attributes.keySet()); }
+		public void setAttribute(String name, Object value) { m_attributes.put(name, value); }
+		public void removeAttribute(String name) { m_attributes.remove(name); }
+		public String getInitParameter(String name) { return null; }
+		public Enumeration getInitParameterNames() { return Collections.enumeration(Collections.EMPTY_LIST); }
+
+		public ServletContext getContext(String uripath) { return null; }
+		public int getMajorVersion() { return 3; }
+		public int getMinorVersion() { return 0; }
+		public int getEffectiveMajorVersion() { return 3; }
+		public int getEffectiveMinorVersion() { return 0; }
+		public String getContextPath() { return "/onebox"; }
+		public ClassLoader getClassLoader() { return getClass().getClassLoader(); }
+		public String getMimeType(String file) { return null; }
+		public String getRealPath(String path) { return null; }
+		public URL getResource(String path) { return null; }
+		public InputStream getResourceAsStream(String path) { return null; }
+		public Set getResourcePaths(String path) { return null; }
+		public RequestDispatcher getRequestDispatcher(String path) { return null; }
+		public RequestDispatcher getNamedDispatcher(String name) { return null; }
+		public String getServerInfo() { return "OneBox benchmarks"; }
+		public String getServletContextName() { return "onebox"; }
+		@Deprecated public Servlet getServlet(String name) { return null; }
+		@Deprecated public Enumeration getServlets() { return Collections.enumeration(Collections.EMPTY_LIST); }
+		@Deprecated public Enumeration getServletNames() { return Collections.enumeration(Collections.EMPTY_LIST); }
+
+		// Nothing is registered at run time outside a container
+		public boolean setInitParameter(String name, String value) { return false; }
+		public ServletRegistration.Dynamic addServlet(String name, String className) { return null; }
+		public ServletRegistration.Dynamic addServlet(String name, Servlet servlet) { return null; }
+		public ServletRegistration.Dynamic addServlet(String name, Class servletClass) { return null; }
+		public Servlet createServlet(Class servletClass) { return null; }
+		public ServletRegistration getServletRegistration(String name) { return null; }
+		public Map getServletRegistrations() { return Collections.EMPTY_MAP; }
+		public FilterRegistration.Dynamic addFilter(String name, String className) { return null; }
+		public FilterRegistration.Dynamic addFilter(String name, Filter filter) { return null; }
+		public FilterRegistration.Dynamic addFilter(String name, Class filterClass) { return null; }
+		public Filter createFilter(Class filterClass) { return null; }
+		public FilterRegistration getFilterRegistration(String name) { return null; }
+		public Map getFilterRegistrations() { return Collections.EMPTY_MAP; }
+		public void addListener(String className) { }
+		public void addListener(EventListener listener) { }
+		public void addListener(Class listenerClass) { }
+		public EventListener createListener(Class listenerClass) { return null; }
+		public void declareRoles(String... roles) { }
+		public SessionCookieConfig getSessionCookieConfig() { return null; }
+		public void setSessionTrackingModes(Set modes) { }
+		public Set getDefaultSessionTrackingModes() { return Collections.EMPTY_SET; }
+		public Set getEffectiveSessionTrackingModes() { return Collections.EMPTY_SET; }
+		public JspConfigDescriptor getJspConfigDescriptor() { return null; }
+	}
+}
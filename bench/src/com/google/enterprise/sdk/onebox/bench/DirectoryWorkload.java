@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+/**
+ * A synthetic employee directory for the benchmarks to search.
+ * <p>
+ * The directory and the sample providers are in the default package, which
+ * benchmark classes can't be in, so the benchmarks reach them through this
+ * interface, implemented by the default package's
+ * <code>SyntheticDirectory</code>.
+ */
+public interface DirectoryWorkload
+{
+	/**
+	 * Builds a directory and publishes it as the current one, so that the
+	 * sample providers search it.  The users of the sample providers are
+	 * always included.
+	 *
+	 * @param rows the number of synthetic entries
+	 * @param columnar whether to keep the entries in a columnar store
+	 */
+	void publish(int rows, boolean columnar);
+
+	/**
+	 * @return queries matching entries of the published directory: last
+	 * names, full names, first names and misspelled last names
+	 */
+	String[] queries(int count);
+
+	/**
+	 * Searches the published directory as the unauthenticated sample
+	 * provider does.
+	 *
+	 * @return the number of entries matching the query
+	 */
+	int search(String query, boolean fuzzy);
+
+	/**
+	 * Loads the implementation from the default package.
+	 */
+	static final class Loader
+	{
+		private Loader() { }
+
+		public static DirectoryWorkload load()
+		{
+			try {
+				return (DirectoryWorkload)Class.forName("SyntheticDirectory")
+					.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+			} catch (Exception e) {
+				throw new IllegalStateException("SyntheticDirectory can't be loaded: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+/**
+ * A GET request from a OneBox client, held in memory so that it can be served
+ * any number of times without a servlet container.
+ * <p>
+ * Everything a provider reads is prepared when the request is built, so
+ * serving it allocates nothing on the request's side.  The request doesn't
+ * support asynchronous processing, so providers answer it before returning.
+ */
+public class InMemoryRequest implements HttpServletRequest
+{
+	private final Map m_parameters;
+	private final Cookie[] m_cookies;
+	private final HashMap m_headers = new HashMap();
+	private final HashMap m_attributes = new HashMap();
+
+	/**
+	 * @param parameters the query parameters, names and values alternating
+	 * @param cookies the cookies sent, or null for none
+	 */
+	public InMemoryRequest(String[] parameters, Cookie[] cookies)
+	{
+		HashMap map = new HashMap();
+		for (int i = 0; i + 1 < parameters.length; i += 2)
+			map.put(parameters[i], new String[] { parameters[i + 1] });
+		m_parameters = Collections.unmodifiableMap(map);
+		m_cookies = cookies;
+		m_headers.put("Host", getServerName() + ":" + getServerPort());
+		m_headers.put("User-Agent", "gsa-crawler");
+	}
+
+	public String getParameter(String name)
+	{
+		String[] values = (String[])m_parameters.get(name);
+		return (values == null) ? null : values[0];
+	}
+	public Map getParameterMap() { return m_parameters; }
+	public Enumeration getParameterNames() { return Collections.enumeration(m_parameters.keySet()); }
+	public String[] getParameterValues(String name) { return (String[])m_parameters.get(name); }
+	public Cookie[] getCookies() { return m_cookies; }
+
+	public String getScheme() { return "http"; }
+	public String getServerName() { return "onebox.acme.com"; }
+	public int getServerPort() { return 8080; }
+	public String getContextPath() { return "/onebox"; }
+	public String getServletPath() { return "/provider"; }
+	public String getPathInfo() { return null; }
+	public String getPathTranslated() { return null; }
+	public String getRequestURI() { return getContextPath() + getServletPath(); }
+	public StringBuffer getRequestURL()
+	{
+		return new StringBuffer(getScheme()).append("://").append(getServerName())
+			.append(':').append(getServerPort()).append(getRequestURI());
+	}
+	public String getQueryString()
+	{
+		StringBuffer query = new StringBuffer();
+		for (Iterator iter = m_parameters.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)iter.next();
+			if (query.length() > 0)
+				query.append('&');
+			query.append(entry.getKey()).append('=').append(((String[])entry.getValue())[0]);
+		}
+		return query.toString();
+	}
+	public String getMethod() { return "GET"; }
+	public String getProtocol() { return "HTTP/1.1"; }
+	public boolean isSecure() { return false; }
+
+	public String getHeader(String name) { return (String)m_headers.get(name); }
+	public Enumeration getHeaderNames() { return Collections.enumeration(m_headers.keySet()); }
+	public Enumeration getHeaders(String name)
+	{
+		String value = getHeader(name);
+		return Collections.enumeration((value == null)
+				? Collections.EMPTY_LIST : Collections.singletonList(value));
+	}
+	public long getDateHeader(String name) { return -1; }
+	public int getIntHeader(String name) { return -1; }
+
+	public Object getAttribute(String name) { return m_attributes.get(name); }
+	public Enumeration getAttributeNames() { return Collections.enumeration(m_attributes.keySet()); }
+	public void setAttribute(String name, Object value) { m_attributes.put(name, value); }
+	public void removeAttribute(String name) { m_attributes.remove(name); }
+
+	public String getRemoteAddr() { return "10.0.0.1"; }
+	public String getRemoteHost() { return "10.0.0.1"; }
+	public int getRemotePort() { return 40000; }
+	public String getLocalName() { return getServerName(); }
+	public String getLocalAddr() { return "10.0.0.2"; }
+	public int getLocalPort() { return getServerPort(); }
+	public String getRemoteUser() { return null; }
+	public String getAuthType() { return null; }
+	public Principal getUserPrincipal() { return null; }
+	public boolean isUserInRole(String role) { return false; }
+	public boolean authenticate(HttpServletResponse response) { return false; }
+	public void login(String userName, String password) { throw new UnsupportedOperationException(); }
+	public void logout() { }
+
+	public String getCharacterEncoding() { return null; }
+	public void setCharacterEncoding(String env) { }
+	public int getContentLength() { return -1; }
+	public String getContentType() { return null; }
+	public ServletInputStream getInputStream() { throw new UnsupportedOperationException(); }
+	public BufferedReader getReader() { throw new UnsupportedOperationException(); }
+	public Collection getParts() { return Collections.EMPTY_LIST; }
+	public Part getPart(String name) { return null; }
+	public Locale getLocale() { return Locale.US; }
+	public Enumeration getLocales() { return Collections.enumeration(Collections.singletonList(Locale.US)); }
+
+	public HttpSession getSession() { return null; }
+	public HttpSession getSession(boolean create) { return null; }
+	public String getRequestedSessionId() { return null; }
+	public boolean isRequestedSessionIdValid() { return false; }
+	public boolean isRequestedSessionIdFromCookie() { return false; }
+	public boolean isRequestedSessionIdFromURL() { return false; }
+	@Deprecated public boolean isRequestedSessionIdFromUrl() { return false; }
+	public RequestDispatcher getRequestDispatcher(String path) { return null; }
+	@Deprecated public String getRealPath(String path) { return null; }
+	public ServletContext getServletContext() { return null; }
+	public DispatcherType getDispatcherType() { return DispatcherType.REQUEST; }
+
+	public boolean isAsyncSupported() { return false; }
+	public boolean isAsyncStarted() { return false; }
+	public AsyncContext getAsyncContext() { throw new IllegalStateException(); }
+	public AsyncContext startAsync() { throw new IllegalStateException(); }
+	public AsyncContext startAsync(ServletRequest request, ServletResponse response)
+	{
+		throw new IllegalStateException();
+	}
+}
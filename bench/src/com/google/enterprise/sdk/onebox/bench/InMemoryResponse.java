@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response whose body is counted and thrown away, so that it can be reused
+ * for any number of requests without a servlet container.
+ * <p>
+ * Only the headers a provider sets are kept; call {@link #reset} before
+ * serving the next request.
+ */
+public class InMemoryResponse implements HttpServletResponse
+{
+	private final HashMap m_headers = new HashMap();
+	private String m_contentType;
+	private int m_status = SC_OK;
+	private long m_length = 0;
+	private PrintWriter m_writer;
+
+	private final ServletOutputStream m_out = new ServletOutputStream() {
+		public void write(int b) { m_length++; }
+		public void write(byte[] b, int off, int len) { m_length += len; }
+	};
+
+	/**
+	 * @return the number of bytes written to the body since the last reset
+	 */
+	public long getLength() { return m_length; }
+	public int getStatus() { return m_status; }
+	public String getContentType() { return m_contentType; }
+	public String getHeader(String name) { return (String)m_headers.get(name); }
+	public Collection getHeaders(String name)
+	{
+		String value = getHeader(name);
+		return (value == null) ? Collections.EMPTY_LIST : Collections.singletonList(value);
+	}
+	public Collection getHeaderNames() { return m_headers.keySet(); }
+
+	public ServletOutputStream getOutputStream() { return m_out; }
+	public PrintWriter getWriter() throws IOException
+	{
+		if (m_writer == null)
+			m_writer = new PrintWriter(new OutputStreamWriter(m_out, "UTF-8"));
+		return m_writer;
+	}
+	public void flushBuffer() throws IOException
+	{
+		if (m_writer != null)
+			m_writer.flush();
+	}
+	public boolean isCommitted() { return false; }
+	public void reset()
+	{
+		resetBuffer();
+		m_headers.clear();
+		m_contentType = null;
+		m_status = SC_OK;
+	}
+	public void resetBuffer()
+	{
+		if (m_writer != null)
+			m_writer.flush();
+		m_length = 0;
+	}
+	public int getBufferSize() { return 0; }
+	public void setBufferSize(int size) { }
+	public void setContentLength(int length) { }
+	public void setContentType(String type) { m_contentType = type; }
+	public String getCharacterEncoding() { return "UTF-8"; }
+	public void setCharacterEncoding(String encoding) { }
+	public Locale getLocale() { return Locale.US; }
+	public void setLocale(Locale locale) { }
+
+	public void setHeader(String name, String value) { m_headers.put(name, value); }
+	public void addHeader(String name, String value) { m_headers.put(name, value); }
+	public void setIntHeader(String name, int value) { setHeader(name, Integer.toString(value)); }
+	public void addIntHeader(String name, int value) { setHeader(name, Integer.toString(value)); }
+	public void setDateHeader(String name, long date) { setHeader(name, Long.toString(date)); }
+	public void addDateHeader(String name, long date) { setHeader(name, Long.toString(date)); }
+	public boolean containsHeader(String name) { return m_headers.containsKey(name); }
+	public void addCookie(Cookie cookie) { }
+
+	public void setStatus(int status) { m_status = status; }
+	@Deprecated public void setStatus(int status, String message) { m_status = status; }
+	public void sendError(int status) { m_status = status; }
+	public void sendError(int status, String message) { m_status = status; }
+	public void sendRedirect(String location) { m_status = SC_MOVED_TEMPORARILY; }
+
+	public String encodeURL(String url) { return url; }
+	public String encodeRedirectURL(String url) { return url; }
+	@Deprecated public String encodeUrl(String url) { return url; }
+	@Deprecated public String encodeRedirectUrl(String url) { return url; }
+}
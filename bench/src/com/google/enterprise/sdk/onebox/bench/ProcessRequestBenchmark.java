@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.enterprise.sdk.onebox.OneBoxProvider;
+
+/**
+ * Requests served end to end by the sample providers, from parsing the
+ * request to writing the response, for each authentication type.
+ * <p>
+ * The requests go through a thousand queries, sent by the sample users in
+ * turn, so that the authenticated providers search for every class of
+ * user.  Run with <code>-p cacheSize=1024</code> to have the providers
+ * cache responses and authorized searches too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProcessRequestBenchmark
+{
+	// Distinct requests each iteration goes through
+	private static final int REQUESTS = 1000;
+
+	// The users of the sample providers, one of each role
+	private static final String[] USERS = { "wbrown", "jsmith", "rmiller", "mhernandez" };
+
+	@Param({ "none", "basic", "ldap", "sso" })
+	public String authType;
+
+	@Param({ "1000", "1000000" })
+	public int rows;
+
+	@Param({ "0" })
+	public int cacheSize;
+
+	private OneBoxProvider m_provider;
+	private InMemoryRequest[] m_requests;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		DirectoryWorkload directory = DirectoryWorkload.Loader.load();
+		directory.publish(rows, false);
+		String[] queries = directory.queries(REQUESTS);
+
+		String provider = "none".equals(authType) ? "NoAuth"
+			: "basic".equals(authType) ? "BasicAuth"
+			: "ldap".equals(authType) ? "LDAPAuth" : "SSOAuth";
+		m_provider = (OneBoxProvider)Class.forName("Sample" + provider + "OneBoxProvider")
+			.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+		m_provider.init(new BenchServletConfig("bench-" + authType, new String[] {
+				"responseCacheSize", Integer.toString(cacheSize),
+				"authorizationCacheSize", Integer.toString(cacheSize) }));
+
+		m_requests = new InMemoryRequest[REQUESTS];
+		for (int i = 0; i < REQUESTS; i++)
+		{
+			String user = USERS[i % USERS.length];
+			String[] params = { "apiMaj", "1", "apiMin", "0", "oneboxName", "directory",
+					"lang", "en", "query", queries[i], "authType", authType,
+					"ipAddr", "10.0.0.1", "dateTime", "2006-10-17T12:00:00Z" };
+			Cookie[] cookies = null;
+			if ("basic".equals(authType)) {
+				params = append(params, new String[] { "userName", user, "password", user });
+			} else if ("ldap".equals(authType)) {
+				params = append(params, new String[] {
+						"userName", "uid=" + user + ",ou=people,dc=acme,dc=com" });
+			} else if ("sso".equals(authType)) {
+				params = append(params, new String[] { "userName", "ACMESSO" });
+				cookies = new Cookie[] { new Cookie("ACMESSO", user) };
+			}
+			m_requests[i] = new InMemoryRequest(params, cookies);
+		}
+	}
+
+	private static String[] append(String[] params, String[] more)
+	{
+		String[] all = new String[params.length + more.length];
+		System.arraycopy(params, 0, all, 0, params.length);
+		System.arraycopy(more, 0, all, params.length, more.length);
+		return all;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		m_provider.destroy();
+	}
+
+	@Benchmark
+	public long processRequest(QueryCursor cursor, Response response)
+		throws ServletException, IOException
+	{
+		response.reset();
+		m_provider.doGet(m_requests[cursor.next(REQUESTS)], response);
+		return response.getLength();
+	}
+
+	/**
+	 * The response each benchmark thread reuses.
+	 */
+	@State(Scope.Thread)
+	public static class Response extends InMemoryResponse
+	{
+	}
+}
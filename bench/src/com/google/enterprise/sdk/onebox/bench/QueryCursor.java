@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Each benchmark thread's position in the benchmark's list of queries, so
+ * that threads go through the queries in turn without sharing a counter.
+ */
+@State(Scope.Thread)
+public class QueryCursor
+{
+	private int m_next = 0;
+
+	/**
+	 * @return the index of the next query, going back to the first after the
+	 * last
+	 */
+	public int next(int count)
+	{
+		int next = m_next;
+		m_next = (next + 1 == count) ? 0 : next + 1;
+		return next;
+	}
+}
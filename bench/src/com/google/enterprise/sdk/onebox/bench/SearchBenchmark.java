@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searches of the directory's multi-field index, as the sample providers
+ * run them, over directories from a thousand to a million entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark
+{
+	// Distinct queries each iteration goes through
+	private static final int QUERIES = 1024;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "false", "true" })
+	public boolean fuzzy;
+
+	@Param({ "object", "columnar" })
+	public String store;
+
+	private DirectoryWorkload m_directory;
+	private String[] m_queries;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		m_directory = DirectoryWorkload.Loader.load();
+		m_directory.publish(rows, "columnar".equals(store));
+		m_queries = m_directory.queries(QUERIES);
+	}
+
+	@Benchmark
+	public int search(QueryCursor cursor)
+	{
+		return m_directory.search(m_queries[cursor.next(QUERIES)], fuzzy);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.enterprise.sdk.onebox.Field;
+import com.google.enterprise.sdk.onebox.ModuleResult;
+import com.google.enterprise.sdk.onebox.OneBoxResults;
+
+/**
+ * {@link OneBoxResults#serialize(OutputStream)} of a response holding
+ * directory entries, added either as {@link ModuleResult}s or already
+ * encoded, as the sample providers add them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark
+{
+	@Param({ "0", "1", "8" })
+	public int results;
+
+	@Param({ "fields", "encoded" })
+	public String form;
+
+	private OneBoxResults m_results;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		String link = "http://onebox.acme.com:8080/onebox/acme_directory.html";
+		m_results = new OneBoxResults();
+		m_results.setProviderText("SampleNoAuthOneBoxProvider: ACME Employee Directory");
+		m_results.setImageUrl("http://onebox.acme.com:8080/onebox/images/acme.JPG");
+		m_results.setResultsTitleLink(results, "matching results in the ACME Employee Directory", link);
+		for (int i = 0; i < results; i++)
+		{
+			ModuleResult result = new ModuleResult("Smith" + i + ", James", link);
+			result.addField(new Field("position", "Sr Associate"));
+			result.addField(new Field("department", "Marketing"));
+			result.addField(new Field("phone", "(408) 393-" + (3160 + i)));
+			result.addField(new Field("email", "jsmith" + i + "@acme.com"));
+			result.addField(new Field("building", "3214 Market St"));
+			result.addField(new Field("office", (101 + i) + "A"));
+			if ("encoded".equals(form))
+				m_results.addEncodedResult(OneBoxResults.encodeResult(result));
+			else
+				m_results.addResult(result);
+		}
+	}
+
+	@Benchmark
+	public long serialize(Sink sink) throws IOException
+	{
+		sink.m_length = 0;
+		m_results.serialize(sink);
+		return sink.m_length;
+	}
+
+	/**
+	 * Counts the bytes written to it and throws them away.
+	 */
+	@State(Scope.Thread)
+	public static class Sink extends OutputStream
+	{
+		long m_length;
+
+		public void write(int b) { m_length++; }
+		public void write(byte[] b, int off, int len) { m_length += len; }
+	}
+}
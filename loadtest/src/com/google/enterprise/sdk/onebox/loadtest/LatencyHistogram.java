@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in microseconds, precise to within 1.6% at any
+ * magnitude, from which percentiles are read.
+ * <p>
+ * Latencies under 128 microseconds are counted exactly; each doubling above
+ * that is split into 64 buckets.  Recording takes no locks, so the threads
+ * completing requests can record concurrently.
+ */
+class LatencyHistogram
+{
+	private static final int SUB_BITS = 7;
+	private static final int EXACT = 1 << SUB_BITS;
+	private static final int HALF = EXACT / 2;
+	// Latencies are capped at 2^40 microseconds, about 12 days
+	private static final int MAX_BITS = 40;
+
+	private final AtomicLongArray m_counts = new AtomicLongArray(index((1L << MAX_BITS) - 1) + 1);
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	private static int index(long micros)
+	{
+		if (micros < EXACT)
+			return (int)micros;
+		int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+		return EXACT + (shift - 1) * HALF + (int)(micros >>> shift) - HALF;
+	}
+
+	/**
+	 * @return the highest latency counted in the bucket
+	 */
+	private static long highest(int index)
+	{
+		if (index < EXACT)
+			return index;
+		int shift = (index - EXACT) / HALF + 1;
+		long sub = (index - EXACT) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	void record(long nanos)
+	{
+		long micros = Math.min(Math.max(0, nanos / 1000), (1L << MAX_BITS) - 1);
+		m_counts.incrementAndGet(index(micros));
+		m_count.incrementAndGet();
+		long max;
+		while (micros > (max = m_max.get()) && !m_max.compareAndSet(max, micros)) { }
+	}
+
+	long getCount() { return m_count.get(); }
+
+	/**
+	 * @return the highest latency, in microseconds
+	 */
+	long getMax() { return m_max.get(); }
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency, in microseconds, that the given percentage of the
+	 * recorded latencies doesn't exceed
+	 */
+	long getPercentile(double percentile)
+	{
+		long count = m_count.get();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < m_counts.length(); i++)
+		{
+			seen += m_counts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), getMax());
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.loadtest;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends a mix of OneBox requests, as the appliance would, at a fixed rate
+ * and reports the latency percentiles, optionally failing when they miss a
+ * service level objective.
+ * <p>
+ * Arguments are <code>name=value</code> pairs:
+ * <dl>
+ * <dt>war</dt><dd>the web application archive to serve in a
+ * {@link WarContainer}, <code>onebox.war</code> by default</dd>
+ * <dt>url</dt><dd>the URL of an application already running, instead</dd>
+ * <dt>mix</dt><dd>the {@link QueryMix} file,
+ * <code>loadtest/queries.txt</code> by default</dd>
+ * <dt>rate</dt><dd>requests sent per second, 100 by default</dd>
+ * <dt>warmup</dt><dd>seconds of requests sent before measuring, 10 by
+ * default</dd>
+ * <dt>duration</dt><dd>seconds of requests measured, 30 by default</dd>
+ * <dt>connections</dt><dd>requests in flight at most, 256 by default</dd>
+ * <dt>threads</dt><dd>platform threads of the embedded server, or 0, the
+ * default, for virtual threads where available</dd>
+ * <dt>slo</dt><dd>the objective, such as <code>p99:50,p99.9:200,errors:1</code>
+ * for a 99th percentile under 50 ms, a 99.9th under 200 ms and under 1% of
+ * requests failing</dd>
+ * </dl>
+ * <p>
+ * Requests are sent on schedule whether or not earlier ones have been
+ * answered, and their latency is measured from when they were due to be
+ * sent rather than from when they were.  A stall of the server therefore
+ * counts against every request that should have been sent meanwhile, as it
+ * would for the appliance's users, instead of delaying the load generator
+ * and hiding in a few slow samples: the correction for coordinated
+ * omission.  The uncorrected service time is reported too.
+ * <p>
+ * A request fails if it isn't answered with status 200 and a
+ * <code>success</code> result code.  The exit status is 1 when the
+ * objective is missed.
+ */
+public class LoadTest
+{
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	private final QueryMix m_mix;
+	private final HttpRequest[] m_requests;
+	private final HttpClient m_client;
+	private final Semaphore m_connections;
+	private final int m_maxConnections;
+
+	// Latency from when requests were due, and from when they were sent
+	private final LatencyHistogram m_latency = new LatencyHistogram();
+	private final LatencyHistogram m_serviceTime = new LatencyHistogram();
+	private final AtomicLong m_failed = new AtomicLong();
+	// Failure reason to count
+	private final ConcurrentHashMap m_failures = new ConcurrentHashMap();
+
+	LoadTest(QueryMix mix, String baseURL, int connections)
+	{
+		m_mix = mix;
+		m_maxConnections = connections;
+		m_connections = new Semaphore(connections);
+		m_client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10))
+			.executor(Executors.newFixedThreadPool(4, daemon("LoadTest")))
+			.build();
+		m_requests = new HttpRequest[mix.size()];
+		for (int i = 0; i < m_requests.length; i++)
+		{
+			HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseURL + mix.getRequest(i)))
+				.timeout(Duration.ofSeconds(30))
+				.header("User-Agent", "gsa-crawler (Enterprise; OneBox load test)");
+			if (mix.getCookie(i) != null)
+				request.header("Cookie", mix.getCookie(i));
+			m_requests[i] = request.GET().build();
+		}
+	}
+
+	private static ThreadFactory daemon(final String name)
+	{
+		final AtomicLong count = new AtomicLong();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Sends requests at the given rate, measuring those due after the
+	 * warmup, and waits for the last ones to be answered.
+	 */
+	void run(double rate, long warmupNanos, long durationNanos) throws InterruptedException
+	{
+		Random random = new Random(42);
+		long interval = (long)(1e9 / rate);
+		long start = System.nanoTime();
+		long measureFrom = start + warmupNanos;
+		long end = measureFrom + durationNanos;
+		for (long i = 0; ; i++)
+		{
+			final long due = start + i * interval;
+			if (due >= end)
+				break;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			final boolean measured = due >= measureFrom;
+			// Waiting for a connection counts towards the latency
+			m_connections.acquire();
+			final long sent = System.nanoTime();
+			m_client.sendAsync(m_requests[m_mix.pick(random)], HttpResponse.BodyHandlers.ofString())
+				.whenComplete(new BiConsumer() {
+					public void accept(Object response, Object error)
+					{
+						long now = System.nanoTime();
+						// Released once recorded, so that the report waiting
+						// for every connection includes the last requests
+						try {
+							if (!measured)
+								return;
+							m_latency.record(now - due);
+							m_serviceTime.record(now - sent);
+							String failure = check((HttpResponse)response, (Throwable)error);
+							if (failure != null)
+								fail(failure);
+						} finally {
+							m_connections.release();
+						}
+					}
+				});
+		}
+		m_connections.acquire(m_maxConnections);
+		m_connections.release(m_maxConnections);
+	}
+
+	/**
+	 * @return why the request failed, or null if it succeeded
+	 */
+	private static String check(HttpResponse response, Throwable error)
+	{
+		if (error != null)
+			return error.getClass().getName();
+		if (response.statusCode() != 200)
+			return "HTTP " + response.statusCode();
+		String body = (String)response.body();
+		int start = body.indexOf("<resultCode>");
+		int end = body.indexOf("</resultCode>");
+		if (start < 0 || end < start)
+			return "no resultCode";
+		String resultCode = body.substring(start + 12, end);
+		return resultCode.equals("success") ? null : resultCode;
+	}
+
+	private void fail(String reason)
+	{
+		m_failed.incrementAndGet();
+		AtomicLong count = (AtomicLong)m_failures.get(reason);
+		if (count == null) {
+			m_failures.putIfAbsent(reason, new AtomicLong());
+			count = (AtomicLong)m_failures.get(reason);
+		}
+		count.incrementAndGet();
+	}
+
+	void report(PrintStream out, double rate, long durationNanos)
+	{
+		long count = m_latency.getCount();
+		out.println("Requests: " + count + " in " + durationNanos / 1000000000.0 + " s at " +
+				rate + "/s, " + m_failed.get() + " failed (" + format(percent(m_failed.get(), count)) + "%)");
+		for (Iterator iter = new TreeMap(m_failures).entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)iter.next();
+			out.println("  " + entry.getKey() + ": " + entry.getValue());
+		}
+		out.println("Latency from when requests were due, corrected for coordinated omission:");
+		out.println("  " + percentiles(m_latency));
+		out.println("Service time from when requests were sent:");
+		out.println("  " + percentiles(m_serviceTime));
+	}
+
+	private static String percentiles(LatencyHistogram histogram)
+	{
+		StringBuffer line = new StringBuffer();
+		for (int i = 0; i < PERCENTILES.length; i++)
+		{
+			line.append('p').append(format(PERCENTILES[i])).append(' ');
+			line.append(millis(histogram.getPercentile(PERCENTILES[i]))).append(" ms  ");
+		}
+		return line.append("max ").append(millis(histogram.getMax())).append(" ms").toString();
+	}
+
+	/**
+	 * Checks the results against an objective such as
+	 * <code>p99:50,p99.9:200,errors:1</code>.
+	 *
+	 * @return whether every part of the objective is met
+	 */
+	boolean checkObjective(PrintStream out, String slo)
+	{
+		boolean met = true;
+		StringTokenizer parts = new StringTokenizer(slo, ",");
+		while (parts.hasMoreTokens())
+		{
+			String part = parts.nextToken().trim();
+			int colon = part.indexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("Objective without a limit: " + part);
+			String name = part.substring(0, colon).trim();
+			double limit = Double.parseDouble(part.substring(colon + 1).trim());
+			String actual;
+			boolean ok;
+			if (name.equals("errors")) {
+				double errors = percent(m_failed.get(), m_latency.getCount());
+				ok = errors <= limit;
+				actual = format(errors) + "% of requests failed, at most " + format(limit) + "%";
+			} else if (name.startsWith("p")) {
+				double percentile = Double.parseDouble(name.substring(1));
+				long micros = m_latency.getPercentile(percentile);
+				ok = micros <= limit * 1000;
+				actual = name + " " + millis(micros) + " ms, at most " + format(limit) + " ms";
+			} else {
+				throw new IllegalArgumentException("Unknown objective: " + name);
+			}
+			out.println((ok ? "Met:    " : "Missed: ") + actual);
+			met &= ok;
+		}
+		return met;
+	}
+
+	private static double percent(long part, long total)
+	{
+		return (total == 0) ? 0 : 100.0 * part / total;
+	}
+
+	private static String millis(long micros)
+	{
+		return format(micros / 1000.0);
+	}
+
+	private static String format(double value)
+	{
+		String s = Double.toString(Math.round(value * 1000) / 1000.0);
+		return s.endsWith(".0") ? s.substring(0, s.length() - 2) : s;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		HashMap options = new HashMap();
+		options.put("war", "onebox.war");
+		options.put("context", "/onebox");
+		options.put("mix", "loadtest/queries.txt");
+		options.put("rate", "100");
+		options.put("warmup", "10");
+		options.put("duration", "30");
+		options.put("connections", "256");
+		options.put("threads", "0");
+		options.put("slo", "");
+		for (int i = 0; i < args.length; i++)
+		{
+			int eq = args[i].indexOf('=');
+			if (eq < 0 || !options.containsKey(args[i].substring(0, eq)) && !args[i].startsWith("url=")) {
+				System.err.println("Usage: LoadTest [war=onebox.war | url=http://host:port/onebox/] " +
+						"[mix=loadtest/queries.txt] [rate=100] [warmup=10] [duration=30] " +
+						"[connections=256] [threads=0] [slo=p99:50,p99.9:200,errors:1]");
+				System.exit(2);
+			}
+			options.put(args[i].substring(0, eq), args[i].substring(eq + 1).trim());
+		}
+
+		QueryMix mix = QueryMix.read(new File((String)options.get("mix")));
+		String url = (String)options.get("url");
+		WarContainer container = null;
+		if (url == null || url.length() == 0) {
+			long started = System.nanoTime();
+			container = new WarContainer(new File((String)options.get("war")), (String)options.get("context"));
+			container.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+					Integer.parseInt((String)options.get("threads")));
+			url = container.getURL();
+			System.out.println("Serving " + options.get("war") + " at " + url + ", started in " +
+					(System.nanoTime() - started) / 1000000 + " ms");
+		}
+		if (!url.endsWith("/"))
+			url += "/";
+
+		double rate = Double.parseDouble((String)options.get("rate"));
+		long warmup = TimeUnit.MILLISECONDS.toNanos((long)(Double.parseDouble((String)options.get("warmup")) * 1000));
+		long duration = TimeUnit.MILLISECONDS.toNanos((long)(Double.parseDouble((String)options.get("duration")) * 1000));
+		LoadTest test = new LoadTest(mix, url, Integer.parseInt((String)options.get("connections")));
+		boolean met;
+		try {
+			test.run(rate, warmup, duration);
+			test.report(System.out, rate, duration);
+			String slo = (String)options.get("slo");
+			met = slo.length() == 0 || test.checkObjective(System.out, slo);
+		} finally {
+			if (container != null)
+				container.stop();
+		}
+		System.exit(met ? 0 : 1);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * The requests of a load test and how often each is sent, read from a file
+ * with one request per line:
+ * <pre>
+ * # weight  path?parameters  [cookie]
+ * 40  SampleNoAuthOneBoxProvider?apiMaj=1&amp;apiMin=0&amp;authType=none&amp;query=smith&amp;p0=smith
+ * 5   SampleSSOAuthOneBoxProvider?apiMaj=1&amp;apiMin=0&amp;authType=sso&amp;userName=ACMESSO&amp;query=smith  ACMESSO=jsmith
+ * </pre>
+ * Paths are relative to the web application, parameters already URL
+ * encoded.  A request is picked in proportion to its weight; blank lines and
+ * lines starting with <code>#</code> are ignored.
+ */
+class QueryMix
+{
+	private final String[] m_requests;
+	private final String[] m_cookies;
+	// Running totals of the weights
+	private final long[] m_weights;
+
+	private QueryMix(ArrayList requests, ArrayList cookies, ArrayList weights)
+	{
+		m_requests = (String[])requests.toArray(new String[requests.size()]);
+		m_cookies = (String[])cookies.toArray(new String[cookies.size()]);
+		m_weights = new long[weights.size()];
+		long total = 0;
+		for (int i = 0; i < m_weights.length; i++)
+		{
+			total += ((Long)weights.get(i)).longValue();
+			m_weights[i] = total;
+		}
+	}
+
+	static QueryMix read(File file) throws IOException
+	{
+		ArrayList requests = new ArrayList();
+		ArrayList cookies = new ArrayList();
+		ArrayList weights = new ArrayList();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			for (int number = 1; (line = in.readLine()) != null; number++)
+			{
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				StringTokenizer columns = new StringTokenizer(line);
+				if (columns.countTokens() < 2 || columns.countTokens() > 3)
+					throw new IOException(file + ":" + number + ": expected weight, request and optional cookie");
+				long weight;
+				try {
+					weight = Long.parseLong(columns.nextToken());
+				} catch (NumberFormatException e) {
+					throw new IOException(file + ":" + number + ": the weight is not a number");
+				}
+				if (weight <= 0)
+					continue;
+				String request = columns.nextToken();
+				requests.add(request.startsWith("/") ? request.substring(1) : request);
+				cookies.add(columns.hasMoreTokens() ? columns.nextToken() : null);
+				weights.add(Long.valueOf(weight));
+			}
+		} finally {
+			in.close();
+		}
+		if (requests.isEmpty())
+			throw new IOException(file + " holds no requests");
+		return new QueryMix(requests, cookies, weights);
+	}
+
+	int size() { return m_requests.length; }
+
+	/**
+	 * @return the path and query string of a request, relative to the web
+	 * application
+	 */
+	String getRequest(int i) { return m_requests[i]; }
+
+	/**
+	 * @return the cookie sent with a request, as <code>name=value</code>, or
+	 * null
+	 */
+	String getCookie(int i) { return m_cookies[i]; }
+
+	/**
+	 * @return the index of a request picked in proportion to its weight
+	 */
+	int pick(Random random)
+	{
+		long n = (long)(random.nextDouble() * m_weights[m_weights.length - 1]);
+		int low = 0;
+		int high = m_weights.length - 1;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (m_weights[mid] > n)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.enterprise.sdk.onebox.StandaloneServer;
+
+/**
+ * Runs a web application archive in a {@link StandaloneServer}, for load
+ * tests that need no servlet container installed.
+ * <p>
+ * The archive is unpacked to a temporary directory, deleted when the
+ * container stops, and its classes loaded from <code>WEB-INF</code> rather
+ * than from the load test's class path.
+ */
+public class WarContainer
+{
+	private final File m_root;
+	private final StandaloneServer m_server;
+
+	/**
+	 * Unpacks an archive and reads its <code>web.xml</code>.
+	 *
+	 * @param contextPath the path the application is served under, such as
+	 * <code>/onebox</code>
+	 */
+	public WarContainer(File war, String contextPath) throws IOException
+	{
+		m_root = Files.createTempDirectory("onebox").toFile();
+		try {
+			unpack(war, m_root);
+			m_server = new StandaloneServer(m_root, contextPath);
+		} catch (IOException e) {
+			delete(m_root);
+			throw e;
+		}
+	}
+
+	private static void unpack(File war, File root) throws IOException
+	{
+		String rootPath = root.getCanonicalPath() + File.separator;
+		ZipFile zip = new ZipFile(war);
+		try {
+			for (Enumeration entries = zip.entries(); entries.hasMoreElements(); )
+			{
+				ZipEntry entry = (ZipEntry)entries.nextElement();
+				File file = new File(root, entry.getName());
+				if (!file.getCanonicalPath().startsWith(rootPath))
+					throw new IOException("Entry outside the archive: " + entry.getName());
+				if (entry.isDirectory()) {
+					file.mkdirs();
+					continue;
+				}
+				file.getParentFile().mkdirs();
+				InputStream in = zip.getInputStream(entry);
+				OutputStream out = new FileOutputStream(file);
+				try {
+					byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0)
+						out.write(buf, 0, n);
+				} finally {
+					out.close();
+					in.close();
+				}
+			}
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Starts the application's listeners and servlets, then serves requests.
+	 *
+	 * @param address the address to listen on, port 0 for any free one
+	 * @param threads the number of platform threads serving requests, or 0
+	 * to use virtual threads where available
+	 */
+	public void start(InetSocketAddress address, int threads) throws IOException
+	{
+		m_server.start(address, threads);
+	}
+
+	/**
+	 * @return the URL of the application on the loopback interface, ending
+	 * in a slash
+	 */
+	public String getURL() { return m_server.getURL(); }
+
+	/**
+	 * Stops the application and deletes the unpacked archive.
+	 */
+	public void stop()
+	{
+		m_server.stop();
+		delete(m_root);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.enterprise.sdk.onebox.ExpiringLruCache;
+
+/**
+ * Caches directory searches per authorization equivalence class.
+ * <p>
+ * The authenticated providers let every user of the same class (all admins,
+ * say, or everybody in the Sales department) view the same directory
+ * records, with the exception of the user's own record.  Caching results per
+ * user would rarely hit, so the search is cached per class and query instead,
+ * and the user's own record is then added to the cached hits if it matches.
+ */
+public class AuthorizationClassCache {
+
+	/**
+	 * Class filter for users who may view every record.
+	 */
+	public static final DirectorySearchIndex.Filter ALL = new DirectorySearchIndex.Filter() {
+		public boolean accept(EmployeeDirectory.EmployeeDirectoryEntry emp) { return true; }
+	};
+	/**
+	 * Class filter for users who may view no record other than their own.
+	 */
+	public static final DirectorySearchIndex.Filter NONE = new DirectorySearchIndex.Filter() {
+		public boolean accept(EmployeeDirectory.EmployeeDirectoryEntry emp) { return false; }
+	};
+	/**
+	 * @return a class filter for users who may view the records of a department
+	 */
+	public static DirectorySearchIndex.Filter department(final String department)
+	{
+		return new DirectorySearchIndex.Filter() {
+			public boolean accept(EmployeeDirectory.EmployeeDirectoryEntry emp)
+			{
+				return department.equals(emp.getDepartment());
+			}
+		};
+	}
+
+	// null when caching is disabled
+	private final ExpiringLruCache m_cache;
+
+	/**
+	 * @param maxEntries the maximum number of searches to cache, 0 to disable
+	 * caching
+	 * @param ttlMillis how long a cached search is used
+	 */
+	public AuthorizationClassCache(int maxEntries, long ttlMillis)
+	{
+		m_cache = (maxEntries > 0 && ttlMillis > 0)
+			? new ExpiringLruCache(maxEntries, ttlMillis)
+			: null;
+	}
+
+	/**
+	 * Searches the directory for the records a user may view.
+	 *
+	 * @param directory the version of the directory to search; searches of
+	 * earlier versions are never returned
+	 * @param authClass identifies the user's authorization class; users of the
+	 * same class must be authorized by equivalent filters
+	 * @param classFilter accepts the records the user's class may view
+	 * @param user the requesting user's own record, which the user may view
+	 * even if the class filter rejects it
+	 * @param query the end user's query
+	 * @param maxHits the maximum number of records to return
+	 * @param fuzzy whether to also match misspelled names
+	 */
+	public DirectorySearchIndex.Hits search(DirectorySnapshot directory, String authClass,
+			DirectorySearchIndex.Filter classFilter, EmployeeDirectory.EmployeeDirectoryEntry user,
+			String query, int maxHits, boolean fuzzy)
+	{
+		return search(directory, authClass, classFilter, user, query, maxHits, fuzzy, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Searches the directory like
+	 * {@link #search(DirectorySnapshot, String, DirectorySearchIndex.Filter, EmployeeDirectory.EmployeeDirectoryEntry, String, int, boolean)},
+	 * returning the records found so far once the deadline has passed.  A
+	 * search cut short is not cached.
+	 *
+	 * @param deadline the time, in milliseconds as returned by
+	 * <code>System.currentTimeMillis()</code>, by which the search should
+	 * end, or <code>Long.MAX_VALUE</code>
+	 */
+	public DirectorySearchIndex.Hits search(DirectorySnapshot directory, String authClass,
+			DirectorySearchIndex.Filter classFilter, EmployeeDirectory.EmployeeDirectoryEntry user,
+			String query, int maxHits, boolean fuzzy, long deadline)
+	{
+		String key = null;
+		DirectorySearchIndex.Hits hits = null;
+		if (m_cache != null) {
+			key = cacheKey(directory, authClass, query, maxHits, fuzzy);
+			hits = (DirectorySearchIndex.Hits)m_cache.get(key);
+		}
+		if (hits == null) {
+			hits = directory.search(query, maxHits, classFilter, fuzzy, deadline);
+			if (m_cache != null && hits.isComplete())
+				m_cache.put(key, hits);
+		}
+		if (!classFilter.accept(user)) {
+			hits = directory.include(hits, user.getId(), query, maxHits, fuzzy);
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the cache of searches, or null when caching is disabled
+	 */
+	public ExpiringLruCache getCache()
+	{
+		return m_cache;
+	}
+
+	/**
+	 * Discards all cached searches.
+	 */
+	public void clear()
+	{
+		if (m_cache != null)
+			m_cache.clear();
+	}
+
+	// Queries with the same terms search the same way, so key on the terms.
+	// The generation keeps searches of a replaced directory from being used.
+	private static String cacheKey(DirectorySnapshot directory, String authClass,
+			String query, int maxHits, boolean fuzzy)
+	{
+		StringBuffer key = new StringBuffer(64);
+		key.append(directory.getGeneration()).append('\n').append(authClass).append('\n').append(maxHits).append(fuzzy ? "~" : "=");
+		String[] terms = DirectorySearchIndex.tokenize(query);
+		for (int i = 0; i < terms.length; i++) {
+			key.append('\n').append(terms[i]);
+		}
+		return key.toString();
+	}
+}
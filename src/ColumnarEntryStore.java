@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Stores the entries column by column instead of as objects, for directories
+ * too large to keep nine Strings per person on the heap.
+ * <p>
+ * Each field is a column holding the value of every row.  A column whose
+ * values repeat a lot, like the department, building or position, is
+ * dictionary encoded: it keeps every distinct value once and one to three
+ * bytes per row referring to it.  Other columns keep their values as UTF-8
+ * in a single byte array, with the offset of each row's value.  The encoding
+ * of each column is chosen by size when the store is built.  Phone numbers
+ * and email addresses are split so that their shared parts, the prefix and
+ * the domain, are encoded apart from the rest.
+ * <p>
+ * {@link #get get()} returns a view that decodes fields as they are read, so
+ * an entry should be read where it is needed rather than kept.  The columns
+ * are kept in NIO buffers, so that a store can also be read straight from a
+ * memory-mapped {@link DirectoryIndexFile}.  Null values
+ * are stored as empty strings.  Ids are found through an open addressing
+ * table of rows, and last names through the rows sorted by normalized last
+ * name.
+ */
+public class ColumnarEntryStore implements EntryStore {
+
+	private static final int ID = 0;
+	private static final int FIRST_NAME = 1;
+	private static final int LAST_NAME = 2;
+	private static final int PHONE_PREFIX = 3;
+	private static final int PHONE_SUFFIX = 4;
+	private static final int EMAIL_LOCAL_PART = 5;
+	private static final int EMAIL_DOMAIN = 6;
+	private static final int POSITION = 7;
+	private static final int DEPARTMENT = 8;
+	private static final int BUILDING = 9;
+	private static final int OFFICE = 10;
+	static final int COLUMNS = 11;
+
+	// Trailing characters of a phone number kept apart from its prefix
+	private static final int PHONE_SUFFIX_LENGTH = 4;
+
+	private final int m_size;
+	private final Column[] m_columns;
+	// Open addressing table of row + 1 by id hash, 0 marking an empty slot
+	private final IntBuffer m_idTable;
+	// Rows in order of normalized last name, then row
+	private final IntBuffer m_byLastName;
+
+	/**
+	 * Encodes the given entries, building the columns and lookup tables in
+	 * parallel on the given pool.
+	 *
+	 * @param pool the pool to build on, or null to build on the calling thread
+	 */
+	public ColumnarEntryStore(final EmployeeDirectory.EmployeeDirectoryEntry[] entries,
+			ForkJoinPool pool)
+	{
+		m_size = entries.length;
+		final RecursiveTask[] tasks = new RecursiveTask[COLUMNS + 2];
+		for (int c = 0; c < COLUMNS; c++) {
+			tasks[c] = new EncodeTask(entries, c);
+		}
+		tasks[COLUMNS] = new RecursiveTask() {
+			protected Object compute() { return buildIdTable(entries); }
+		};
+		tasks[COLUMNS + 1] = new RecursiveTask() {
+			protected Object compute() { return sortByLastName(entries); }
+		};
+		if (pool != null) {
+			pool.invoke(new RecursiveAction() {
+				protected void compute() { invokeAll(tasks); }
+			});
+		} else {
+			for (int i = 0; i < tasks.length; i++) {
+				tasks[i].invoke();
+			}
+		}
+		m_columns = new Column[COLUMNS];
+		for (int c = 0; c < COLUMNS; c++) {
+			m_columns[c] = (Column)tasks[c].join();
+		}
+		m_idTable = IntBuffer.wrap((int[])tasks[COLUMNS].join());
+		m_byLastName = IntBuffer.wrap((int[])tasks[COLUMNS + 1].join());
+	}
+
+	/**
+	 * Creates a store over columns and tables that were encoded before, as
+	 * read from a {@link DirectoryIndexFile}.
+	 */
+	ColumnarEntryStore(int size, Column[] columns, IntBuffer idTable, IntBuffer byLastName)
+	{
+		if (columns.length != COLUMNS || !(columns[ID] instanceof PackedColumn))
+			throw new IllegalArgumentException("unexpected columns");
+		m_size = size;
+		m_columns = columns;
+		m_idTable = idTable;
+		m_byLastName = byLastName;
+	}
+
+	Column column(int c)
+	{
+		return m_columns[c];
+	}
+
+	IntBuffer idTable()
+	{
+		return m_idTable.duplicate();
+	}
+
+	IntBuffer byLastName()
+	{
+		return m_byLastName.duplicate();
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	public EmployeeDirectory.EmployeeDirectoryEntry get(int row)
+	{
+		if (row < 0 || row >= m_size)
+			throw new IndexOutOfBoundsException("row " + row);
+		return new Entry(row);
+	}
+
+	public int find(String id)
+	{
+		if (id == null)
+			return -1;
+		byte[] utf8 = id.getBytes(StandardCharsets.UTF_8);
+		PackedColumn ids = (PackedColumn)m_columns[ID];
+		int mask = m_idTable.limit() - 1;
+		for (int slot = spread(id.hashCode()) & mask; m_idTable.get(slot) != 0; slot = (slot + 1) & mask)
+		{
+			int row = m_idTable.get(slot) - 1;
+			if (ids.matches(row, utf8))
+				return row;
+		}
+		return -1;
+	}
+
+	public List findByLastName(String name)
+	{
+		// Binary search for the first row with the name
+		int lo = 0;
+		int hi = m_size;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (lastNameKey(m_byLastName.get(mid)).compareTo(name) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		int end = lo;
+		while (end < m_size && lastNameKey(m_byLastName.get(end)).equals(name))
+			end++;
+		final int from = lo;
+		final int count = end - lo;
+		return new AbstractList() {
+			public Object get(int i)
+			{
+				if (i < 0 || i >= count)
+					throw new IndexOutOfBoundsException("index " + i);
+				return ColumnarEntryStore.this.get(m_byLastName.get(from + i));
+			}
+			public int size() { return count; }
+		};
+	}
+
+	private String lastNameKey(int row)
+	{
+		return EmployeeDirectory.normalize(m_columns[LAST_NAME].get(row));
+	}
+
+	/**
+	 * View of a row, decoding each field when it is read.
+	 */
+	private class Entry extends EmployeeDirectory.EmployeeDirectoryEntry
+	{
+		private final int m_row;
+
+		Entry(int row) { m_row = row; }
+
+		public String getId() { return m_columns[ID].get(m_row); }
+		public String getFirstName() { return m_columns[FIRST_NAME].get(m_row); }
+		public String getLastName() { return m_columns[LAST_NAME].get(m_row); }
+		public String getPhone()
+		{
+			return m_columns[PHONE_PREFIX].get(m_row).concat(m_columns[PHONE_SUFFIX].get(m_row));
+		}
+		public String getEmail()
+		{
+			return m_columns[EMAIL_LOCAL_PART].get(m_row).concat(m_columns[EMAIL_DOMAIN].get(m_row));
+		}
+		public String getPosition() { return m_columns[POSITION].get(m_row); }
+		public String getDepartment() { return m_columns[DEPARTMENT].get(m_row); }
+		public String getBuilding() { return m_columns[BUILDING].get(m_row); }
+		public String getOffice() { return m_columns[OFFICE].get(m_row); }
+	}
+
+	/**
+	 * @return the value an entry stores in a column
+	 */
+	private static String value(EmployeeDirectory.EmployeeDirectoryEntry emp, int column)
+	{
+		switch (column)
+		{
+		case ID: return nonNull(emp.getId());
+		case FIRST_NAME: return nonNull(emp.getFirstName());
+		case LAST_NAME: return nonNull(emp.getLastName());
+		case PHONE_PREFIX:
+		case PHONE_SUFFIX:
+		{
+			String phone = nonNull(emp.getPhone());
+			int split = Math.max(0, phone.length() - PHONE_SUFFIX_LENGTH);
+			return (column == PHONE_PREFIX) ? phone.substring(0, split) : phone.substring(split);
+		}
+		case EMAIL_LOCAL_PART:
+		case EMAIL_DOMAIN:
+		{
+			String email = nonNull(emp.getEmail());
+			int at = email.lastIndexOf('@');
+			if (at < 0)
+				at = email.length();
+			return (column == EMAIL_LOCAL_PART) ? email.substring(0, at) : email.substring(at);
+		}
+		case POSITION: return nonNull(emp.getPosition());
+		case DEPARTMENT: return nonNull(emp.getDepartment());
+		case BUILDING: return nonNull(emp.getBuilding());
+		case OFFICE: return nonNull(emp.getOffice());
+		default: throw new IllegalArgumentException("column " + column);
+		}
+	}
+
+	private static String nonNull(String s)
+	{
+		return (s == null) ? "" : s;
+	}
+
+	// Spreads the high bits of a hash code into the low bits used as a slot
+	private static int spread(int h)
+	{
+		return h ^ (h >>> 16);
+	}
+
+	static int[] buildIdTable(EmployeeDirectory.EmployeeDirectoryEntry[] entries)
+	{
+		// At most half full, so that probe sequences stay short
+		int capacity = Integer.highestOneBit(Math.max(entries.length, 1)) * 4;
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		for (int row = 0; row < entries.length; row++)
+		{
+			int slot = spread(nonNull(entries[row].getId()).hashCode()) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = row + 1;
+		}
+		return table;
+	}
+
+	static int[] sortByLastName(EmployeeDirectory.EmployeeDirectoryEntry[] entries)
+	{
+		final String[] keys = new String[entries.length];
+		Integer[] rows = new Integer[entries.length];
+		for (int row = 0; row < entries.length; row++)
+		{
+			keys[row] = EmployeeDirectory.normalize(nonNull(entries[row].getLastName()));
+			rows[row] = Integer.valueOf(row);
+		}
+		// The sort is stable, so rows with the same name stay in row order
+		Arrays.sort(rows, new Comparator() {
+			public int compare(Object o1, Object o2)
+			{
+				return keys[((Integer)o1).intValue()].compareTo(keys[((Integer)o2).intValue()]);
+			}
+		});
+		int[] sorted = new int[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			sorted[i] = rows[i].intValue();
+		}
+		return sorted;
+	}
+
+	// Encodes one column of the entries
+	private static class EncodeTask extends RecursiveTask
+	{
+		private final EmployeeDirectory.EmployeeDirectoryEntry[] m_entries;
+		private final int m_column;
+
+		EncodeTask(EmployeeDirectory.EmployeeDirectoryEntry[] entries, int column)
+		{
+			m_entries = entries;
+			m_column = column;
+		}
+
+		protected Object compute()
+		{
+			String[] values = new String[m_entries.length];
+			for (int row = 0; row < values.length; row++) {
+				values[row] = value(m_entries[row], m_column);
+			}
+			// Ids are compared as bytes by find(), so they are always packed
+			return (m_column == ID) ? new PackedColumn(PackedStrings.pack(values)) : Column.encode(values);
+		}
+	}
+
+	/**
+	 * The values of one field for every row.
+	 */
+	abstract static class Column
+	{
+		// Approximate heap cost of a dictionary String beyond its characters:
+		// the String, its array's header and the dictionary slot
+		private static final int STRING_OVERHEAD = 44;
+		// Largest dictionary whose codes fit in three bytes
+		private static final int MAX_DICTIONARY = 1 << 24;
+
+		abstract String get(int row);
+
+		/**
+		 * Encodes the values as a dictionary if that takes less memory than
+		 * packing them.
+		 */
+		static Column encode(String[] values)
+		{
+			HashMap codes = new HashMap();
+			long packedSize = 4L * (values.length + 1);
+			long dictionarySize = 0;
+			for (int row = 0; row < values.length; row++)
+			{
+				int length = utf8Length(values[row]);
+				packedSize += length;
+				if (codes.size() < MAX_DICTIONARY && !codes.containsKey(values[row])) {
+					codes.put(values[row], Integer.valueOf(codes.size()));
+					dictionarySize += STRING_OVERHEAD + length;
+				}
+			}
+			if (codes.size() < MAX_DICTIONARY) {
+				int width = DictionaryColumn.width(codes.size());
+				dictionarySize += (long)width * values.length;
+				if (dictionarySize < packedSize)
+					return new DictionaryColumn(values, codes, width);
+			}
+			return new PackedColumn(PackedStrings.pack(values));
+		}
+
+		private static int utf8Length(String s)
+		{
+			int length = 0;
+			for (int i = 0; i < s.length(); i++)
+			{
+				char c = s.charAt(i);
+				length += (c < 0x80) ? 1 : (c < 0x800 || Character.isSurrogate(c)) ? 2 : 3;
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * Column keeping each distinct value once, and for each row the code of
+	 * its value in big-endian bytes.
+	 */
+	static class DictionaryColumn extends Column
+	{
+		private final PackedStrings m_dictionary;
+		// The dictionary as Strings when it was built on the heap, so that
+		// reading a value doesn't allocate; null for a mapped dictionary
+		private final String[] m_values;
+		private final ByteBuffer m_codes;
+		private final int m_width;
+
+		/**
+		 * @return the number of bytes needed for the codes of a dictionary
+		 */
+		static int width(int size)
+		{
+			return (size <= 0x100) ? 1 : (size <= 0x10000) ? 2 : 3;
+		}
+
+		/**
+		 * @param codes maps every value to its code, numbered from 0
+		 */
+		DictionaryColumn(String[] values, Map codes, int width)
+		{
+			m_values = new String[codes.size()];
+			for (Iterator iter = codes.entrySet().iterator(); iter.hasNext(); )
+			{
+				Map.Entry e = (Map.Entry)iter.next();
+				m_values[((Integer)e.getValue()).intValue()] = (String)e.getKey();
+			}
+			m_dictionary = PackedStrings.pack(m_values);
+			m_width = width;
+			byte[] rowCodes = new byte[values.length * width];
+			for (int row = 0; row < values.length; row++)
+			{
+				int code = ((Integer)codes.get(values[row])).intValue();
+				for (int i = width - 1; i >= 0; i--) {
+					rowCodes[row * width + i] = (byte)code;
+					code >>>= 8;
+				}
+			}
+			m_codes = ByteBuffer.wrap(rowCodes);
+		}
+
+		DictionaryColumn(PackedStrings dictionary, ByteBuffer codes, int width)
+		{
+			m_dictionary = dictionary;
+			m_values = null;
+			m_codes = codes;
+			m_width = width;
+		}
+
+		String get(int row)
+		{
+			int code = 0;
+			for (int i = row * m_width, end = i + m_width; i < end; i++) {
+				code = (code << 8) | (m_codes.get(i) & 0xFF);
+			}
+			return (m_values != null) ? m_values[code] : m_dictionary.get(code);
+		}
+
+		PackedStrings dictionary() { return m_dictionary; }
+		ByteBuffer codes() { return m_codes.duplicate(); }
+		int width() { return m_width; }
+	}
+
+	/**
+	 * Column keeping the UTF-8 bytes of every row's value in one buffer.
+	 */
+	static class PackedColumn extends Column
+	{
+		private final PackedStrings m_values;
+
+		PackedColumn(PackedStrings values)
+		{
+			m_values = values;
+		}
+
+		String get(int row)
+		{
+			return m_values.get(row);
+		}
+
+		/**
+		 * @return whether the row's value has exactly the given bytes
+		 */
+		boolean matches(int row, byte[] utf8)
+		{
+			return m_values.compare(row, utf8) == 0;
+		}
+
+		PackedStrings values() { return m_values; }
+	}
+}
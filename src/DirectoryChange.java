@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A single addition, update or deletion of an employee directory entry, as
+ * applied by {@link EmployeeDirectory#apply EmployeeDirectory.apply()} and
+ * recorded in a {@link DirectoryJournal}.
+ */
+public class DirectoryChange {
+
+	public static final int ADD = 0;
+	public static final int UPDATE = 1;
+	public static final int DELETE = 2;
+
+	private final int m_type;
+	private final String m_id;
+	private final EmployeeDirectory.EmployeeDirectoryEntry m_entry;
+
+	private DirectoryChange(int type, String id, EmployeeDirectory.EmployeeDirectoryEntry entry)
+	{
+		if (id == null)
+			throw new IllegalArgumentException("id is null");
+		m_type = type;
+		m_id = id;
+		m_entry = entry;
+	}
+
+	/**
+	 * @return a change adding a new hire's entry
+	 */
+	public static DirectoryChange add(EmployeeDirectory.EmployeeDirectoryEntry entry)
+	{
+		return new DirectoryChange(ADD, entry.getId(), entry);
+	}
+
+	/**
+	 * @return a change replacing the entry with the same id
+	 */
+	public static DirectoryChange update(EmployeeDirectory.EmployeeDirectoryEntry entry)
+	{
+		return new DirectoryChange(UPDATE, entry.getId(), entry);
+	}
+
+	/**
+	 * @return a change removing the entry with the given id
+	 */
+	public static DirectoryChange delete(String id)
+	{
+		return new DirectoryChange(DELETE, id, null);
+	}
+
+	/**
+	 * @return {@link #ADD}, {@link #UPDATE} or {@link #DELETE}
+	 */
+	public int getType()
+	{
+		return m_type;
+	}
+
+	public String getId()
+	{
+		return m_id;
+	}
+
+	/**
+	 * @return the added or updated entry, or null for a deletion
+	 */
+	public EmployeeDirectory.EmployeeDirectoryEntry getEntry()
+	{
+		return m_entry;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads the employee directory from a CSV or TSV export.
+ * <p>
+ * The first line of the file names the columns: <code>id</code>,
+ * <code>firstName</code> and <code>lastName</code> are required, and
+ * <code>phone</code>, <code>email</code>, <code>position</code>,
+ * <code>department</code>, <code>building</code> and <code>office</code> are
+ * optional.  Names are matched ignoring case, spaces and underscores, so
+ * <code>First Name</code> and <code>first_name</code> work too, and other
+ * columns are ignored.  The file is tab-separated if its name ends in
+ * <code>.tsv</code> or its first line contains a tab, and comma-separated
+ * with optional double quotes otherwise.  It must be UTF-8 encoded and hold
+ * one record per line.
+ * <p>
+ * The file is read into memory and split into chunks at line boundaries,
+ * which are parsed in parallel on a fork/join pool, and the snapshot's
+ * indexes are then built on the same pool.
+ */
+public class DirectoryFileLoader {
+
+	// Columns in the order of the EmployeeDirectoryEntry constructor
+	private static final String[] COLUMNS = { "id", "firstname", "lastname", "phone",
+		"email", "position", "department", "building", "office" };
+	private static final int REQUIRED_COLUMNS = 3;
+
+	// Bytes below which a range of lines is parsed by a single task
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final File m_file;
+	private final ForkJoinPool m_pool;
+	private final boolean m_columnar;
+
+	/**
+	 * @param file the CSV or TSV file to load
+	 * @param pool the pool to parse and index on
+	 * @param columnar whether snapshots keep their entries in a compact
+	 * {@link ColumnarEntryStore}
+	 */
+	public DirectoryFileLoader(File file, ForkJoinPool pool, boolean columnar)
+	{
+		m_file = file;
+		m_pool = pool;
+		m_columnar = columnar;
+	}
+
+	/**
+	 * @return the file this loader reads
+	 */
+	public File getFile()
+	{
+		return m_file;
+	}
+
+	/**
+	 * Reads and parses the file and builds a snapshot of its entries.  The
+	 * snapshot isn't published, that is up to the caller.
+	 *
+	 * @throws IOException if the file can't be read or a record is malformed
+	 */
+	public DirectorySnapshot load() throws IOException
+	{
+		return new DirectorySnapshot(loadEntries(), m_pool, m_columnar);
+	}
+
+	/**
+	 * Reads and parses the file.
+	 *
+	 * @return the {@link EmployeeDirectory.EmployeeDirectoryEntry} objects of
+	 * the file, in file order
+	 * @throws IOException if the file can't be read or a record is malformed
+	 */
+	public List loadEntries() throws IOException
+	{
+		byte[] data = readFile();
+		int start = (data.length >= 3 && data[0] == (byte)0xEF && data[1] == (byte)0xBB
+				&& data[2] == (byte)0xBF) ? 3 : 0;
+		int headerEnd = lineEnd(data, start);
+		String header = decode(data, start, headerEnd);
+		char separator = (m_file.getName().toLowerCase().endsWith(".tsv") ||
+				header.indexOf('\t') >= 0) ? '\t' : ',';
+
+		try {
+			int[] columns = mapColumns(split(header, separator, 0));
+			return (List)m_pool.invoke(
+					new ParseTask(data, next(data, headerEnd), data.length, separator, columns));
+		} catch (IllegalArgumentException e) {
+			throw new IOException(m_file + ": " + e.getMessage());
+		}
+	}
+
+	private byte[] readFile() throws IOException
+	{
+		FileInputStream in = new FileInputStream(m_file);
+		try {
+			long length = m_file.length();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException(m_file + " is too large");
+			byte[] data = new byte[(int)length];
+			int count = 0;
+			int n;
+			while (count < data.length && (n = in.read(data, count, data.length - count)) > 0)
+				count += n;
+			if (count < data.length) {
+				// The file shrank while it was read
+				byte[] shorter = new byte[count];
+				System.arraycopy(data, 0, shorter, 0, count);
+				data = shorter;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return for each column of the file, the index of the entry field it
+	 * holds, or -1 if it is ignored
+	 */
+	private int[] mapColumns(String[] names) throws IOException
+	{
+		int[] columns = new int[names.length];
+		boolean[] present = new boolean[COLUMNS.length];
+		for (int i = 0; i < names.length; i++)
+		{
+			columns[i] = -1;
+			String name = names[i].replaceAll("[\\s_-]", "").toLowerCase();
+			for (int c = 0; c < COLUMNS.length; c++)
+			{
+				if (COLUMNS[c].equals(name) && !present[c]) {
+					columns[i] = c;
+					present[c] = true;
+					break;
+				}
+			}
+		}
+		for (int c = 0; c < REQUIRED_COLUMNS; c++)
+		{
+			if (!present[c])
+				throw new IOException(m_file + ": missing column " + COLUMNS[c]);
+		}
+		return columns;
+	}
+
+	/**
+	 * Parses the lines of a range of the file, splitting it in halves at line
+	 * boundaries until the ranges are small.  Entries keep the order of the
+	 * file.
+	 */
+	private static class ParseTask extends RecursiveTask
+	{
+		private final byte[] m_data;
+		private final int m_from;
+		private final int m_to;
+		private final char m_separator;
+		private final int[] m_columns;
+
+		ParseTask(byte[] data, int from, int to, char separator, int[] columns)
+		{
+			m_data = data;
+			m_from = from;
+			m_to = to;
+			m_separator = separator;
+			m_columns = columns;
+		}
+
+		protected Object compute()
+		{
+			if (m_to - m_from > CHUNK_SIZE) {
+				int mid = next(m_data, lineEnd(m_data, (m_from + m_to) >>> 1));
+				if (mid < m_to) {
+					ParseTask upper = new ParseTask(m_data, mid, m_to, m_separator, m_columns);
+					upper.fork();
+					List entries = (List)new ParseTask(m_data, m_from, mid, m_separator, m_columns).compute();
+					entries.addAll((List)upper.join());
+					return entries;
+				}
+			}
+			List entries = new ArrayList((m_to - m_from) / 100 + 1);
+			for (int pos = m_from; pos < m_to; )
+			{
+				int end = Math.min(lineEnd(m_data, pos), m_to);
+				String line = decode(m_data, pos, end);
+				if (line.trim().length() > 0)
+					entries.add(parseRecord(line, pos));
+				pos = next(m_data, end);
+			}
+			return entries;
+		}
+
+		private EmployeeDirectory.EmployeeDirectoryEntry parseRecord(String line, int offset)
+		{
+			String[] values = split(line, m_separator, offset);
+			String[] fields = new String[COLUMNS.length];
+			for (int i = 0; i < values.length && i < m_columns.length; i++)
+			{
+				if (m_columns[i] >= 0)
+					fields[m_columns[i]] = values[i].trim();
+			}
+			for (int c = 0; c < COLUMNS.length; c++)
+			{
+				if (fields[c] == null || fields[c].length() == 0) {
+					if (c < REQUIRED_COLUMNS)
+						throw new IllegalArgumentException("missing " + COLUMNS[c] +
+								" in record at byte " + offset);
+					fields[c] = "";
+				}
+			}
+			return new EmployeeDirectory.EmployeeDirectoryEntry(fields[0], fields[1],
+					fields[2], fields[3], fields[4], fields[5], fields[6], fields[7], fields[8]);
+		}
+	}
+
+	/**
+	 * Splits a line into fields.  Comma-separated fields may be enclosed in
+	 * double quotes, with quotes inside them doubled.
+	 */
+	static String[] split(String line, char separator, int offset)
+	{
+		List fields = new ArrayList(COLUMNS.length);
+		StringBuffer field = new StringBuffer();
+		boolean quoted = false;
+		int len = line.length();
+		for (int i = 0; i < len; i++)
+		{
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < len && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == separator) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '"' && separator == ',' && field.length() == 0) {
+				quoted = true;
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted)
+			throw new IllegalArgumentException("unterminated quote in record at byte " + offset);
+		fields.add(field.toString());
+		return (String[])fields.toArray(new String[fields.size()]);
+	}
+
+	private static String decode(byte[] data, int from, int to)
+	{
+		if (to > from && data[to - 1] == '\r')
+			to--;
+		return new String(data, from, to - from, StandardCharsets.UTF_8);
+	}
+
+	// Position of the line feed ending the line at pos, or the end of data
+	private static int lineEnd(byte[] data, int pos)
+	{
+		while (pos < data.length && data[pos] != '\n')
+			pos++;
+		return pos;
+	}
+
+	// Start of the line after the one ending at end
+	private static int next(byte[] data, int end)
+	{
+		return Math.min(end + 1, data.length);
+	}
+}
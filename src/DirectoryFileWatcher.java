@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Loads the employee directory from a file when the web application starts
+ * and reloads it in the background whenever the file changes.
+ * <p>
+ * The file is named by the <code>directoryFile</code> context-param, relative
+ * to the web application's root unless absolute, and is checked for changes
+ * every <code>directoryReloadInterval</code> seconds (300 by default).  A
+ * changed file is only loaded once its size and modification time are the
+ * same on two consecutive checks, so that a file still being written isn't
+ * picked up.  The directory in service keeps answering requests while the
+ * new one is built, and stays in service if the new file fails to load.
+ * Without a <code>directoryFile</code> the built-in sample directory is used.
+ * <p>
+ * The <code>directoryStorage</code> context-param selects how the loaded
+ * entries are kept: <code>objects</code> (the default) or the more compact
+ * <code>columnar</code>, see {@link ColumnarEntryStore}.
+ * <p>
+ * Instead of a <code>directoryFile</code>, a <code>directoryIndexFile</code>
+ * built offline by {@link DirectoryIndexFile} can be given, which is mapped
+ * into memory rather than parsed and indexed, so that the directory is in
+ * service as soon as the web application starts.  It is watched the same way,
+ * but must be replaced by renaming a new file over it, never rewritten in
+ * place, since the directory in service reads from the old file.
+ * <p>
+ * The <code>directoryJournal</code> context-param names a
+ * {@link DirectoryJournal} of changes to apply on top of the directory file,
+ * or of the sample directory if there is none.  The whole journal is replayed
+ * whenever the directory file is loaded, and lines appended to it are applied
+ * every <code>directoryJournalInterval</code> seconds (10 by default) without
+ * reloading the file.  A journal that becomes shorter, or is removed, is taken
+ * to start over, and the directory file is loaded again with it.
+ */
+public class DirectoryFileWatcher implements ServletContextListener {
+
+	private ServletContext m_context;
+	// Null when there is no directory file
+	private File m_file;
+	// Null when the file is an index file
+	private DirectoryFileLoader m_loader;
+	// Null when there is no journal
+	private DirectoryJournal m_journal;
+	// The directory the journal applies to when there is no directory file
+	private DirectorySnapshot m_sample;
+	private ForkJoinPool m_pool;
+	private ScheduledExecutorService m_scheduler;
+
+	// Size and modification time of the file as loaded, and as last seen.
+	// Only touched by the scheduler thread after startup.
+	private String m_loadedStamp;
+	private String m_seenStamp;
+	// Whether the published directory was loaded by this watcher, so that the
+	// journal may be applied to it
+	private boolean m_loaded = false;
+
+	public void contextInitialized(ServletContextEvent event)
+	{
+		m_context = event.getServletContext();
+		String fileName = m_context.getInitParameter("directoryIndexFile");
+		boolean indexed = fileName != null && fileName.trim().length() > 0;
+		if (!indexed)
+			fileName = m_context.getInitParameter("directoryFile");
+		m_file = resolve(fileName);
+		File journal = resolve(m_context.getInitParameter("directoryJournal"));
+		m_journal = (journal != null) ? new DirectoryJournal(journal) : null;
+		if (m_file == null && m_journal == null)
+			return;
+		long interval = longParameter("directoryReloadInterval", 300);
+		long journalInterval = longParameter("directoryJournalInterval", 10);
+
+		boolean columnar = "columnar".equalsIgnoreCase(m_context.getInitParameter("directoryStorage"));
+
+		m_pool = new ForkJoinPool();
+		if (m_file != null && !indexed)
+			m_loader = new DirectoryFileLoader(m_file, m_pool, columnar);
+		if (m_file == null)
+			m_sample = EmployeeDirectory.current();
+		// Serve the file from the first request on if it can be loaded
+		m_seenStamp = (m_file != null) ? stamp(m_file) : null;
+		reload(m_seenStamp);
+
+		m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "DirectoryFileWatcher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (m_file != null && interval > 0) {
+			m_scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() { check(); }
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+		if (m_journal != null && journalInterval > 0) {
+			m_scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() { checkJournal(); }
+			}, journalInterval, journalInterval, TimeUnit.SECONDS);
+		}
+	}
+
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		if (m_scheduler != null)
+			m_scheduler.shutdownNow();
+		if (m_pool != null)
+			m_pool.shutdownNow();
+	}
+
+	private File resolve(String fileName)
+	{
+		if (fileName == null || fileName.trim().length() == 0)
+			return null;
+		File file = new File(fileName.trim());
+		if (!file.isAbsolute() && m_context.getRealPath("/") != null)
+			file = new File(m_context.getRealPath("/"), fileName.trim());
+		return file;
+	}
+
+	private long longParameter(String name, long defaultValue)
+	{
+		String param = m_context.getInitParameter(name);
+		if (param == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(param.trim());
+		} catch (NumberFormatException e) {
+			m_context.log("Invalid " + name + " " + param + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private void check()
+	{
+		String stamp = stamp(m_file);
+		String previous = m_seenStamp;
+		m_seenStamp = stamp;
+		if (stamp != null && stamp.equals(previous) && !stamp.equals(m_loadedStamp))
+			reload(stamp);
+	}
+
+	private void checkJournal()
+	{
+		if (!m_loaded)
+			return;
+		try {
+			List malformed = new ArrayList();
+			List changes = m_journal.readNew(malformed);
+			logMalformed(malformed);
+			if (changes == null) {
+				m_context.log("Directory journal " + m_journal.getFile() + " was replaced, reloading");
+				reload((m_file != null) ? stamp(m_file) : null);
+			} else if (!changes.isEmpty()) {
+				long start = System.currentTimeMillis();
+				EmployeeDirectory.apply(changes, m_pool);
+				m_context.log("Applied " + changes.size() + " directory changes from " +
+						m_journal.getFile() + " in " + (System.currentTimeMillis() - start) + " ms");
+			}
+		} catch (Exception e) {
+			m_context.log("Failed to read directory journal " + m_journal.getFile(), e);
+		}
+	}
+
+	private void reload(String stamp)
+	{
+		if (m_file != null && stamp == null) {
+			m_context.log("Directory file " + m_file + " not found");
+			return;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			DirectorySnapshot snapshot = (m_file == null) ? m_sample
+				: (m_loader != null) ? m_loader.load()
+				: DirectoryIndexFile.map(m_file);
+			int changeCount = 0;
+			if (m_journal != null) {
+				List malformed = new ArrayList();
+				List changes = m_journal.readAll(malformed);
+				logMalformed(malformed);
+				if (!changes.isEmpty())
+					snapshot = snapshot.apply(changes, m_pool);
+				changeCount = changes.size();
+			}
+			EmployeeDirectory.publish(snapshot);
+			m_loaded = true;
+			m_context.log("Loaded " + snapshot.size() + " directory entries from " +
+					((m_file != null) ? m_file.toString() : "the sample directory") +
+					((m_journal != null) ? " and " + changeCount + " changes from " + m_journal.getFile() : "") +
+					" in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (Exception e) {
+			m_context.log("Failed to load directory " +
+					((m_file != null) ? "file " + m_file : "journal " + m_journal.getFile()) +
+					", keeping the current directory", e);
+		}
+		// Not retried until the file changes again
+		m_loadedStamp = stamp;
+	}
+
+	private void logMalformed(List malformed)
+	{
+		for (Iterator iter = malformed.iterator(); iter.hasNext(); )
+			m_context.log("Skipped malformed change in directory journal " +
+					m_journal.getFile() + ", " + iter.next());
+	}
+
+	private static String stamp(File file)
+	{
+		if (!file.isFile())
+			return null;
+		return file.length() + "@" + file.lastModified();
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A read-only binary file holding an employee directory together with its
+ * lookup and search indexes, laid out so that it can be memory-mapped and
+ * used as is.
+ * <p>
+ * The file is built offline from a CSV or TSV export with
+ * <pre>
+ *   ant index -Dsource=directory.csv -Dindex=directory.idx
+ * </pre>
+ * and {@link #map map()} then makes a {@link DirectorySnapshot} of it without
+ * parsing or indexing anything: entries, id lookups and searches read straight
+ * from the mapped pages, which the operating system loads on first use and
+ * shares between processes mapping the same file.
+ * <p>
+ * The file starts with a header of the magic number, the format version, the
+ * number of rows and the number of sections, followed by the offset and
+ * length of each section.  Sections are big-endian arrays of ints, floats or
+ * bytes, aligned on 8 bytes, in the order they are read by {@link #map map()}.
+ * A file of another version is rejected rather than read.
+ * <p>
+ * A mapped file must never be modified: write a new file and rename it over
+ * the old one, as {@link #write write()} does, so that snapshots still using
+ * the old file keep reading its unchanged contents.
+ */
+public class DirectoryIndexFile {
+
+	private static final int MAGIC = 0x4F424458;	// "OBDX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+
+	private static final int PACKED = 0;
+	private static final int DICTIONARY = 1;
+
+	private DirectoryIndexFile()
+	{
+	}
+
+	/**
+	 * Builds the indexes of the given entries and writes them to a file.  The
+	 * file is written under a temporary name next to it and then renamed, so
+	 * an existing file is replaced at once.
+	 *
+	 * @param entries the {@link EmployeeDirectory.EmployeeDirectoryEntry}
+	 * objects of the directory; of entries with the same id the last is kept
+	 * @param pool the pool to build on, or null to build on the calling thread
+	 */
+	public static void write(Collection entries, File file, ForkJoinPool pool) throws IOException
+	{
+		EmployeeDirectory.EmployeeDirectoryEntry[] rows = DirectorySnapshot.rows(entries);
+		ColumnarEntryStore store = new ColumnarEntryStore(rows, pool);
+		DirectorySearchIndex.PartialIndex index = DirectorySearchIndex.build(store, pool);
+
+		List sections = new ArrayList();
+		int[] meta = new int[2 + 2 * ColumnarEntryStore.COLUMNS];
+		meta[0] = rows.length;
+		meta[1] = ColumnarEntryStore.COLUMNS;
+		sections.add(null);
+		for (int c = 0; c < ColumnarEntryStore.COLUMNS; c++)
+		{
+			ColumnarEntryStore.Column column = store.column(c);
+			if (column instanceof ColumnarEntryStore.DictionaryColumn) {
+				ColumnarEntryStore.DictionaryColumn dictionary = (ColumnarEntryStore.DictionaryColumn)column;
+				meta[2 + 2 * c] = DICTIONARY;
+				meta[3 + 2 * c] = dictionary.width();
+				addStrings(sections, dictionary.dictionary());
+				sections.add(dictionary.codes());
+			} else {
+				meta[2 + 2 * c] = PACKED;
+				addStrings(sections, ((ColumnarEntryStore.PackedColumn)column).values());
+			}
+		}
+		sections.set(0, ints(IntBuffer.wrap(meta)));
+		sections.add(ints(store.idTable()));
+		sections.add(ints(store.byLastName()));
+
+		// Terms in the order of their UTF-8 bytes, which is how they are looked up
+		final byte[][] encoded = new byte[index.postings.size()][];
+		final String[] terms = (String[])index.postings.keySet().toArray(new String[encoded.length]);
+		Integer[] order = new Integer[terms.length];
+		for (int t = 0; t < terms.length; t++)
+		{
+			encoded[t] = terms[t].getBytes(StandardCharsets.UTF_8);
+			order[t] = Integer.valueOf(t);
+		}
+		Arrays.sort(order, new Comparator() {
+			public int compare(Object o1, Object o2)
+			{
+				return compareBytes(encoded[((Integer)o1).intValue()], encoded[((Integer)o2).intValue()]);
+			}
+		});
+		String[] sortedTerms = new String[terms.length];
+		int[] starts = new int[terms.length + 1];
+		int count = 0;
+		for (int t = 0; t < terms.length; t++)
+		{
+			sortedTerms[t] = terms[order[t].intValue()];
+			starts[t] = count;
+			count += ((DirectorySearchIndex.Postings)index.postings.get(sortedTerms[t])).size;
+		}
+		starts[terms.length] = count;
+		int[] docs = new int[count];
+		float[] weights = new float[count];
+		for (int t = 0; t < terms.length; t++)
+		{
+			DirectorySearchIndex.Postings postings = (DirectorySearchIndex.Postings)index.postings.get(sortedTerms[t]);
+			System.arraycopy(postings.docs, 0, docs, starts[t], postings.size);
+			System.arraycopy(postings.weights, 0, weights, starts[t], postings.size);
+		}
+		addStrings(sections, PackedStrings.pack(sortedTerms));
+		sections.add(ints(IntBuffer.wrap(starts)));
+		sections.add(ints(IntBuffer.wrap(docs)));
+		ByteBuffer weightBytes = ByteBuffer.allocate(4 * count);
+		weightBytes.asFloatBuffer().put(weights);
+		sections.add(weightBytes);
+
+		FuzzyTermIndex nameTerms = new FuzzyTermIndex(
+				(String[])index.nameTerms.toArray(new String[index.nameTerms.size()]));
+		addStrings(sections, nameTerms.terms());
+		sections.add(ints(nameTerms.lengths()));
+		sections.add(ints(nameTerms.gramKeys()));
+		sections.add(ints(nameTerms.gramStarts()));
+		sections.add(ints(nameTerms.gramTerms()));
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 16 * sections.size());
+		header.putInt(MAGIC).putInt(VERSION).putInt(rows.length).putInt(sections.size());
+		long offset = align(header.capacity());
+		for (int s = 0; s < sections.size(); s++)
+		{
+			long length = ((ByteBuffer)sections.get(s)).remaining();
+			header.putLong(offset).putLong(length);
+			offset = align(offset + length);
+		}
+		header.flip();
+
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			writeFully(channel, header);
+			for (int s = 0; s < sections.size(); s++)
+			{
+				channel.position(align(channel.position()));
+				writeFully(channel, (ByteBuffer)sections.get(s));
+			}
+			channel.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps a file written by {@link #write write()} and makes a snapshot of
+	 * it.  The mapping stays valid until the snapshot is garbage collected.
+	 *
+	 * @throws IOException if the file can't be read or isn't an index file of
+	 * this version
+	 */
+	public static DirectorySnapshot map(File file) throws IOException
+	{
+		ByteBuffer buffer;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping outlives the channel
+			in.close();
+		}
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a directory index file");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(file + " has format version " + buffer.getInt(4) +
+					", expected " + VERSION);
+
+		try {
+			Sections sections = new Sections(buffer);
+			IntBuffer meta = sections.next().asIntBuffer();
+			int size = meta.get(0);
+			if (size != buffer.getInt(8) || meta.get(1) != ColumnarEntryStore.COLUMNS)
+				throw new IOException(file + " is corrupt");
+			ColumnarEntryStore.Column[] columns = new ColumnarEntryStore.Column[ColumnarEntryStore.COLUMNS];
+			for (int c = 0; c < columns.length; c++)
+			{
+				if (meta.get(2 + 2 * c) == DICTIONARY) {
+					columns[c] = new ColumnarEntryStore.DictionaryColumn(
+							sections.nextStrings(), sections.next(), meta.get(3 + 2 * c));
+				} else {
+					columns[c] = new ColumnarEntryStore.PackedColumn(sections.nextStrings());
+				}
+			}
+			ColumnarEntryStore store = new ColumnarEntryStore(size, columns,
+					sections.next().asIntBuffer(), sections.next().asIntBuffer());
+
+			PackedStrings terms = sections.nextStrings();
+			IntBuffer starts = sections.next().asIntBuffer();
+			IntBuffer docs = sections.next().asIntBuffer();
+			FloatBuffer weights = sections.next().asFloatBuffer();
+			FuzzyTermIndex nameTerms = new FuzzyTermIndex(sections.nextStrings(),
+					sections.next().asIntBuffer(), sections.next().asIntBuffer(),
+					sections.next().asIntBuffer(), sections.next().asIntBuffer());
+			DirectorySearchIndex searchIndex = new DirectorySearchIndex(store,
+					new MappedTermIndex(terms, starts, docs, weights, nameTerms));
+			return new DirectorySnapshot(store, searchIndex);
+		} catch (RuntimeException e) {
+			// A section out of bounds or of the wrong size
+			throw new IOException(file + " is corrupt: " + e);
+		}
+	}
+
+	/**
+	 * Looks terms up in the mapped term list, copying the postings of a term
+	 * found out of the mapped arrays.
+	 */
+	private static class MappedTermIndex implements DirectorySearchIndex.TermIndex
+	{
+		private final PackedStrings m_terms;
+		private final IntBuffer m_starts;
+		private final IntBuffer m_docs;
+		private final FloatBuffer m_weights;
+		private final FuzzyTermIndex m_nameTerms;
+
+		MappedTermIndex(PackedStrings terms, IntBuffer starts, IntBuffer docs,
+				FloatBuffer weights, FuzzyTermIndex nameTerms)
+		{
+			if (starts.limit() != terms.size() + 1 || docs.limit() != weights.limit())
+				throw new IllegalArgumentException("posting tables don't match");
+			m_terms = terms;
+			m_starts = starts;
+			m_docs = docs;
+			m_weights = weights;
+			m_nameTerms = nameTerms;
+		}
+
+		public DirectorySearchIndex.Postings postings(String term)
+		{
+			int t = m_terms.binarySearch(term.getBytes(StandardCharsets.UTF_8));
+			if (t < 0)
+				return null;
+			int from = m_starts.get(t);
+			int[] docs = new int[m_starts.get(t + 1) - from];
+			float[] weights = new float[docs.length];
+			IntBuffer d = m_docs.duplicate();
+			d.position(from);
+			d.get(docs);
+			FloatBuffer w = m_weights.duplicate();
+			w.position(from);
+			w.get(weights);
+			return new DirectorySearchIndex.Postings(docs, weights);
+		}
+
+		public List similarNames(String term)
+		{
+			return m_nameTerms.lookup(term);
+		}
+	}
+
+	/**
+	 * Reads the sections of a mapped file in order.
+	 */
+	private static class Sections
+	{
+		private final ByteBuffer m_buffer;
+		private final int m_count;
+		private int m_next = 0;
+
+		Sections(ByteBuffer buffer)
+		{
+			m_buffer = buffer;
+			m_count = buffer.getInt(12);
+		}
+
+		ByteBuffer next()
+		{
+			if (m_next >= m_count)
+				throw new IllegalStateException("missing section " + m_next);
+			int at = HEADER_SIZE + 16 * m_next++;
+			long offset = m_buffer.getLong(at);
+			long length = m_buffer.getLong(at + 8);
+			if (offset < 0 || length < 0 || offset + length > m_buffer.capacity())
+				throw new IllegalStateException("section " + (m_next - 1) + " out of bounds");
+			ByteBuffer section = m_buffer.duplicate();
+			section.limit((int)(offset + length));
+			section.position((int)offset);
+			return section.slice();
+		}
+
+		PackedStrings nextStrings()
+		{
+			return new PackedStrings(next().asIntBuffer(), next());
+		}
+	}
+
+	private static void addStrings(List sections, PackedStrings strings)
+	{
+		sections.add(ints(strings.offsets()));
+		sections.add(strings.data());
+	}
+
+	private static ByteBuffer ints(IntBuffer values)
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(4 * values.remaining());
+		bytes.asIntBuffer().put(values);
+		return bytes;
+	}
+
+	private static long align(long offset)
+	{
+		return (offset + 7) & ~7L;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static int compareBytes(byte[] a, byte[] b)
+	{
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++)
+		{
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Builds an index file from a CSV or TSV export, see
+	 * {@link DirectoryFileLoader} for its format.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2) {
+			System.err.println("Usage: DirectoryIndexFile <directory.csv|tsv> <index file>");
+			System.exit(2);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			long start = System.currentTimeMillis();
+			List entries = new DirectoryFileLoader(new File(args[0]), pool, true).loadEntries();
+			File file = new File(args[1]);
+			write(entries, file, pool);
+			System.out.println("Wrote " + entries.size() + " entries to " + file + " (" +
+					file.length() + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An append-only file of changes to the employee directory, read
+ * incrementally.
+ * <p>
+ * Each line of the UTF-8 file holds one change, with tab-separated fields:
+ * <pre>
+ *   A  id  firstName  lastName  phone  email  position  department  building  office
+ *   U  id  firstName  lastName  phone  email  position  department  building  office
+ *   D  id
+ * </pre>
+ * adding, updating or deleting the entry with the given id.  An addition of
+ * an existing id replaces it like an update, and a deletion of a missing id
+ * is ignored, so that a journal can be replayed over a directory that already
+ * contains some of its changes.  Tabs, line breaks and backslashes in fields
+ * are escaped as <code>\t</code>, <code>\n</code>, <code>\r</code> and
+ * <code>\\</code>.  Empty lines and lines starting with <code>#</code> are
+ * ignored.
+ * <p>
+ * Lines must only ever be appended.  Only complete lines are read, so a line
+ * being written is picked up by the next read once it is terminated.  A
+ * journal replaced by another file, rather than appended to, is told apart
+ * by its file key (its inode, on Unix), or its creation time where the file
+ * system has no file keys.
+ */
+public class DirectoryJournal {
+
+	private static final int FIELDS = 9;
+
+	private final File m_file;
+	// Bytes of the file read so far, always at the start of a line
+	private long m_position = 0;
+	// Identity of the file read so far, or null before the first read
+	private Object m_identity = null;
+
+	public DirectoryJournal(File file)
+	{
+		m_file = file;
+	}
+
+	/**
+	 * @return the journal file
+	 */
+	public File getFile()
+	{
+		return m_file;
+	}
+
+	/**
+	 * Reads every change of the journal from its start.
+	 *
+	 * @param malformed collects a description of each line that is skipped
+	 * because it can't be parsed, or null
+	 * @return the {@link DirectoryChange}s in journal order; none if the file
+	 * does not exist
+	 */
+	public List readAll(List malformed) throws IOException
+	{
+		m_position = 0;
+		m_identity = null;
+		List changes = readNew(malformed);
+		return (changes != null) ? changes : new ArrayList();
+	}
+
+	/**
+	 * Reads the changes appended since the last read.
+	 *
+	 * @param malformed collects a description of each line that is skipped
+	 * because it can't be parsed, or null
+	 * @return the {@link DirectoryChange}s in journal order, or null if the
+	 * file was replaced by another one or has become shorter than what was
+	 * read, and has to be read again from the start
+	 */
+	public List readNew(List malformed) throws IOException
+	{
+		List changes = new ArrayList();
+		Object identity = identity();
+		if (identity == null)
+			return (m_position == 0) ? changes : null;
+		if (m_position > 0 && !identity.equals(m_identity))
+			return null;
+		byte[] data;
+		RandomAccessFile in = new RandomAccessFile(m_file, "r");
+		try {
+			// The file opened may not be the one identified if it was just
+			// replaced; its replacement is read from the start next time
+			if (!identity.equals(identity()))
+				return (m_position == 0) ? changes : null;
+			long length = in.length();
+			if (length < m_position)
+				return null;
+			if (length - m_position > Integer.MAX_VALUE)
+				throw new IOException(m_file + " is too large");
+			data = new byte[(int)(length - m_position)];
+			in.seek(m_position);
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		int start = 0;
+		for (int end = 0; end < data.length; end++)
+		{
+			if (data[end] != '\n')
+				continue;
+			int to = (end > start && data[end - 1] == '\r') ? end - 1 : end;
+			String line = new String(data, start, to - start, StandardCharsets.UTF_8);
+			if (line.trim().length() > 0 && !line.startsWith("#")) {
+				try {
+					changes.add(parse(line));
+				} catch (IllegalArgumentException e) {
+					if (malformed != null)
+						malformed.add("line at byte " + (m_position + start) + ": " + e.getMessage());
+				}
+			}
+			start = end + 1;
+		}
+		m_position += start;
+		m_identity = identity;
+		return changes;
+	}
+
+	/**
+	 * @return what tells the journal file apart from a file replacing it, or
+	 * null if it does not exist
+	 */
+	private Object identity() throws IOException
+	{
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(m_file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile())
+			return null;
+		Object key = attributes.fileKey();
+		return (key != null) ? key : attributes.creationTime();
+	}
+
+	/**
+	 * Appends changes to a journal file, creating it if needed, and forces
+	 * them to disk.
+	 *
+	 * @param changes the {@link DirectoryChange}s to append
+	 */
+	public static void append(File file, List changes) throws IOException
+	{
+		StringBuffer lines = new StringBuffer();
+		for (Iterator iter = changes.iterator(); iter.hasNext(); )
+			lines.append(format((DirectoryChange)iter.next())).append('\n');
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the journal line of a change, without its line break
+	 */
+	static String format(DirectoryChange change)
+	{
+		StringBuffer line = new StringBuffer();
+		switch (change.getType()) {
+		case DirectoryChange.ADD: line.append('A'); break;
+		case DirectoryChange.UPDATE: line.append('U'); break;
+		default: line.append('D'); break;
+		}
+		EmployeeDirectory.EmployeeDirectoryEntry emp = change.getEntry();
+		if (emp == null) {
+			escape(line.append('\t'), change.getId());
+			return line.toString();
+		}
+		String[] fields = { emp.getId(), emp.getFirstName(), emp.getLastName(), emp.getPhone(),
+			emp.getEmail(), emp.getPosition(), emp.getDepartment(), emp.getBuilding(), emp.getOffice() };
+		for (int i = 0; i < fields.length; i++)
+			escape(line.append('\t'), fields[i]);
+		return line.toString();
+	}
+
+	/**
+	 * Parses a journal line.
+	 *
+	 * @throws IllegalArgumentException if the line is malformed
+	 */
+	static DirectoryChange parse(String line)
+	{
+		String[] fields = line.split("\t", -1);
+		for (int i = 0; i < fields.length; i++)
+			fields[i] = unescape(fields[i]);
+		String type = fields[0].trim();
+		if (type.equals("D")) {
+			if (fields.length != 2 || fields[1].length() == 0)
+				throw new IllegalArgumentException("expected D and an id");
+			return DirectoryChange.delete(fields[1]);
+		}
+		if (!type.equals("A") && !type.equals("U"))
+			throw new IllegalArgumentException("unknown change " + type);
+		if (fields.length != FIELDS + 1)
+			throw new IllegalArgumentException("expected " + FIELDS + " fields after " + type);
+		if (fields[1].length() == 0 || fields[2].length() == 0 || fields[3].length() == 0)
+			throw new IllegalArgumentException("missing id or name");
+		EmployeeDirectory.EmployeeDirectoryEntry emp = new EmployeeDirectory.EmployeeDirectoryEntry(
+				fields[1], fields[2], fields[3], fields[4], fields[5],
+				fields[6], fields[7], fields[8], fields[9]);
+		return type.equals("A") ? DirectoryChange.add(emp) : DirectoryChange.update(emp);
+	}
+
+	private static void escape(StringBuffer buf, String value)
+	{
+		if (value == null)
+			return;
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c) {
+			case '\t': buf.append("\\t"); break;
+			case '\n': buf.append("\\n"); break;
+			case '\r': buf.append("\\r"); break;
+			case '\\': buf.append("\\\\"); break;
+			default: buf.append(c); break;
+			}
+		}
+	}
+
+	private static String unescape(String value)
+	{
+		if (value.indexOf('\\') < 0)
+			return value;
+		StringBuffer buf = new StringBuffer(value.length());
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c != '\\' || i + 1 == value.length()) {
+				buf.append(c);
+				continue;
+			}
+			c = value.charAt(++i);
+			switch (c) {
+			case 't': buf.append('\t'); break;
+			case 'n': buf.append('\n'); break;
+			case 'r': buf.append('\r'); break;
+			default: buf.append(c); break;
+			}
+		}
+		return buf.toString();
+	}
+}
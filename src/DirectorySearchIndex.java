@@ -0,0 +1,790 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Multi-field inverted index over the entries of an {@link EmployeeDirectory}.
+ * <p>
+ * Each entry's name, email, phone, position and department are split into
+ * terms and every term maps to a posting list of the entries (by row in the
+ * indexed {@link EntryStore}) that contain it, weighted by the boost of the
+ * fields the term appeared in.  A query matches the entries that contain all
+ * of its terms and is scored by the sum of their weights.  Only the best
+ * <code>k</code> matches are kept, using a bounded heap, so the cost of
+ * ranking does not grow with the number of matches.
+ * <p>
+ * In fuzzy mode each query term also matches the name terms within a small
+ * edit distance of it, as found by a {@link FuzzyTermIndex}.
+ * <p>
+ * A search given a deadline checks it as it goes: once it has passed, the
+ * posting lists of the similarly spelled names left to merge are skipped
+ * and the candidates left to filter are dropped, and the hits found so far
+ * are returned marked as incomplete.
+ */
+public class DirectorySearchIndex {
+
+	// Per-field boosts.  Names are what users most often type into the search
+	// box, so a name match outranks a match on a title or department.
+	static final float BOOST_LAST_NAME = 4.0f;
+	static final float BOOST_FIRST_NAME = 3.0f;
+	static final float BOOST_EMAIL = 3.0f;
+	static final float BOOST_PHONE = 2.0f;
+	static final float BOOST_POSITION = 1.5f;
+	static final float BOOST_DEPARTMENT = 1.0f;
+
+	// Subtracted from the score of a fuzzy match for each edit.  It is larger
+	// than any score a query term can reach, so entries matched with fewer
+	// edits always rank first, exact matches before all others.
+	static final float EDIT_PENALTY = 100.0f;
+
+	// Number of candidates filtered between two checks of the deadline
+	private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+	/**
+	 * Posting list for a single term: the ascending positions of the entries
+	 * containing the term and the weight of the term in each of them.
+	 */
+	static class Postings
+	{
+		int[] docs;
+		float[] weights;
+		int size;
+
+		Postings() { docs = new int[2]; weights = new float[2]; }
+		Postings(int[] docs, float[] weights)
+		{
+			this.docs = docs;
+			this.weights = weights;
+			size = docs.length;
+		}
+
+		void add(int doc, float weight)
+		{
+			if (size > 0 && docs[size - 1] == doc) {
+				weights[size - 1] += weight;
+				return;
+			}
+			if (size == docs.length) {
+				int[] d = new int[size * 2];
+				float[] w = new float[size * 2];
+				System.arraycopy(docs, 0, d, 0, size);
+				System.arraycopy(weights, 0, w, 0, size);
+				docs = d;
+				weights = w;
+			}
+			docs[size] = doc;
+			weights[size] = weight;
+			size++;
+		}
+		/**
+		 * Appends a list whose entries all come after those of this one.
+		 */
+		void append(Postings other)
+		{
+			if (size + other.size > docs.length) {
+				int[] d = new int[size + other.size];
+				float[] w = new float[size + other.size];
+				System.arraycopy(docs, 0, d, 0, size);
+				System.arraycopy(weights, 0, w, 0, size);
+				docs = d;
+				weights = w;
+			}
+			System.arraycopy(other.docs, 0, docs, size, other.size);
+			System.arraycopy(other.weights, 0, weights, size, other.size);
+			size += other.size;
+		}
+		void trim()
+		{
+			if (size < docs.length) {
+				int[] d = new int[size];
+				float[] w = new float[size];
+				System.arraycopy(docs, 0, d, 0, size);
+				System.arraycopy(weights, 0, w, 0, size);
+				docs = d;
+				weights = w;
+			}
+		}
+	}
+
+	/**
+	 * Decides whether a matching entry may be returned, for instance based on
+	 * the authorization of the requesting user.
+	 */
+	public interface Filter
+	{
+		public boolean accept(EmployeeDirectory.EmployeeDirectoryEntry emp);
+	}
+
+	/**
+	 * The outcome of a search: the best matches in descending order of score,
+	 * and the total number of entries that matched and passed the filter.
+	 * Hits of a search cut short by its deadline are incomplete, and their
+	 * number of matches is only a lower bound.
+	 */
+	public static class Hits
+	{
+		private final int[] m_docs;
+		private final EmployeeDirectory.EmployeeDirectoryEntry[] m_entries;
+		private final float[] m_scores;
+		private final int m_matchCount;
+		private final boolean m_complete;
+
+		Hits(int[] docs, EmployeeDirectory.EmployeeDirectoryEntry[] entries, float[] scores,
+				int matchCount)
+		{
+			this(docs, entries, scores, matchCount, true);
+		}
+		Hits(int[] docs, EmployeeDirectory.EmployeeDirectoryEntry[] entries, float[] scores,
+				int matchCount, boolean complete)
+		{
+			m_docs = docs;
+			m_entries = entries;
+			m_scores = scores;
+			m_matchCount = matchCount;
+			m_complete = complete;
+		}
+		/**
+		 * @return the number of hits returned, at most the requested maximum
+		 */
+		public int size() { return m_entries.length; }
+		/**
+		 * @return the hit at the given rank, the best match being at rank 0
+		 */
+		public EmployeeDirectory.EmployeeDirectoryEntry get(int rank) { return m_entries[rank]; }
+		/**
+		 * @return the score of the hit at the given rank
+		 */
+		public float getScore(int rank) { return m_scores[rank]; }
+		/**
+		 * @return the total number of matches, including those not returned
+		 */
+		public int getMatchCount() { return m_matchCount; }
+		/**
+		 * @return false if the search was cut short by its deadline
+		 */
+		public boolean isComplete() { return m_complete; }
+
+		/**
+		 * @return a copy of these hits with one more matching entry, ranked
+		 * by its score, keeping at most <code>maxHits</code> hits
+		 */
+		Hits with(int doc, EmployeeDirectory.EmployeeDirectoryEntry emp, float score, int maxHits)
+		{
+			int rank = 0;
+			while (rank < m_docs.length && better(m_scores[rank], m_docs[rank], score, doc))
+				rank++;
+			int size = Math.min(m_docs.length + 1, maxHits);
+			int[] docs = new int[size];
+			EmployeeDirectory.EmployeeDirectoryEntry[] entries =
+				new EmployeeDirectory.EmployeeDirectoryEntry[size];
+			float[] scores = new float[size];
+			for (int i = 0, j = 0; i < size; i++)
+			{
+				if (i == rank) {
+					docs[i] = doc;
+					entries[i] = emp;
+					scores[i] = score;
+				} else {
+					docs[i] = m_docs[j];
+					entries[i] = m_entries[j];
+					scores[i] = m_scores[j];
+					j++;
+				}
+			}
+			return new Hits(docs, entries, scores, m_matchCount + 1, m_complete);
+		}
+
+		/**
+		 * @return whether the entry at the given position is among the hits
+		 */
+		boolean contains(int doc)
+		{
+			for (int i = 0; i < m_docs.length; i++) {
+				if (m_docs[i] == doc)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Merges the hits of two searches over different entries.  Hits with
+		 * equal scores are ranked in the given order of their entries.
+		 *
+		 * @param offset added to the positions of the hits of <code>b</code>
+		 * @return the best <code>maxHits</code> hits of both, matching as many
+		 * entries as both together
+		 */
+		static Hits merge(Hits a, Hits b, int offset, int maxHits, Comparator order)
+		{
+			int size = Math.min(a.size() + b.size(), maxHits);
+			int[] docs = new int[size];
+			EmployeeDirectory.EmployeeDirectoryEntry[] entries =
+				new EmployeeDirectory.EmployeeDirectoryEntry[size];
+			float[] scores = new float[size];
+			for (int k = 0, i = 0, j = 0; k < size; k++)
+			{
+				boolean fromA = (j == b.size()) || (i < a.size() &&
+						(a.m_scores[i] > b.m_scores[j] || (a.m_scores[i] == b.m_scores[j] &&
+						order.compare(a.m_entries[i], b.m_entries[j]) < 0)));
+				if (fromA) {
+					docs[k] = a.m_docs[i];
+					entries[k] = a.m_entries[i];
+					scores[k] = a.m_scores[i++];
+				} else {
+					docs[k] = b.m_docs[j] + offset;
+					entries[k] = b.m_entries[j];
+					scores[k] = b.m_scores[j++];
+				}
+			}
+			return new Hits(docs, entries, scores, a.m_matchCount + b.m_matchCount,
+					a.m_complete && b.m_complete);
+		}
+	}
+
+	static final Hits NO_HITS =
+		new Hits(new int[0], new EmployeeDirectory.EmployeeDirectoryEntry[0], new float[0], 0);
+	private static final Hits NO_HITS_INCOMPLETE =
+		new Hits(new int[0], new EmployeeDirectory.EmployeeDirectoryEntry[0], new float[0], 0, false);
+
+	/**
+	 * Finds the posting lists of the index's terms, and the name terms that
+	 * are spelled similarly to a term.
+	 */
+	interface TermIndex
+	{
+		/**
+		 * @return the posting list of an upper-cased term, or null if no
+		 * entry contains it
+		 */
+		Postings postings(String term);
+
+		/**
+		 * @return the {@link FuzzyTermIndex.Match}es of an upper-cased term
+		 * among the first and last name terms
+		 */
+		List similarNames(String term);
+	}
+
+	// Term index built on the heap
+	private static class HeapTermIndex implements TermIndex
+	{
+		private final HashMap m_postings;
+		private final FuzzyTermIndex m_nameTerms;
+
+		HeapTermIndex(HashMap postings, FuzzyTermIndex nameTerms)
+		{
+			m_postings = postings;
+			m_nameTerms = nameTerms;
+		}
+		public Postings postings(String term) { return (Postings)m_postings.get(term); }
+		public List similarNames(String term) { return m_nameTerms.lookup(term); }
+	}
+
+	private final EntryStore m_store;
+	private final TermIndex m_terms;
+
+	/**
+	 * Builds the index.  Entries are addressed by their position in the given
+	 * array, and hits with equal scores are returned in array order.
+	 */
+	public DirectorySearchIndex(EmployeeDirectory.EmployeeDirectoryEntry[] entries)
+	{
+		this(new ObjectEntryStore(entries), (ForkJoinPool)null);
+	}
+
+	/**
+	 * Builds the index over the entries of a store, indexing ranges of rows in
+	 * parallel on the given pool.  Entries are addressed by row, and hits with
+	 * equal scores are returned in row order.
+	 *
+	 * @param pool the pool to build on, or null to build on the calling thread
+	 */
+	public DirectorySearchIndex(EntryStore store, ForkJoinPool pool)
+	{
+		m_store = store;
+		PartialIndex index = build(store, pool);
+		m_terms = new HeapTermIndex(index.postings, new FuzzyTermIndex(
+				(String[])index.nameTerms.toArray(new String[index.nameTerms.size()])));
+	}
+
+	/**
+	 * Creates an index over terms that were indexed before, as read from a
+	 * {@link DirectoryIndexFile}.
+	 */
+	DirectorySearchIndex(EntryStore store, TermIndex terms)
+	{
+		m_store = store;
+		m_terms = terms;
+	}
+
+	/**
+	 * Builds the posting lists and collects the name terms of every entry of
+	 * a store.
+	 *
+	 * @param pool the pool to build on, or null to build on the calling thread
+	 */
+	static PartialIndex build(EntryStore store, ForkJoinPool pool)
+	{
+		PartialIndex index = (pool != null && store.size() > PARALLEL_THRESHOLD)
+			? (PartialIndex)pool.invoke(new IndexTask(store, 0, store.size()))
+			: index(store, 0, store.size());
+		for (Iterator iter = index.postings.values().iterator(); iter.hasNext(); ) {
+			((Postings)iter.next()).trim();
+		}
+		return index;
+	}
+
+	// Number of entries below which a range is indexed by a single task
+	private static final int PARALLEL_THRESHOLD = 16384;
+
+	// Posting lists and name terms of a range of entries
+	static class PartialIndex
+	{
+		final HashMap postings = new HashMap();
+		final HashSet nameTerms = new HashSet();
+	}
+
+	private static PartialIndex index(EntryStore store, int from, int to)
+	{
+		PartialIndex index = new PartialIndex();
+		for (int doc = from; doc < to; doc++)
+		{
+			EmployeeDirectory.EmployeeDirectoryEntry emp = store.get(doc);
+			index.nameTerms.addAll(Arrays.asList(addField(index, doc, emp.getLastName(), BOOST_LAST_NAME)));
+			index.nameTerms.addAll(Arrays.asList(addField(index, doc, emp.getFirstName(), BOOST_FIRST_NAME)));
+			addField(index, doc, emailLocalPart(emp.getEmail()), BOOST_EMAIL);
+			addField(index, doc, emp.getPhone(), BOOST_PHONE);
+			addField(index, doc, emp.getPosition(), BOOST_POSITION);
+			addField(index, doc, emp.getDepartment(), BOOST_DEPARTMENT);
+		}
+		return index;
+	}
+
+	private static String[] addField(PartialIndex index, int doc, String value, float boost)
+	{
+		String[] terms = tokenize(value);
+		for (int i = 0; i < terms.length; i++)
+		{
+			Postings p = (Postings)index.postings.get(terms[i]);
+			if (p == null) {
+				p = new Postings();
+				index.postings.put(terms[i], p);
+			}
+			p.add(doc, boost);
+		}
+		return terms;
+	}
+
+	/**
+	 * Indexes a range of entries by splitting it in halves until the ranges
+	 * are small, then appends the posting lists of the upper half to those of
+	 * the lower half, which keeps every list in ascending order.
+	 */
+	private static class IndexTask extends RecursiveTask
+	{
+		private final EntryStore m_store;
+		private final int m_from;
+		private final int m_to;
+
+		IndexTask(EntryStore store, int from, int to)
+		{
+			m_store = store;
+			m_from = from;
+			m_to = to;
+		}
+
+		protected Object compute()
+		{
+			if (m_to - m_from <= PARALLEL_THRESHOLD)
+				return index(m_store, m_from, m_to);
+			int mid = (m_from + m_to) >>> 1;
+			IndexTask upper = new IndexTask(m_store, mid, m_to);
+			upper.fork();
+			PartialIndex lower = (PartialIndex)new IndexTask(m_store, m_from, mid).compute();
+			PartialIndex higher = (PartialIndex)upper.join();
+			for (Iterator iter = higher.postings.entrySet().iterator(); iter.hasNext(); )
+			{
+				Map.Entry e = (Map.Entry)iter.next();
+				Postings p = (Postings)lower.postings.get(e.getKey());
+				if (p == null)
+					lower.postings.put(e.getKey(), e.getValue());
+				else
+					p.append((Postings)e.getValue());
+			}
+			lower.nameTerms.addAll(higher.nameTerms);
+			return lower;
+		}
+	}
+
+	private static String emailLocalPart(String email)
+	{
+		if (email == null)
+			return null;
+		int at = email.indexOf('@');
+		return (at < 0) ? email : email.substring(0, at);
+	}
+
+	/**
+	 * Splits text into upper-cased terms at every character that is neither
+	 * a letter nor a digit.  Duplicate terms are dropped.
+	 */
+	static String[] tokenize(String text)
+	{
+		if (text == null)
+			return new String[0];
+		List terms = new ArrayList(4);
+		int len = text.length();
+		int start = -1;
+		for (int i = 0; i <= len; i++)
+		{
+			boolean inTerm = (i < len) && Character.isLetterOrDigit(text.charAt(i));
+			if (inTerm && start < 0) {
+				start = i;
+			} else if (!inTerm && start >= 0) {
+				String term = text.substring(start, i).toUpperCase();
+				if (!terms.contains(term))
+					terms.add(term);
+				start = -1;
+			}
+		}
+		return (String[])terms.toArray(new String[terms.size()]);
+	}
+
+	/**
+	 * @return the number of entries in the index
+	 */
+	public int size() { return m_store.size(); }
+
+	/**
+	 * Finds the entries containing every term of the query and returns the
+	 * best scoring ones.
+	 *
+	 * @param query the end user's query
+	 * @param maxHits the maximum number of hits to return
+	 * @param filter restricts the entries that may match, or null for all
+	 * @param fuzzy whether query terms also match similarly spelled names
+	 */
+	public Hits search(String query, int maxHits, Filter filter, boolean fuzzy)
+	{
+		return search(query, maxHits, filter, fuzzy, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Searches like {@link #search(String, int, Filter, boolean)}, returning
+	 * the hits found so far once the deadline has passed.
+	 *
+	 * @param deadline the time, in milliseconds as returned by
+	 * <code>System.currentTimeMillis()</code>, by which the search should
+	 * end, or <code>Long.MAX_VALUE</code>
+	 */
+	public Hits search(String query, int maxHits, Filter filter, boolean fuzzy, long deadline)
+	{
+		return search(query, maxHits, filter, fuzzy, deadline, null);
+	}
+
+	/**
+	 * Searches like {@link #search(String, int, Filter, boolean, long)},
+	 * leaving out the entries at the given positions.
+	 *
+	 * @param excluded the positions of the entries that may not match, or null
+	 */
+	Hits search(String query, int maxHits, Filter filter, boolean fuzzy, long deadline,
+			BitSet excluded)
+	{
+		String[] terms = tokenize(query);
+		if (terms.length == 0 || maxHits <= 0)
+			return NO_HITS;
+		Postings[] lists = new Postings[terms.length];
+		for (int i = 0; i < terms.length; i++)
+			lists[i] = m_terms.postings(terms[i]);
+		// Similarly spelled names are only merged in once every term's exact
+		// list is known, so a search out of time still has its exact matches
+		boolean complete = true;
+		if (fuzzy) {
+			for (int i = 0; i < terms.length; i++)
+				lists[i] = fuzzyPostings(terms[i], lists[i], deadline);
+			// Time only moves forward, so a merge skipped for the deadline
+			// means it has passed by now
+			complete = System.currentTimeMillis() < deadline;
+		}
+		for (int i = 0; i < terms.length; i++)
+		{
+			if (lists[i] == null)
+				return complete ? NO_HITS : NO_HITS_INCOMPLETE;
+		}
+		// Intersect starting from the shortest list, so the candidate set
+		// only shrinks from there.
+		sortBySize(lists);
+		int n = lists[0].size;
+		int[] docs = new int[n];
+		float[] scores = new float[n];
+		System.arraycopy(lists[0].docs, 0, docs, 0, n);
+		System.arraycopy(lists[0].weights, 0, scores, 0, n);
+		for (int i = 1; i < lists.length && n > 0; i++) {
+			n = intersect(docs, scores, n, lists[i]);
+		}
+		return select(docs, scores, n, maxHits, filter, excluded, deadline, complete);
+	}
+
+	/**
+	 * Adds an entry to the hits of an earlier search for the same query, if
+	 * the entry matches the query and is not already among them.  This lets
+	 * a search shared by many users be completed with an entry that only the
+	 * current user may see, without searching again.
+	 *
+	 * @param hits the result of {@link #search search()} for the query
+	 * @param id the id of the entry to add
+	 * @param query the query that produced the hits
+	 * @param maxHits the maximum number of hits to return
+	 * @param fuzzy whether the hits came from a fuzzy search
+	 * @return the hits including the entry, or the given hits if it does not
+	 * match
+	 */
+	public Hits include(Hits hits, String id, String query, int maxHits, boolean fuzzy)
+	{
+		int doc = m_store.find(id);
+		if (doc < 0 || maxHits <= 0)
+			return hits;
+		for (int i = 0; i < hits.m_docs.length; i++) {
+			if (hits.m_docs[i] == doc)
+				return hits;
+		}
+		String[] terms = tokenize(query);
+		if (terms.length == 0)
+			return hits;
+		float score = 0;
+		for (int i = 0; i < terms.length; i++)
+		{
+			Postings p = m_terms.postings(terms[i]);
+			if (fuzzy)
+				p = fuzzyPostings(terms[i], p, Long.MAX_VALUE);
+			int j = (p == null) ? -1 : Arrays.binarySearch(p.docs, 0, p.size, doc);
+			if (j < 0)
+				return hits;
+			score += p.weights[j];
+		}
+		return hits.with(doc, m_store.get(doc), score, maxHits);
+	}
+
+	/**
+	 * Combines the postings of a term with those of the name terms that are
+	 * spelled similarly, penalizing each entry by the number of edits of the
+	 * closest term it contains.  Once the deadline has passed, the names left
+	 * are skipped.
+	 *
+	 * @param exact the postings of the term itself, or null
+	 * @return the combined postings, or null if nothing matches the term
+	 */
+	private Postings fuzzyPostings(String term, Postings exact, long deadline)
+	{
+		Postings union = exact;
+		for (Iterator iter = m_terms.similarNames(term).iterator(); iter.hasNext(); )
+		{
+			if (deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline)
+				break;
+			FuzzyTermIndex.Match match = (FuzzyTermIndex.Match)iter.next();
+			if (match.distance == 0)
+				continue;
+			Postings p = m_terms.postings(match.term);
+			union = (union == null)
+				? penalize(p, match.distance)
+				: merge(union, penalize(p, match.distance));
+		}
+		return union;
+	}
+
+	private static Postings penalize(Postings p, int distance)
+	{
+		Postings penalized = new Postings();
+		penalized.docs = p.docs;
+		penalized.size = p.size;
+		penalized.weights = new float[p.size];
+		for (int i = 0; i < p.size; i++)
+			penalized.weights[i] = p.weights[i] - EDIT_PENALTY * distance;
+		return penalized;
+	}
+
+	// Union of two posting lists, keeping the better weight of shared entries
+	private static Postings merge(Postings a, Postings b)
+	{
+		Postings m = new Postings();
+		m.docs = new int[a.size + b.size];
+		m.weights = new float[a.size + b.size];
+		int i = 0, j = 0;
+		while (i < a.size || j < b.size)
+		{
+			if (j == b.size || (i < a.size && a.docs[i] < b.docs[j])) {
+				m.docs[m.size] = a.docs[i];
+				m.weights[m.size++] = a.weights[i++];
+			} else if (i == a.size || b.docs[j] < a.docs[i]) {
+				m.docs[m.size] = b.docs[j];
+				m.weights[m.size++] = b.weights[j++];
+			} else {
+				m.docs[m.size] = a.docs[i];
+				m.weights[m.size++] = Math.max(a.weights[i++], b.weights[j++]);
+			}
+		}
+		return m;
+	}
+
+	private static void sortBySize(Postings[] lists)
+	{
+		for (int i = 1; i < lists.length; i++)
+		{
+			Postings p = lists[i];
+			int j = i - 1;
+			while (j >= 0 && lists[j].size > p.size) {
+				lists[j + 1] = lists[j];
+				j--;
+			}
+			lists[j + 1] = p;
+		}
+	}
+
+	/**
+	 * Retains the candidates that also appear in the posting list, adding
+	 * their weight in it to their score.
+	 *
+	 * @return the number of candidates retained
+	 */
+	private static int intersect(int[] docs, float[] scores, int n, Postings p)
+	{
+		int kept = 0;
+		int j = 0;
+		for (int i = 0; i < n && j < p.size; i++)
+		{
+			int doc = docs[i];
+			while (j < p.size && p.docs[j] < doc)
+				j++;
+			if (j < p.size && p.docs[j] == doc) {
+				docs[kept] = doc;
+				scores[kept] = scores[i] + p.weights[j];
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Selects the best <code>k</code> candidates that pass the filter using a
+	 * min-heap of size <code>k</code>, then orders them best first.  Once the
+	 * deadline has passed, the candidates left are dropped.
+	 *
+	 * @param complete false if the candidates are already known to be
+	 * incomplete
+	 */
+	private Hits select(int[] docs, float[] scores, int n, int k, Filter filter,
+			BitSet excluded, long deadline, boolean complete)
+	{
+		int[] heapDocs = new int[Math.min(k, n)];
+		float[] heapScores = new float[heapDocs.length];
+		int heapSize = 0;
+		int matchCount = 0;
+		for (int i = 0; i < n; i++)
+		{
+			if (deadline != Long.MAX_VALUE && i % DEADLINE_CHECK_INTERVAL == DEADLINE_CHECK_INTERVAL - 1 &&
+					System.currentTimeMillis() >= deadline) {
+				complete = false;
+				break;
+			}
+			int doc = docs[i];
+			if (excluded != null && excluded.get(doc))
+				continue;
+			if (filter != null && !filter.accept(m_store.get(doc)))
+				continue;
+			matchCount++;
+			float score = scores[i];
+			if (heapSize < heapDocs.length) {
+				heapDocs[heapSize] = doc;
+				heapScores[heapSize] = score;
+				siftUp(heapDocs, heapScores, heapSize++);
+			} else if (heapDocs.length > 0 && better(score, doc, heapScores[0], heapDocs[0])) {
+				heapDocs[0] = doc;
+				heapScores[0] = score;
+				siftDown(heapDocs, heapScores, heapSize);
+			}
+		}
+		// Drain the heap worst first into the tail of the result arrays.
+		int[] rankedDocs = new int[heapSize];
+		EmployeeDirectory.EmployeeDirectoryEntry[] entries =
+			new EmployeeDirectory.EmployeeDirectoryEntry[heapSize];
+		float[] ranked = new float[heapSize];
+		for (int i = heapSize - 1; i >= 0; i--)
+		{
+			rankedDocs[i] = heapDocs[0];
+			entries[i] = m_store.get(heapDocs[0]);
+			ranked[i] = heapScores[0];
+			heapDocs[0] = heapDocs[i];
+			heapScores[0] = heapScores[i];
+			siftDown(heapDocs, heapScores, i);
+		}
+		return new Hits(rankedDocs, entries, ranked, matchCount, complete);
+	}
+
+	// Higher scores rank first; among equal scores the earlier entry wins.
+	private static boolean better(float score, int doc, float otherScore, int otherDoc)
+	{
+		return (score > otherScore) || (score == otherScore && doc < otherDoc);
+	}
+
+	private static void siftUp(int[] docs, float[] scores, int i)
+	{
+		while (i > 0)
+		{
+			int parent = (i - 1) >> 1;
+			if (!better(scores[parent], docs[parent], scores[i], docs[i]))
+				break;
+			swap(docs, scores, i, parent);
+			i = parent;
+		}
+	}
+
+	private static void siftDown(int[] docs, float[] scores, int size)
+	{
+		int i = 0;
+		while (true)
+		{
+			int worst = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && better(scores[worst], docs[worst], scores[left], docs[left]))
+				worst = left;
+			if (right < size && better(scores[worst], docs[worst], scores[right], docs[right]))
+				worst = right;
+			if (worst == i)
+				return;
+			swap(docs, scores, i, worst);
+			i = worst;
+		}
+	}
+
+	private static void swap(int[] docs, float[] scores, int i, int j)
+	{
+		int d = docs[i]; docs[i] = docs[j]; docs[j] = d;
+		float s = scores[i]; scores[i] = scores[j]; scores[j] = s;
+	}
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable version of the employee directory together with its lookup
+ * indexes.
+ * <p>
+ * A snapshot is fully built before it is published with
+ * {@link EmployeeDirectory#publish EmployeeDirectory.publish()}, and is never
+ * modified afterwards, so any number of threads can read it without locking.
+ * A request should take the current snapshot once and use it throughout, so
+ * that everything it reads comes from the same version of the directory.
+ * <p>
+ * Changes are applied by {@link #apply apply()} without rebuilding the
+ * indexes: the new snapshot shares the store and indexes of the old one,
+ * hiding the rows of updated and deleted entries, and indexes only the added
+ * and updated entries, whose hits are merged with those of the shared
+ * indexes.  Once the changes are a sizable part of the directory, everything
+ * is rebuilt into a single store and index again.
+ */
+public class DirectorySnapshot {
+
+	// Changed entries above which apply() rebuilds the whole snapshot
+	private static final int MIN_REBUILD_CHANGES = 1024;
+
+	/**
+	 * Orders entries by last name, first name and id, which is also the order
+	 * in which equally scored search hits are returned.
+	 */
+	static final Comparator ORDER = new Comparator() {
+		public int compare(Object o1, Object o2)
+		{
+			EmployeeDirectory.EmployeeDirectoryEntry e1 = (EmployeeDirectory.EmployeeDirectoryEntry)o1;
+			EmployeeDirectory.EmployeeDirectoryEntry e2 = (EmployeeDirectory.EmployeeDirectoryEntry)o2;
+			int c = e1.getLastName().compareToIgnoreCase(e2.getLastName());
+			if (c == 0)
+				c = e1.getFirstName().compareToIgnoreCase(e2.getFirstName());
+			if (c == 0)
+				c = e1.getId().compareTo(e2.getId());
+			return c;
+		}
+	};
+
+	private static final AtomicLong s_generations = new AtomicLong();
+
+	private final long m_generation;
+	private final EntryStore m_store;
+	private final DirectorySearchIndex m_searchIndex;
+	// When changes were applied on top of the store: the rows of the store
+	// that were updated or deleted, the changed entries by id (null for a
+	// deleted one) and a snapshot of the added and updated entries; all null
+	// otherwise
+	private final BitSet m_hidden;
+	private final HashMap m_changes;
+	private final DirectorySnapshot m_delta;
+	private final int m_size;
+	// Generation of the snapshot this one was made from by apply(), and an
+	// index of the old and new versions of the entries that were changed
+	private final long m_parentGeneration;
+	private final DirectorySearchIndex m_changedEntries;
+	// Link to the ResultFragmentCache of this snapshot's entries
+	private final ConcurrentHashMap m_fragments = new ConcurrentHashMap();
+
+	/**
+	 * The number of links a snapshot keeps a {@link ResultFragmentCache} for
+	 * at most, see {@link #fragments fragments()}.
+	 */
+	public static final int MAX_FRAGMENT_LINKS = 8;
+
+	/**
+	 * Builds a snapshot, and its indexes, holding the given entries.
+	 *
+	 * @param entries the {@link EmployeeDirectory.EmployeeDirectoryEntry}
+	 * objects of the directory; of entries with the same id the last is kept
+	 */
+	public DirectorySnapshot(Collection entries)
+	{
+		this(entries, null, false);
+	}
+
+	/**
+	 * Builds a snapshot like {@link #DirectorySnapshot(Collection)}, building
+	 * its indexes concurrently on the given pool.
+	 *
+	 * @param pool the pool to build on, or null to build on the calling thread
+	 * @param columnar whether to keep the entries in a compact
+	 * {@link ColumnarEntryStore} rather than as the given objects
+	 */
+	public DirectorySnapshot(Collection entries, ForkJoinPool pool, boolean columnar)
+	{
+		this(store(rows(entries), pool, columnar), pool);
+	}
+
+	private DirectorySnapshot(EntryStore store, ForkJoinPool pool)
+	{
+		this(store, new DirectorySearchIndex(store, pool));
+	}
+
+	/**
+	 * Creates a snapshot over a store and index that were built before, as
+	 * read from a {@link DirectoryIndexFile}.
+	 */
+	DirectorySnapshot(EntryStore store, DirectorySearchIndex searchIndex)
+	{
+		this(store, searchIndex, null, null, null, 0, null);
+	}
+
+	private DirectorySnapshot(EntryStore store, DirectorySearchIndex searchIndex,
+			BitSet hidden, HashMap changes, DirectorySnapshot delta,
+			long parentGeneration, DirectorySearchIndex changedEntries)
+	{
+		m_generation = s_generations.incrementAndGet();
+		m_store = store;
+		m_searchIndex = searchIndex;
+		m_hidden = hidden;
+		m_changes = changes;
+		m_delta = delta;
+		m_size = (delta == null) ? store.size()
+			: store.size() - hidden.cardinality() + delta.size();
+		m_parentGeneration = parentGeneration;
+		m_changedEntries = changedEntries;
+	}
+
+	private static EntryStore store(EmployeeDirectory.EmployeeDirectoryEntry[] rows,
+			ForkJoinPool pool, boolean columnar)
+	{
+		return columnar
+			? (EntryStore)new ColumnarEntryStore(rows, pool)
+			: new ObjectEntryStore(rows);
+	}
+
+	/**
+	 * Makes a snapshot with changes applied to this one.  Additions and
+	 * updates of an entry both replace any entry with the same id, and
+	 * deletions of entries that don't exist are ignored.  Cached results of
+	 * entries that didn't change carry over to the new snapshot.
+	 *
+	 * @param changes the {@link DirectoryChange}s to apply, in order
+	 * @param pool the pool to rebuild the indexes on, should the changes grow
+	 * large enough, or null to rebuild on the calling thread
+	 */
+	public DirectorySnapshot apply(List changes, ForkJoinPool pool)
+	{
+		HashMap changed = (m_changes != null) ? new HashMap(m_changes) : new HashMap();
+		BitSet hidden = (m_hidden != null) ? (BitSet)m_hidden.clone() : new BitSet();
+		Set changedIds = new HashSet();
+		List versions = new ArrayList();
+		for (Iterator iter = changes.iterator(); iter.hasNext(); )
+		{
+			DirectoryChange change = (DirectoryChange)iter.next();
+			String id = change.getId();
+			int row = m_store.find(id);
+			EmployeeDirectory.EmployeeDirectoryEntry old = changed.containsKey(id)
+				? (EmployeeDirectory.EmployeeDirectoryEntry)changed.get(id)
+				: (row >= 0) ? m_store.get(row) : null;
+			if (old != null)
+				versions.add(old);
+			if (change.getType() == DirectoryChange.DELETE) {
+				if (row >= 0)
+					changed.put(id, null);
+				else
+					changed.remove(id);
+			} else {
+				versions.add(change.getEntry());
+				changed.put(id, change.getEntry());
+			}
+			if (row >= 0)
+				hidden.set(row);
+			changedIds.add(id);
+		}
+		DirectorySearchIndex changedEntries = new DirectorySearchIndex(
+				(EmployeeDirectory.EmployeeDirectoryEntry[])versions.toArray(
+						new EmployeeDirectory.EmployeeDirectoryEntry[versions.size()]));
+
+		DirectorySnapshot next;
+		if (changed.isEmpty()) {
+			next = new DirectorySnapshot(m_store, m_searchIndex, null, null, null,
+					m_generation, changedEntries);
+		} else if (changed.size() > Math.max(MIN_REBUILD_CHANGES, m_store.size() / 16)) {
+			List entries = new ArrayList(m_size);
+			for (Iterator iter = iterator(); iter.hasNext(); )
+			{
+				EmployeeDirectory.EmployeeDirectoryEntry emp = (EmployeeDirectory.EmployeeDirectoryEntry)iter.next();
+				if (!changed.containsKey(emp.getId()))
+					entries.add(emp);
+			}
+			for (Iterator iter = changed.values().iterator(); iter.hasNext(); )
+			{
+				Object emp = iter.next();
+				if (emp != null)
+					entries.add(emp);
+			}
+			EntryStore store = store(rows(entries), pool, m_store instanceof ColumnarEntryStore);
+			next = new DirectorySnapshot(store, new DirectorySearchIndex(store, pool),
+					null, null, null, m_generation, changedEntries);
+		} else {
+			List entries = new ArrayList(changed.size());
+			for (Iterator iter = changed.values().iterator(); iter.hasNext(); )
+			{
+				Object emp = iter.next();
+				if (emp != null)
+					entries.add(emp);
+			}
+			next = new DirectorySnapshot(m_store, m_searchIndex, hidden, changed,
+					new DirectorySnapshot(entries), m_generation, changedEntries);
+		}
+		for (Iterator iter = m_fragments.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry e = (Map.Entry)iter.next();
+			next.m_fragments.put(e.getKey(),
+					new ResultFragmentCache((ResultFragmentCache)e.getValue(), changedIds));
+		}
+		return next;
+	}
+
+	/**
+	 * Tells whether the results of a query may differ between a snapshot and
+	 * this one, so that responses cached for the query must be dropped.
+	 *
+	 * @return false only if this snapshot was made from <code>previous</code>
+	 * by {@link #apply apply()} and none of the entries it changed, before or
+	 * after the change, matches the query
+	 */
+	public boolean mayChangeResults(DirectorySnapshot previous, String query, boolean fuzzy)
+	{
+		if (m_changedEntries == null || previous == null ||
+				previous.m_generation != m_parentGeneration)
+			return true;
+		return m_changedEntries.search(query, 1, null, fuzzy).getMatchCount() > 0;
+	}
+
+	/**
+	 * @return a number identifying this snapshot, larger than that of every
+	 * snapshot built before it
+	 */
+	public long getGeneration()
+	{
+		return m_generation;
+	}
+	/**
+	 * @return an Iterator over the entries, in order of last name, first name
+	 * and id
+	 */
+	public Iterator iterator()
+	{
+		final Iterator changed = (m_delta != null) ? m_delta.iterator() : null;
+		return new Iterator() {
+			private int m_row = nextRow(0);
+			private EmployeeDirectory.EmployeeDirectoryEntry m_change = nextChange();
+			public boolean hasNext() { return m_row < m_store.size() || m_change != null; }
+			public Object next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				if (m_row < m_store.size()) {
+					EmployeeDirectory.EmployeeDirectoryEntry emp = m_store.get(m_row);
+					if (m_change == null || ORDER.compare(emp, m_change) < 0) {
+						m_row = nextRow(m_row + 1);
+						return emp;
+					}
+				}
+				EmployeeDirectory.EmployeeDirectoryEntry emp = m_change;
+				m_change = nextChange();
+				return emp;
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+			private int nextRow(int row)
+			{
+				return (m_hidden != null) ? m_hidden.nextClearBit(row) : row;
+			}
+			private EmployeeDirectory.EmployeeDirectoryEntry nextChange()
+			{
+				return (changed != null && changed.hasNext())
+					? (EmployeeDirectory.EmployeeDirectoryEntry)changed.next()
+					: null;
+			}
+		};
+	}
+	public int size()
+	{
+		return m_size;
+	}
+	public EmployeeDirectory.EmployeeDirectoryEntry getEmployee(String id)
+	{
+		if (m_changes != null && m_changes.containsKey(id))
+			return (EmployeeDirectory.EmployeeDirectoryEntry)m_changes.get(id);
+		int row = m_store.find(id);
+		return (row < 0) ? null : m_store.get(row);
+	}
+	/**
+	 * @see EmployeeDirectory#findByLastName
+	 */
+	public List findByLastName(String query)
+	{
+		List found = m_store.findByLastName(EmployeeDirectory.normalize(query));
+		if (m_delta == null)
+			return found;
+		List merged = new ArrayList(found.size());
+		for (Iterator iter = found.iterator(); iter.hasNext(); )
+		{
+			EmployeeDirectory.EmployeeDirectoryEntry emp = (EmployeeDirectory.EmployeeDirectoryEntry)iter.next();
+			if (!m_changes.containsKey(emp.getId()))
+				merged.add(emp);
+		}
+		merged.addAll(m_delta.findByLastName(query));
+		Collections.sort(merged, ORDER);
+		return Collections.unmodifiableList(merged);
+	}
+	/**
+	 * @see EmployeeDirectory#search(String, int, DirectorySearchIndex.Filter, boolean)
+	 */
+	public DirectorySearchIndex.Hits search(String query, int maxHits,
+			DirectorySearchIndex.Filter filter, boolean fuzzy)
+	{
+		return search(query, maxHits, filter, fuzzy, Long.MAX_VALUE);
+	}
+	/**
+	 * @see DirectorySearchIndex#search(String, int, DirectorySearchIndex.Filter, boolean, long)
+	 */
+	public DirectorySearchIndex.Hits search(String query, int maxHits,
+			DirectorySearchIndex.Filter filter, boolean fuzzy, long deadline)
+	{
+		if (m_delta == null)
+			return m_searchIndex.search(query, maxHits, filter, fuzzy, deadline);
+		return DirectorySearchIndex.Hits.merge(
+				m_searchIndex.search(query, maxHits, filter, fuzzy, deadline, m_hidden),
+				m_delta.search(query, maxHits, filter, fuzzy, deadline), m_store.size(), maxHits, ORDER);
+	}
+	/**
+	 * @see DirectorySearchIndex#include
+	 */
+	public DirectorySearchIndex.Hits include(DirectorySearchIndex.Hits hits,
+			String id, String query, int maxHits, boolean fuzzy)
+	{
+		if (m_delta == null)
+			return m_searchIndex.include(hits, id, query, maxHits, fuzzy);
+		for (int i = 0; i < hits.size(); i++) {
+			if (hits.get(i).getId().equals(id))
+				return hits;
+		}
+		// Score the entry on its own, then rank it among the hits
+		boolean changed = m_changes.containsKey(id);
+		DirectorySearchIndex.Hits hit = changed
+			? m_delta.include(DirectorySearchIndex.NO_HITS, id, query, 1, fuzzy)
+			: m_searchIndex.include(DirectorySearchIndex.NO_HITS, id, query, 1, fuzzy);
+		if (hit.size() == 0 || maxHits <= 0)
+			return hits;
+		return DirectorySearchIndex.Hits.merge(hits, hit, changed ? m_store.size() : 0,
+				maxHits, ORDER);
+	}
+	/**
+	 * Returns the cache of this snapshot's entries encoded as results linking
+	 * to the given URL.  The cache goes away with the snapshot, so results
+	 * encoded from a replaced directory are never served.  Once the snapshot
+	 * holds {@link #MAX_FRAGMENT_LINKS} caches, a new link gets an empty
+	 * cache that is not kept.
+	 */
+	public ResultFragmentCache fragments(String link)
+	{
+		ResultFragmentCache cache = (ResultFragmentCache)m_fragments.get(link);
+		if (cache == null) {
+			ResultFragmentCache created = new ResultFragmentCache(link);
+			if (m_fragments.size() >= MAX_FRAGMENT_LINKS)
+				return created;
+			cache = (ResultFragmentCache)m_fragments.putIfAbsent(link, created);
+			if (cache == null)
+				cache = created;
+		}
+		return cache;
+	}
+
+	/**
+	 * Orders the entries as by {@link #ORDER}.  Of entries with the same id
+	 * only the last is kept.
+	 */
+	static EmployeeDirectory.EmployeeDirectoryEntry[] rows(Collection entries)
+	{
+		HashMap byId = new HashMap(entries.size() * 2);
+		for (Iterator iter = entries.iterator(); iter.hasNext(); )
+		{
+			EmployeeDirectory.EmployeeDirectoryEntry emp = (EmployeeDirectory.EmployeeDirectoryEntry)iter.next();
+			byId.put(emp.getId(), emp);
+		}
+		EmployeeDirectory.EmployeeDirectoryEntry[] sorted = (EmployeeDirectory.EmployeeDirectoryEntry[])byId.values()
+			.toArray(new EmployeeDirectory.EmployeeDirectoryEntry[byId.size()]);
+		Arrays.sort(sorted, ORDER);
+		return sorted;
+	}
+}
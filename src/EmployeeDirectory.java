@@ -1,105 +1,255 @@
-/*
- * Copyright (C) 2006 Google Inc.
- * 
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- * 
- *      http://www.apache.org/licenses/LICENSE-2.0
- *      
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-import java.util.HashMap;
-import java.util.Iterator;
-
-/**
- * Class encapsulates a directory of employee contact,
- * payroll, and organizational information.
- */
-public class EmployeeDirectory {
-	
-	public static class EmployeeDirectoryEntry
-	{
-		public EmployeeDirectoryEntry( String _id,
-				String _firstName, String _lastName,
-				String _phone, String _email, String _position,
-				String _department, String _building, String _office)
-		{
-			id = _id;
-			firstName = _firstName;
-			lastName = _lastName;
-			phone = _phone;
-			email = _email;
-			position = _position;
-			department = _department;
-			building = _building;
-			office = _office;
-		}
-		public String id;
-		public String firstName;
-		public String lastName;
-		public String phone;
-		public String email;
-		public String position;
-		public String department;
-		public String building;
-		public String office;
-	}
-	
-	private static HashMap m_directory = null;
-	private static HashMap directory()
-	{
-		if (m_directory == null)
-		{
-			m_directory = new HashMap();
-			m_directory.put("jsmith",  new EmployeeDirectoryEntry("jsmith", "James", "Smith", "(408) 393-3160", "jsmith@acme.com", "Associate", "Marketing", "3214 Market St", "101A"));
-			m_directory.put("jjohnson",  new EmployeeDirectoryEntry("jjohnson", "John", "Johnson", "(408) 393-3161", "jjohnson@acme.com", "Associate", "Marketing", "3214 Market St", "101B"));
-			m_directory.put("rwilliams",  new EmployeeDirectoryEntry("rwilliams", "Robert", "Williams", "(408) 393-3162", "rwilliams@acme.com", "Sr Associate", "Marketing", "3214 Market St", "102A"));
-			m_directory.put("mjones",  new EmployeeDirectoryEntry("mjones", "Michael", "Jones", "(408) 393-3163", "mjones@acme.com", "Contractor", "Marketing", "3214 Market St", "102B"));
-			m_directory.put("wbrown",  new EmployeeDirectoryEntry("wbrown", "William", "Brown", "(408) 393-3164", "wbrown@acme.com", "Contractor", "Marketing", "3214 Market St", "103A"));
-			m_directory.put("sbrown",  new EmployeeDirectoryEntry("sbrown", "Susan", "Brown", "(408) 393-3165", "sbrown@acme.com", "Sr Associate", "Marketing", "3214 Market St", "103B"));
-			m_directory.put("rmiller",  new EmployeeDirectoryEntry("rmiller", "Richard", "Miller", "(408) 393-3166", "rmiller@acme.com", "Sr Manager", "Marketing", "3214 Market St", "104A"));
-			m_directory.put("cwilson",  new EmployeeDirectoryEntry("cwilson", "Charles", "Wilson", "(408) 393-3167", "cwilson@acme.com", "Jr Associate", "Sales", "3214 Market St", "201A"));
-			m_directory.put("jmoore",  new EmployeeDirectoryEntry("jmoore", "Joseph", "Moore", "(408) 393-3168", "jmoore@acme.com", "Jr Associate", "Sales", "3214 Market St", "201B"));
-			m_directory.put("ttaylor",  new EmployeeDirectoryEntry("ttaylor", "Thomas", "Taylor", "(408) 393-3169", "ttaylor@acme.com", "Associate", "Sales", "3214 Market St", "202A"));
-			m_directory.put("canderson",  new EmployeeDirectoryEntry("canderson", "Christopher", "Anderson", "(408) 393-3170", "canderson@acme.com", "Manager", "Sales", "3214 Market St", "202B"));
-			m_directory.put("dthomas",  new EmployeeDirectoryEntry("dthomas", "Daniel", "Thomas", "(408) 393-3171", "dthomas@acme.com", "Sr Manager", "Sales", "3214 Market St", "203A"));
-			m_directory.put("pjackson",  new EmployeeDirectoryEntry("pjackson", "Paul", "Jackson", "(408) 393-3172", "pjackson@acme.com", "Director", "Sales", "3214 Market St", "203B"));
-			m_directory.put("mwhite",  new EmployeeDirectoryEntry("mwhite", "Mark", "White", "(408) 393-3173", "mwhite@acme.com", "Director", "Sales", "3214 Market St", "204A"));
-			m_directory.put("dharris",  new EmployeeDirectoryEntry("dharris", "Donald", "Harris", "(408) 393-3174", "dharris@acme.com", "Associate", "Support", "1900 Chestnut Ave", "2190"));
-			m_directory.put("gmartin",  new EmployeeDirectoryEntry("gmartin", "George", "Martin", "(408) 393-3175", "gmartin@acme.com", "Associate", "Support", "1900 Chestnut Ave", "2190"));
-			m_directory.put("kthompson",  new EmployeeDirectoryEntry("kthompson", "Kenneth", "Thompson", "(408) 393-3176", "kthompson@acme.com", "Sr Associate", "Support", "1900 Chestnut Ave", "2190"));
-			m_directory.put("sgarcia",  new EmployeeDirectoryEntry("sgarcia", "Steven", "Garcia", "(408) 393-3177", "sgarcia@acme.com", "Sr Associate", "Support", "1900 Chestnut Ave", "2190"));
-			m_directory.put("emartinez",  new EmployeeDirectoryEntry("emartinez", "Edward", "Martinez", "(408) 393-3178", "emartinez@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
-			m_directory.put("brobinson",  new EmployeeDirectoryEntry("brobinson", "Brian", "Robinson", "(408) 393-3179", "brobinson@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
-			m_directory.put("rbrown",  new EmployeeDirectoryEntry("rbrown", "Ronald", "Brown", "(408) 393-3180", "rbrown@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
-			m_directory.put("arodriguez",  new EmployeeDirectoryEntry("arodriguez", "Anthony", "Rodriguez", "(408) 393-3181", "arodriguez@acme.com", "Sr Manager", "Support", "1900 Chestnut Ave", "2192"));
-			m_directory.put("klewis",  new EmployeeDirectoryEntry("klewis", "Kevin", "Lewis", "(408) 393-3182", "klewis@acme.com", "Sr Director", "Engineering", "1900 Chestnut Ave", "3011"));
-			m_directory.put("jlee",  new EmployeeDirectoryEntry("jlee", "Jason", "Lee", "(408) 393-3183", "jlee@acme.com", "Sr Developer", "Engineering", "1900 Chestnut Ave", "3012"));
-			m_directory.put("jwalker",  new EmployeeDirectoryEntry("jwalker", "Jeff", "Walker", "(408) 393-3184", "jwalker@acme.com", "Developer", "Engineering", "1900 Chestnut Ave", "3013"));
-			m_directory.put("jhall",  new EmployeeDirectoryEntry("jhall", "Jennifer", "Hall", "(408) 393-3185", "jhall@acme.com", "Sr Developer", "Engineering", "1900 Chestnut Ave", "3022"));
-			m_directory.put("mallen",  new EmployeeDirectoryEntry("mallen", "Maria", "Allen", "(408) 393-3186", "mallen@acme.com", "Manager", "Engineering", "1900 Chestnut Ave", "3023"));
-			m_directory.put("dyoung",  new EmployeeDirectoryEntry("dyoung", "David", "Young", "(408) 393-3187", "dyoung@acme.com", "Tech Lead", "Engineering", "1900 Chestnut Ave", "3026"));
-			m_directory.put("mhernandez",  new EmployeeDirectoryEntry("mhernandez", "Margaret", "Hernandez", "(408) 393-3188", "mhernandez@acme.com", "Systems Admin", "Operations", "1900 Chestnut Ave", "3030"));
-			m_directory.put("dking", new EmployeeDirectoryEntry("dking", "Dorothy", "King", "(408) 393-3189", "dking@acme.com", "Systems Admin", "Operations", "1900 Chestnut", "3037"));
-		}
-		return m_directory;
-	}
-	public static Iterator iterator()
-	{
-		return directory().values().iterator();
-	}
-	public static int size()
-	{
-		return directory().size();
-	}
-	public static EmployeeDirectoryEntry getEmployee(String id)
-	{
-		return (EmployeeDirectoryEntry)directory().get(id);
-	}
-}
+/*
+ * Copyright (C) 2006 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Class encapsulates a directory of employee contact,
+ * payroll, and organizational information.
+ */
+public class EmployeeDirectory {
+	
+	/**
+	 * A person's directory record.  Subclasses may compute the fields on
+	 * demand, like the lightweight views over a {@link ColumnarEntryStore},
+	 * in which case they override every getter.
+	 */
+	public static class EmployeeDirectoryEntry
+	{
+		public EmployeeDirectoryEntry( String _id,
+				String _firstName, String _lastName,
+				String _phone, String _email, String _position,
+				String _department, String _building, String _office)
+		{
+			id = _id;
+			firstName = _firstName;
+			lastName = _lastName;
+			phone = _phone;
+			email = _email;
+			position = _position;
+			department = _department;
+			building = _building;
+			office = _office;
+		}
+		/**
+		 * Constructor for subclasses that override every getter.
+		 */
+		protected EmployeeDirectoryEntry()
+		{
+			this(null, null, null, null, null, null, null, null, null);
+		}
+		private final String id;
+		private final String firstName;
+		private final String lastName;
+		private final String phone;
+		private final String email;
+		private final String position;
+		private final String department;
+		private final String building;
+		private final String office;
+
+		public String getId() { return id; }
+		public String getFirstName() { return firstName; }
+		public String getLastName() { return lastName; }
+		public String getPhone() { return phone; }
+		public String getEmail() { return email; }
+		public String getPosition() { return position; }
+		public String getDepartment() { return department; }
+		public String getBuilding() { return building; }
+		public String getOffice() { return office; }
+	}
+	
+	/**
+	 * Receives the snapshots published by {@link EmployeeDirectory#publish}
+	 * and {@link EmployeeDirectory#apply}.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called after <code>current</code> has replaced <code>previous</code>.
+		 */
+		void directoryChanged(DirectorySnapshot previous, DirectorySnapshot current);
+	}
+
+	// The published version of the directory.  Snapshots are immutable, so
+	// readers only ever read this reference and a new version replaces the old
+	// one as a whole.
+	private static final AtomicReference s_current =
+		new AtomicReference(new DirectorySnapshot(sampleEntries()));
+	private static final CopyOnWriteArrayList s_listeners = new CopyOnWriteArrayList();
+
+	private static List sampleEntries()
+	{
+		ArrayList entries = new ArrayList();
+		entries.add(new EmployeeDirectoryEntry("jsmith", "James", "Smith", "(408) 393-3160", "jsmith@acme.com", "Associate", "Marketing", "3214 Market St", "101A"));
+		entries.add(new EmployeeDirectoryEntry("jjohnson", "John", "Johnson", "(408) 393-3161", "jjohnson@acme.com", "Associate", "Marketing", "3214 Market St", "101B"));
+		entries.add(new EmployeeDirectoryEntry("rwilliams", "Robert", "Williams", "(408) 393-3162", "rwilliams@acme.com", "Sr Associate", "Marketing", "3214 Market St", "102A"));
+		entries.add(new EmployeeDirectoryEntry("mjones", "Michael", "Jones", "(408) 393-3163", "mjones@acme.com", "Contractor", "Marketing", "3214 Market St", "102B"));
+		entries.add(new EmployeeDirectoryEntry("wbrown", "William", "Brown", "(408) 393-3164", "wbrown@acme.com", "Contractor", "Marketing", "3214 Market St", "103A"));
+		entries.add(new EmployeeDirectoryEntry("sbrown", "Susan", "Brown", "(408) 393-3165", "sbrown@acme.com", "Sr Associate", "Marketing", "3214 Market St", "103B"));
+		entries.add(new EmployeeDirectoryEntry("rmiller", "Richard", "Miller", "(408) 393-3166", "rmiller@acme.com", "Sr Manager", "Marketing", "3214 Market St", "104A"));
+		entries.add(new EmployeeDirectoryEntry("cwilson", "Charles", "Wilson", "(408) 393-3167", "cwilson@acme.com", "Jr Associate", "Sales", "3214 Market St", "201A"));
+		entries.add(new EmployeeDirectoryEntry("jmoore", "Joseph", "Moore", "(408) 393-3168", "jmoore@acme.com", "Jr Associate", "Sales", "3214 Market St", "201B"));
+		entries.add(new EmployeeDirectoryEntry("ttaylor", "Thomas", "Taylor", "(408) 393-3169", "ttaylor@acme.com", "Associate", "Sales", "3214 Market St", "202A"));
+		entries.add(new EmployeeDirectoryEntry("canderson", "Christopher", "Anderson", "(408) 393-3170", "canderson@acme.com", "Manager", "Sales", "3214 Market St", "202B"));
+		entries.add(new EmployeeDirectoryEntry("dthomas", "Daniel", "Thomas", "(408) 393-3171", "dthomas@acme.com", "Sr Manager", "Sales", "3214 Market St", "203A"));
+		entries.add(new EmployeeDirectoryEntry("pjackson", "Paul", "Jackson", "(408) 393-3172", "pjackson@acme.com", "Director", "Sales", "3214 Market St", "203B"));
+		entries.add(new EmployeeDirectoryEntry("mwhite", "Mark", "White", "(408) 393-3173", "mwhite@acme.com", "Director", "Sales", "3214 Market St", "204A"));
+		entries.add(new EmployeeDirectoryEntry("dharris", "Donald", "Harris", "(408) 393-3174", "dharris@acme.com", "Associate", "Support", "1900 Chestnut Ave", "2190"));
+		entries.add(new EmployeeDirectoryEntry("gmartin", "George", "Martin", "(408) 393-3175", "gmartin@acme.com", "Associate", "Support", "1900 Chestnut Ave", "2190"));
+		entries.add(new EmployeeDirectoryEntry("kthompson", "Kenneth", "Thompson", "(408) 393-3176", "kthompson@acme.com", "Sr Associate", "Support", "1900 Chestnut Ave", "2190"));
+		entries.add(new EmployeeDirectoryEntry("sgarcia", "Steven", "Garcia", "(408) 393-3177", "sgarcia@acme.com", "Sr Associate", "Support", "1900 Chestnut Ave", "2190"));
+		entries.add(new EmployeeDirectoryEntry("emartinez", "Edward", "Martinez", "(408) 393-3178", "emartinez@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
+		entries.add(new EmployeeDirectoryEntry("brobinson", "Brian", "Robinson", "(408) 393-3179", "brobinson@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
+		entries.add(new EmployeeDirectoryEntry("rbrown", "Ronald", "Brown", "(408) 393-3180", "rbrown@acme.com", "Manager", "Support", "1900 Chestnut Ave", "2192"));
+		entries.add(new EmployeeDirectoryEntry("arodriguez", "Anthony", "Rodriguez", "(408) 393-3181", "arodriguez@acme.com", "Sr Manager", "Support", "1900 Chestnut Ave", "2192"));
+		entries.add(new EmployeeDirectoryEntry("klewis", "Kevin", "Lewis", "(408) 393-3182", "klewis@acme.com", "Sr Director", "Engineering", "1900 Chestnut Ave", "3011"));
+		entries.add(new EmployeeDirectoryEntry("jlee", "Jason", "Lee", "(408) 393-3183", "jlee@acme.com", "Sr Developer", "Engineering", "1900 Chestnut Ave", "3012"));
+		entries.add(new EmployeeDirectoryEntry("jwalker", "Jeff", "Walker", "(408) 393-3184", "jwalker@acme.com", "Developer", "Engineering", "1900 Chestnut Ave", "3013"));
+		entries.add(new EmployeeDirectoryEntry("jhall", "Jennifer", "Hall", "(408) 393-3185", "jhall@acme.com", "Sr Developer", "Engineering", "1900 Chestnut Ave", "3022"));
+		entries.add(new EmployeeDirectoryEntry("mallen", "Maria", "Allen", "(408) 393-3186", "mallen@acme.com", "Manager", "Engineering", "1900 Chestnut Ave", "3023"));
+		entries.add(new EmployeeDirectoryEntry("dyoung", "David", "Young", "(408) 393-3187", "dyoung@acme.com", "Tech Lead", "Engineering", "1900 Chestnut Ave", "3026"));
+		entries.add(new EmployeeDirectoryEntry("mhernandez", "Margaret", "Hernandez", "(408) 393-3188", "mhernandez@acme.com", "Systems Admin", "Operations", "1900 Chestnut Ave", "3030"));
+		entries.add(new EmployeeDirectoryEntry("dking", "Dorothy", "King", "(408) 393-3189", "dking@acme.com", "Systems Admin", "Operations", "1900 Chestnut", "3037"));
+		return entries;
+	}
+	/**
+	 * @return the current version of the directory
+	 */
+	public static DirectorySnapshot current()
+	{
+		return (DirectorySnapshot)s_current.get();
+	}
+	/**
+	 * Replaces the directory with a new snapshot.  Requests that already took
+	 * the previous snapshot finish with it, later ones see the new one.
+	 */
+	public static void publish(DirectorySnapshot snapshot)
+	{
+		if (snapshot == null)
+			throw new IllegalArgumentException("snapshot");
+		DirectorySnapshot previous = (DirectorySnapshot)s_current.getAndSet(snapshot);
+		for (Iterator iter = s_listeners.iterator(); iter.hasNext(); ) {
+			((Listener)iter.next()).directoryChanged(previous, snapshot);
+		}
+	}
+	/**
+	 * Applies changes to the current directory and publishes the result, see
+	 * {@link DirectorySnapshot#apply DirectorySnapshot.apply()}.  Should a new
+	 * snapshot be published meanwhile, the changes are applied to it instead.
+	 *
+	 * @param changes the {@link DirectoryChange}s to apply, in order
+	 * @param pool the pool to rebuild the indexes on if needed, or null
+	 * @return the published snapshot
+	 */
+	public static DirectorySnapshot apply(List changes, ForkJoinPool pool)
+	{
+		DirectorySnapshot previous;
+		DirectorySnapshot snapshot;
+		do {
+			previous = current();
+			snapshot = previous.apply(changes, pool);
+		} while (!s_current.compareAndSet(previous, snapshot));
+		for (Iterator iter = s_listeners.iterator(); iter.hasNext(); ) {
+			((Listener)iter.next()).directoryChanged(previous, snapshot);
+		}
+		return snapshot;
+	}
+	public static void addListener(Listener listener)
+	{
+		s_listeners.addIfAbsent(listener);
+	}
+	public static void removeListener(Listener listener)
+	{
+		s_listeners.remove(listener);
+	}
+	/**
+	 * Normalizes a name into the form used as a key by the directory's
+	 * lookup indexes.
+	 */
+	public static String normalize(String name)
+	{
+		return (name == null) ? "" : name.trim().toUpperCase();
+	}
+	public static Iterator iterator()
+	{
+		return current().iterator();
+	}
+	public static int size()
+	{
+		return current().size();
+	}
+	public static EmployeeDirectoryEntry getEmployee(String id)
+	{
+		return current().getEmployee(id);
+	}
+	/**
+	 * Returns the entries whose last name matches the query, ignoring case
+	 * and surrounding whitespace.  The cost of the lookup is independent of
+	 * the size of the directory.
+	 * 
+	 * @param query the last name to look up
+	 * @return an unmodifiable List of {@link EmployeeDirectoryEntry}, empty if
+	 * there are no matches
+	 */
+	public static List findByLastName(String query)
+	{
+		return current().findByLastName(query);
+	}
+	/**
+	 * Searches the name, email, phone, position and department of every entry
+	 * for the terms of the query.  Entries must contain all of the terms to
+	 * match and are ranked by which fields the terms were found in.
+	 * 
+	 * @param query the end user's query
+	 * @param maxHits the maximum number of entries to return
+	 * @param filter restricts the entries that may match, or null for all
+	 * @return the best matches and the total number of matches
+	 */
+	public static DirectorySearchIndex.Hits search(String query, int maxHits,
+			DirectorySearchIndex.Filter filter)
+	{
+		return search(query, maxHits, filter, false);
+	}
+	/**
+	 * Searches the directory like {@link #search(String, int, DirectorySearchIndex.Filter)},
+	 * optionally letting query terms match first and last names that are
+	 * spelled slightly differently.  Exact matches rank ahead of fuzzy ones.
+	 * 
+	 * @param fuzzy whether to also match misspelled names
+	 */
+	public static DirectorySearchIndex.Hits search(String query, int maxHits,
+			DirectorySearchIndex.Filter filter, boolean fuzzy)
+	{
+		return current().search(query, maxHits, filter, fuzzy);
+	}
+	/**
+	 * Completes the hits of an earlier search with the entry of the given id,
+	 * if that entry matches the query.
+	 * 
+	 * @see DirectorySearchIndex#include
+	 */
+	public static DirectorySearchIndex.Hits include(DirectorySearchIndex.Hits hits,
+			String id, String query, int maxHits, boolean fuzzy)
+	{
+		return current().include(hits, id, query, maxHits, fuzzy);
+	}
+}
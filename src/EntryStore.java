@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+/**
+ * Holds the entries of a {@link DirectorySnapshot}, addressed by row, along
+ * with the lookups that depend on how the entries are stored.
+ * <p>
+ * Rows are numbered from 0 in the order the entries were given to the
+ * store, which is also the order of equally scored search hits.
+ */
+public interface EntryStore
+{
+	/**
+	 * @return the number of entries
+	 */
+	public int size();
+
+	/**
+	 * @return the entry in the given row
+	 */
+	public EmployeeDirectory.EmployeeDirectoryEntry get(int row);
+
+	/**
+	 * @return the row of the entry with the given id, or -1 if there is none
+	 */
+	public int find(String id);
+
+	/**
+	 * @param name a last name normalized with {@link EmployeeDirectory#normalize}
+	 * @return an unmodifiable List of the entries with that normalized last
+	 * name, in row order
+	 */
+	public List findByLastName(String name);
+}
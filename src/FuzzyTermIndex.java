@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Finds the terms of a dictionary that are within a small edit distance of a
+ * (possibly misspelled) query term.
+ * <p>
+ * Every term is broken into character bigrams, padded at both ends so the
+ * first and last letters count as much as the others, and each bigram maps to
+ * the terms containing it.  Two strings within edit distance <code>k</code>
+ * of each other share at least <code>max(len) + 1 - 2k</code> padded bigrams,
+ * so only terms that reach that count are verified with a Levenshtein check
+ * that gives up as soon as the distance is known to exceed <code>k</code>.
+ * <p>
+ * The terms and bigram lists are kept in NIO buffers, so that the index can
+ * also be read straight from a memory-mapped {@link DirectoryIndexFile}.
+ */
+public class FuzzyTermIndex {
+
+	private static final char PAD = '$';
+
+	/**
+	 * A dictionary term within the allowed edit distance of a query term.
+	 */
+	public static class Match
+	{
+		public final String term;
+		public final int distance;
+
+		Match(String term, int distance) { this.term = term; this.distance = distance; }
+	}
+
+	private final PackedStrings m_terms;
+	// Term lengths, kept apart from the terms so that candidates can be
+	// filtered without decoding them
+	private final IntBuffer m_lengths;
+	// Bigrams as (first char << 16 | second char) in ascending order, the
+	// start of each one's term ids in m_gramTerms, and the term ids
+	private final IntBuffer m_gramKeys;
+	private final IntBuffer m_gramStarts;
+	private final IntBuffer m_gramTerms;
+
+	/**
+	 * Builds the bigram index over the given terms.
+	 */
+	public FuzzyTermIndex(String[] terms)
+	{
+		m_terms = PackedStrings.pack(terms);
+		int[] lengths = new int[terms.length];
+		HashMap grams = new HashMap();
+		for (int id = 0; id < terms.length; id++)
+		{
+			lengths[id] = terms[id].length();
+			String padded = PAD + terms[id] + PAD;
+			for (int i = 0; i + 1 < padded.length(); i++)
+			{
+				Integer gram = Integer.valueOf(gramKey(padded, i));
+				IntList ids = (IntList)grams.get(gram);
+				if (ids == null) {
+					ids = new IntList();
+					grams.put(gram, ids);
+				}
+				// A term can repeat a bigram, only count it once
+				if (ids.size == 0 || ids.values[ids.size - 1] != id)
+					ids.add(id);
+			}
+		}
+		Integer[] keys = (Integer[])grams.keySet().toArray(new Integer[grams.size()]);
+		Arrays.sort(keys);
+		int[] gramKeys = new int[keys.length];
+		int[] gramStarts = new int[keys.length + 1];
+		IntList gramTerms = new IntList();
+		for (int g = 0; g < keys.length; g++)
+		{
+			IntList ids = (IntList)grams.get(keys[g]);
+			gramKeys[g] = keys[g].intValue();
+			gramStarts[g] = gramTerms.size;
+			for (int i = 0; i < ids.size; i++)
+				gramTerms.add(ids.values[i]);
+		}
+		gramStarts[keys.length] = gramTerms.size;
+		m_lengths = IntBuffer.wrap(lengths);
+		m_gramKeys = IntBuffer.wrap(gramKeys);
+		m_gramStarts = IntBuffer.wrap(gramStarts);
+		m_gramTerms = IntBuffer.wrap(gramTerms.toArray());
+	}
+
+	/**
+	 * Creates an index over tables that were built before, as read from a
+	 * {@link DirectoryIndexFile}.
+	 */
+	FuzzyTermIndex(PackedStrings terms, IntBuffer lengths, IntBuffer gramKeys,
+			IntBuffer gramStarts, IntBuffer gramTerms)
+	{
+		m_terms = terms;
+		m_lengths = lengths;
+		m_gramKeys = gramKeys;
+		m_gramStarts = gramStarts;
+		m_gramTerms = gramTerms;
+	}
+
+	PackedStrings terms() { return m_terms; }
+	IntBuffer lengths() { return m_lengths.duplicate(); }
+	IntBuffer gramKeys() { return m_gramKeys.duplicate(); }
+	IntBuffer gramStarts() { return m_gramStarts.duplicate(); }
+	IntBuffer gramTerms() { return m_gramTerms.duplicate(); }
+
+	private static int gramKey(String padded, int i)
+	{
+		return (padded.charAt(i) << 16) | padded.charAt(i + 1);
+	}
+
+	// Position of a bigram in m_gramKeys, or -1
+	private int findGram(int key)
+	{
+		int lo = 0;
+		int hi = m_gramKeys.limit() - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int k = m_gramKeys.get(mid);
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * The number of edits tolerated for a query term of the given length.
+	 * Very short terms have too many neighbours to be matched fuzzily.
+	 */
+	static int maxDistance(int length)
+	{
+		if (length <= 2)
+			return 0;
+		return (length <= 5) ? 1 : 2;
+	}
+
+	/**
+	 * Returns the dictionary terms within the allowed edit distance of the
+	 * given upper-cased term, including the term itself if present.
+	 */
+	public List lookup(String term)
+	{
+		List matches = new ArrayList();
+		int k = maxDistance(term.length());
+		if (k == 0) {
+			return matches;
+		}
+		String padded = PAD + term + PAD;
+		int[] grams = new int[padded.length() - 1];
+		int postings = 0;
+		for (int i = 0; i < grams.length; i++)
+		{
+			grams[i] = findGram(gramKey(padded, i));
+			if (grams[i] >= 0)
+				postings += m_gramStarts.get(grams[i] + 1) - m_gramStarts.get(grams[i]);
+		}
+		if (postings == 0) {
+			return matches;
+		}
+
+		// Shared bigrams are counted only for the terms the query's bigrams
+		// lead to, in an open-addressed table sized to them rather than to
+		// the dictionary
+		int mask = Integer.highestOneBit(postings) * 4 - 1;
+		int[] slotIds = new int[mask + 1];
+		int[] slotCounts = new int[mask + 1];
+		int[] touched = new int[Math.min(postings, m_lengths.limit())];
+		int touchedCount = 0;
+		for (int i = 0; i < grams.length; i++)
+		{
+			int g = grams[i];
+			if (g < 0)
+				continue;
+			for (int j = m_gramStarts.get(g), end = m_gramStarts.get(g + 1); j < end; j++)
+			{
+				int id = m_gramTerms.get(j);
+				// Slots hold id + 1, so that 0 marks an empty one
+				int slot = (id * 0x9E3779B9) & mask;
+				while (slotIds[slot] != 0 && slotIds[slot] != id + 1)
+					slot = (slot + 1) & mask;
+				if (slotIds[slot] == 0) {
+					slotIds[slot] = id + 1;
+					touched[touchedCount++] = slot;
+				}
+				slotCounts[slot]++;
+			}
+		}
+		int length = term.length();
+		int minShared = length + 1 - 2 * k;
+		for (int i = 0; i < touchedCount; i++)
+		{
+			int id = slotIds[touched[i]] - 1;
+			int shared = slotCounts[touched[i]];
+			if (shared < minShared)
+				continue;
+			int candidateLength = m_lengths.get(id);
+			if (Math.abs(candidateLength - length) > k ||
+					shared < Math.max(candidateLength, length) + 1 - 2 * k)
+				continue;
+			String candidate = m_terms.get(id);
+			int d = distance(term, candidate, k);
+			if (d <= k)
+				matches.add(new Match(candidate, d));
+		}
+		return matches;
+	}
+
+	/**
+	 * Levenshtein distance between two strings, computed only as far as
+	 * needed to tell whether it exceeds <code>max</code>.
+	 *
+	 * @return the distance, or <code>max + 1</code> if it is larger than max
+	 */
+	static int distance(String a, String b, int max)
+	{
+		int la = a.length();
+		int lb = b.length();
+		if (Math.abs(la - lb) > max)
+			return max + 1;
+		int[] prev = new int[lb + 1];
+		int[] curr = new int[lb + 1];
+		for (int j = 0; j <= lb; j++)
+			prev[j] = j;
+		for (int i = 1; i <= la; i++)
+		{
+			curr[0] = i;
+			int rowMin = i;
+			char ca = a.charAt(i - 1);
+			for (int j = 1; j <= lb; j++)
+			{
+				int cost = (ca == b.charAt(j - 1)) ? 0 : 1;
+				int d = Math.min(Math.min(curr[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+				curr[j] = d;
+				if (d < rowMin)
+					rowMin = d;
+			}
+			// Every path to the final cell passes through this row
+			if (rowMin > max)
+				return max + 1;
+			int[] t = prev; prev = curr; curr = t;
+		}
+		return Math.min(prev[lb], max + 1);
+	}
+
+	// Growable int array used while building the bigram lists
+	private static class IntList
+	{
+		int[] values = new int[4];
+		int size;
+
+		void add(int v)
+		{
+			if (size == values.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = v;
+		}
+		int[] toArray()
+		{
+			int[] a = new int[size];
+			System.arraycopy(values, 0, a, 0, size);
+			return a;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the entries as the objects they were given as, with hash tables for
+ * the id and last name lookups.  This is the fastest store to read, and the
+ * largest.
+ */
+public class ObjectEntryStore implements EntryStore {
+
+	private final EmployeeDirectory.EmployeeDirectoryEntry[] m_entries;
+	// Entry id to row
+	private final HashMap m_rows;
+	// Inverted index from normalized last name to an unmodifiable List of the
+	// entries carrying that last name, so that lookups don't have to scan (and
+	// upper-case) every entry per request.
+	private final HashMap m_lastNames;
+
+	public ObjectEntryStore(EmployeeDirectory.EmployeeDirectoryEntry[] entries)
+	{
+		m_entries = entries;
+		m_rows = new HashMap(entries.length * 2);
+		m_lastNames = new HashMap();
+		for (int row = 0; row < entries.length; row++)
+		{
+			EmployeeDirectory.EmployeeDirectoryEntry emp = entries[row];
+			m_rows.put(emp.getId(), Integer.valueOf(row));
+			String key = EmployeeDirectory.normalize(emp.getLastName());
+			List list = (List)m_lastNames.get(key);
+			if (list == null) {
+				list = new ArrayList(1);
+				m_lastNames.put(key, list);
+			}
+			list.add(emp);
+		}
+		for (Iterator iter = m_lastNames.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry e = (Map.Entry)iter.next();
+			e.setValue(Collections.unmodifiableList((List)e.getValue()));
+		}
+	}
+
+	public int size()
+	{
+		return m_entries.length;
+	}
+
+	public EmployeeDirectory.EmployeeDirectoryEntry get(int row)
+	{
+		return m_entries[row];
+	}
+
+	public int find(String id)
+	{
+		Integer row = (Integer)m_rows.get(id);
+		return (row == null) ? -1 : row.intValue();
+	}
+
+	public List findByLastName(String name)
+	{
+		List entries = (List)m_lastNames.get(name);
+		return (entries == null) ? Collections.EMPTY_LIST : entries;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A list of strings kept as UTF-8 bytes in one buffer, with the offset of
+ * each string in another.  The buffers are either arrays on the heap or
+ * slices of a memory-mapped {@link DirectoryIndexFile}; strings are decoded
+ * only when they are read.
+ */
+class PackedStrings
+{
+	// Start of each string, and the end of the last one
+	private final IntBuffer m_offsets;
+	private final ByteBuffer m_data;
+
+	PackedStrings(IntBuffer offsets, ByteBuffer data)
+	{
+		m_offsets = offsets;
+		m_data = data;
+	}
+
+	/**
+	 * Packs the given strings into heap buffers.
+	 */
+	static PackedStrings pack(String[] values)
+	{
+		byte[][] encoded = new byte[values.length][];
+		long total = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+			total += encoded[i].length;
+		}
+		if (total > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many strings to pack");
+		byte[] data = new byte[(int)total];
+		int[] offsets = new int[values.length + 1];
+		int offset = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			offsets[i] = offset;
+			System.arraycopy(encoded[i], 0, data, offset, encoded[i].length);
+			offset += encoded[i].length;
+		}
+		offsets[values.length] = offset;
+		return new PackedStrings(IntBuffer.wrap(offsets), ByteBuffer.wrap(data));
+	}
+
+	int size()
+	{
+		return m_offsets.limit() - 1;
+	}
+
+	String get(int i)
+	{
+		int from = m_offsets.get(i);
+		int length = m_offsets.get(i + 1) - from;
+		if (m_data.hasArray())
+			return new String(m_data.array(), m_data.arrayOffset() + from, length, StandardCharsets.UTF_8);
+		byte[] bytes = new byte[length];
+		ByteBuffer data = m_data.duplicate();
+		data.position(from);
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Compares a string with the given UTF-8 bytes, byte by byte as unsigned
+	 * values, which orders strings by code point.
+	 *
+	 * @return a negative number, zero or a positive number as the string
+	 * sorts before, equal to or after the bytes
+	 */
+	int compare(int i, byte[] utf8)
+	{
+		int from = m_offsets.get(i);
+		int length = m_offsets.get(i + 1) - from;
+		int n = Math.min(length, utf8.length);
+		for (int j = 0; j < n; j++)
+		{
+			int c = (m_data.get(from + j) & 0xFF) - (utf8[j] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return length - utf8.length;
+	}
+
+	/**
+	 * @return the index of the string equal to the given bytes, or -1 if
+	 * there is none; the strings must be sorted as by {@link #compare compare()}
+	 */
+	int binarySearch(byte[] utf8)
+	{
+		int lo = 0;
+		int hi = size() - 1;
+		while (lo <= hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int c = compare(mid, utf8);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	IntBuffer offsets()
+	{
+		return m_offsets.duplicate();
+	}
+
+	ByteBuffer data()
+	{
+		return m_data.duplicate();
+	}
+}
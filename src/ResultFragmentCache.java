@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.enterprise.sdk.onebox.Field;
+import com.google.enterprise.sdk.onebox.ModuleResult;
+import com.google.enterprise.sdk.onebox.OneBoxResults;
+
+/**
+ * Cache of directory entries already encoded as OneBox results.
+ * <p>
+ * Directory entries change rarely but are rendered over and over, so the
+ * <code>MODULE_RESULT</code> element of an entry is encoded once per field
+ * visibility level and then spliced into responses with
+ * {@link OneBoxResults#addEncodedResult OneBoxResults.addEncodedResult()}.
+ * Entries are encoded the first time they are returned, and results link to
+ * a page that is the same for every entry, so each directory snapshot keeps
+ * one cache per link and the cached results go away with the snapshot.  A
+ * snapshot made by applying changes starts with the results of the entries
+ * that didn't change.
+ * <p>
+ * The link comes from the Host header of the requests, so neither the
+ * number of caches nor their size is left to the clients: a snapshot keeps
+ * at most {@link DirectorySnapshot#MAX_FRAGMENT_LINKS} caches, and a cache
+ * holds at most {@link #MAX_ENTRIES} entries, beyond which results are
+ * encoded for each response.
+ */
+public class ResultFragmentCache {
+
+	/**
+	 * Visibility level showing only an entry's position and department.
+	 */
+	public static final int PUBLIC_FIELDS = 0;
+	/**
+	 * Visibility level also showing an entry's phone, email and office.
+	 */
+	public static final int CONTACT_FIELDS = 1;
+
+	/**
+	 * The number of entries whose results a cache holds at most.
+	 */
+	public static final int MAX_ENTRIES = 16384;
+
+	private final String m_link;
+	// Entry id to an AtomicReferenceArray of encoded results (byte[]), indexed
+	// by visibility level
+	private final ConcurrentHashMap m_fragments = new ConcurrentHashMap();
+
+	/**
+	 * Creates an empty cache, see {@link DirectorySnapshot#fragments}.
+	 */
+	ResultFragmentCache(String link)
+	{
+		m_link = link;
+	}
+
+	/**
+	 * Creates a cache holding the results of another, except those of the
+	 * given entries, see {@link DirectorySnapshot#apply}.
+	 *
+	 * @param changedIds the ids of the entries whose results are dropped
+	 */
+	ResultFragmentCache(ResultFragmentCache previous, Set changedIds)
+	{
+		m_link = previous.m_link;
+		m_fragments.putAll(previous.m_fragments);
+		m_fragments.keySet().removeAll(changedIds);
+	}
+
+	/**
+	 * @return the entry encoded as a <code>MODULE_RESULT</code> element showing
+	 * the fields of the given visibility level
+	 */
+	public byte[] get(EmployeeDirectory.EmployeeDirectoryEntry emp, int level)
+	{
+		AtomicReferenceArray fragments = (AtomicReferenceArray)m_fragments.get(emp.getId());
+		if (fragments == null) {
+			// Racing threads may take a full cache a little over its size
+			if (m_fragments.size() >= MAX_ENTRIES)
+				return OneBoxResults.encodeResult(toModuleResult(emp, level));
+			fragments = new AtomicReferenceArray(2);
+			AtomicReferenceArray existing =
+				(AtomicReferenceArray)m_fragments.putIfAbsent(emp.getId(), fragments);
+			if (existing != null)
+				fragments = existing;
+		}
+		// Racing threads encode the same bytes, so it doesn't matter whose win
+		byte[] fragment = (byte[])fragments.get(level);
+		if (fragment == null) {
+			fragment = OneBoxResults.encodeResult(toModuleResult(emp, level));
+			fragments.set(level, fragment);
+		}
+		return fragment;
+	}
+
+	private ModuleResult toModuleResult(EmployeeDirectory.EmployeeDirectoryEntry emp, int level)
+	{
+		ModuleResult mr = new ModuleResult(emp.getLastName()+", "+emp.getFirstName(), m_link);
+		mr.addField(new Field("position",emp.getPosition()));
+		mr.addField(new Field("department",emp.getDepartment()));
+		if (level == CONTACT_FIELDS)
+		{
+			mr.addField(new Field("phone",emp.getPhone()));
+			mr.addField(new Field("email",emp.getEmail()));
+			mr.addField(new Field("building",emp.getBuilding()));
+			mr.addField(new Field("office",emp.getOffice()));
+		}
+		return mr;
+	}
+}
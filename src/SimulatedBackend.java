@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stands in for the remote user store of the authenticated sample providers,
+ * which keep their users in memory: every call waits as long as a round
+ * trip to the store would take, so that the providers can be tested under a
+ * realistic latency.
+ */
+class SimulatedBackend {
+
+	private final long m_latency;
+
+	/**
+	 * @param latency the milliseconds every call takes, 0 for none
+	 */
+	SimulatedBackend(long latency)
+	{
+		m_latency = latency;
+	}
+
+	/**
+	 * Waits as long as a call to the user store would take.
+	 */
+	void call()
+	{
+		if (m_latency <= 0)
+			return;
+		try {
+			Thread.sleep(m_latency);
+		} catch (InterruptedException ie) {
+			// The request's deadline has passed
+			Thread.currentThread().interrupt();
+		}
+	}
+}
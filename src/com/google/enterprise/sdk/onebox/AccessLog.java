@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletContext;
+
+/**
+ * A log of the requests served by {@link OneBoxProvider}s, appended to a file
+ * as one JSON object per line.
+ * <p>
+ * Request threads only put records into a ring buffer, without locking or
+ * doing I/O; a background thread writes them to the file.  Records arriving
+ * while the buffer is full are dropped, and their number is logged instead.
+ * Providers logging to the same file share one instance, see
+ * {@link #open open()}.
+ */
+final class AccessLog implements Runnable
+{
+	// Nanoseconds the writer waits for more records once the buffer is empty
+	private static final long WRITE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+	// Open logs by canonical path, guarding their user counts
+	private static final HashMap s_open = new HashMap();
+
+	private final File m_file;
+	private final ServletContext m_context;
+	private final AtomicReferenceArray m_slots;
+	private final int m_mask;
+	// Sequence number of the next record, claimed by request threads
+	private final AtomicLong m_head = new AtomicLong();
+	// Sequence number of the next record to write, only advanced by the
+	// writer after emptying its slot
+	private volatile long m_tail = 0;
+	private final AtomicLong m_dropped = new AtomicLong();
+	private volatile boolean m_closing = false;
+	private final Thread m_writer;
+	// Providers using the log, guarded by s_open
+	private int m_users = 0;
+
+	private AccessLog(File file, int capacity, ServletContext context)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		m_file = file;
+		m_context = context;
+		m_slots = new AtomicReferenceArray(size);
+		m_mask = size - 1;
+		m_writer = new Thread(this, "AccessLog " + file.getName());
+		m_writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log writing to a file, or shares the one already open.
+	 *
+	 * @param capacity the number of records buffered, rounded up to a power
+	 * of two
+	 * @param context where failures to write the file are logged
+	 */
+	static AccessLog open(File file, int capacity, ServletContext context)
+	{
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException ioe) {
+			path = file.getAbsolutePath();
+		}
+		synchronized (s_open) {
+			AccessLog log = (AccessLog)s_open.get(path);
+			if (log == null) {
+				log = new AccessLog(new File(path), capacity, context);
+				s_open.put(path, log);
+				log.m_writer.start();
+			}
+			log.m_users++;
+			return log;
+		}
+	}
+
+	/**
+	 * Stops using the log.  Once no provider uses it anymore, the records
+	 * still buffered are written and the file is closed.
+	 */
+	void close()
+	{
+		synchronized (s_open) {
+			if (--m_users > 0)
+				return;
+			s_open.remove(m_file.getPath());
+		}
+		m_closing = true;
+		LockSupport.unpark(m_writer);
+		try {
+			m_writer.join(5000);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Buffers a record for writing, or drops it if the buffer is full.
+	 */
+	void add(Record record)
+	{
+		long head;
+		do {
+			head = m_head.get();
+			if (head - m_tail >= m_slots.length()) {
+				m_dropped.incrementAndGet();
+				return;
+			}
+		} while (!m_head.compareAndSet(head, head + 1));
+		// The writer has emptied the slot before moving past its last use
+		m_slots.set((int)head & m_mask, record);
+	}
+
+	public void run()
+	{
+		SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		time.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(m_file, true), StandardCharsets.UTF_8));
+			while (true)
+			{
+				boolean closing = m_closing;
+				int written = write(out, time);
+				long dropped = m_dropped.getAndSet(0);
+				if (dropped > 0) {
+					out.write("{\"time\":\"");
+					out.write(time.format(new Date()));
+					out.write("\",\"dropped\":");
+					out.write(Long.toString(dropped));
+					out.write("}\n");
+				}
+				if (written > 0 || dropped > 0)
+					out.flush();
+				// Everything added before closing has been written
+				if (closing)
+					break;
+				if (written == 0)
+					LockSupport.parkNanos(WRITE_INTERVAL);
+			}
+		} catch (IOException ioe) {
+			m_context.log("Access log " + m_file + " can't be written, requests are no longer logged", ioe);
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException ioe) {
+				// Nothing left to report to
+			}
+		}
+	}
+
+	/**
+	 * Writes the records added so far, stopping at the first one whose
+	 * thread hasn't finished adding it.
+	 *
+	 * @return the number of records written
+	 */
+	private int write(Writer out, SimpleDateFormat time) throws IOException
+	{
+		int written = 0;
+		long tail = m_tail;
+		Record record;
+		while ((record = (Record)m_slots.get((int)tail & m_mask)) != null)
+		{
+			m_slots.set((int)tail & m_mask, null);
+			m_tail = ++tail;
+			record.write(out, time);
+			written++;
+		}
+		return written;
+	}
+
+	/**
+	 * A served request.
+	 */
+	static final class Record
+	{
+		private final long m_time;
+		private final long m_elapsedNanos;
+		private final String m_servlet;
+		private final String m_oneboxName;
+		private final String m_authType;
+		private final String m_query;
+		private final String m_resultCode;
+		private final int m_results;
+		private final boolean m_complete;
+		private final boolean m_cached;
+		private final RequestTiming m_timing;
+		private final String[] m_headerNames;
+		private final String[] m_headerValues;
+
+		/**
+		 * @param results the number of results, or -1 if unknown
+		 * @param headerNames the names of the captured headers, or null
+		 * @param headerValues their values, null for headers not sent
+		 */
+		Record(long time, long elapsedNanos, String servlet, OneBoxRequest request,
+				String resultCode, int results, boolean complete, boolean cached,
+				RequestTiming timing, String[] headerNames, String[] headerValues)
+		{
+			m_time = time;
+			m_elapsedNanos = elapsedNanos;
+			m_servlet = servlet;
+			m_oneboxName = request.getOneboxName();
+			m_authType = request.getAuthType();
+			m_query = request.getQuery();
+			m_resultCode = resultCode;
+			m_results = results;
+			m_complete = complete;
+			m_cached = cached;
+			m_timing = timing;
+			m_headerNames = headerNames;
+			m_headerValues = headerValues;
+		}
+
+		void write(Writer out, SimpleDateFormat time) throws IOException
+		{
+			out.write("{\"time\":\"");
+			out.write(time.format(new Date(m_time)));
+			out.write("\",\"elapsedMs\":");
+			long micros = m_elapsedNanos / 1000;
+			out.write(Long.toString(micros / 1000));
+			out.write('.');
+			String fraction = Long.toString(1000 + micros % 1000);
+			out.write(fraction, 1, 3);
+			out.write(",\"servlet\":");
+			quote(out, m_servlet);
+			out.write(",\"oneboxName\":");
+			quote(out, m_oneboxName);
+			out.write(",\"authType\":");
+			quote(out, m_authType);
+			out.write(",\"query\":");
+			quote(out, m_query);
+			out.write(",\"resultCode\":");
+			quote(out, m_resultCode);
+			if (m_results >= 0) {
+				out.write(",\"results\":");
+				out.write(Integer.toString(m_results));
+			}
+			if (!m_complete)
+				out.write(",\"complete\":false");
+			if (m_cached)
+				out.write(",\"cached\":true");
+			if (m_timing != null) {
+				out.write(",\"phases\":");
+				m_timing.writeJson(out);
+			}
+			if (m_headerNames != null) {
+				out.write(",\"headers\":{");
+				boolean first = true;
+				for (int i = 0; i < m_headerNames.length; i++)
+				{
+					if (m_headerValues[i] == null)
+						continue;
+					if (!first)
+						out.write(',');
+					quote(out, m_headerNames[i]);
+					out.write(':');
+					quote(out, m_headerValues[i]);
+					first = false;
+				}
+				out.write('}');
+			}
+			out.write("}\n");
+		}
+
+		private static void quote(Writer out, String value) throws IOException
+		{
+			if (value == null) {
+				out.write("null");
+				return;
+			}
+			out.write('"');
+			for (int i = 0; i < value.length(); i++)
+			{
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					out.write('\\');
+					out.write(c);
+				} else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+					String hex = Integer.toHexString(c);
+					out.write("\\u");
+					out.write("0000", 0, 4 - hex.length());
+					out.write(hex);
+				} else {
+					out.write(c);
+				}
+			}
+			out.write('"');
+		}
+	}
+}
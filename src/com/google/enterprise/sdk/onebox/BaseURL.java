@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The URL of the web application as reached by a request, such as
+ * <code>http://onebox.acme.com:8080/onebox/</code>, from which the links of
+ * a OneBox response are built.
+ * <p>
+ * {@link OneBoxProvider} keeps one instance per host name the application is
+ * reached through, and every instance remembers the links resolved against
+ * it, so that a link is built once per host rather than once per result.
+ */
+public final class BaseURL
+{
+	// Paths above which links are resolved without being remembered, since
+	// paths may come from requests
+	private static final int MAX_LINKS = 256;
+
+	private final String m_url;
+	// Path to resolved link
+	private final ConcurrentHashMap m_links = new ConcurrentHashMap();
+
+	/**
+	 * @param url the URL, ending in a slash
+	 */
+	public BaseURL(String url)
+	{
+		m_url = url;
+	}
+
+	/**
+	 * @return the URL of the web application the request was sent to
+	 */
+	public static BaseURL of(HttpServletRequest request)
+	{
+		return new BaseURL(toString(request));
+	}
+
+	static String toString(HttpServletRequest request)
+	{
+		return request.getScheme() + "://" +
+			request.getServerName() + ":" + request.getServerPort() +
+			request.getContextPath() + "/";
+	}
+
+	/**
+	 * @param path a path relative to the web application's root, such as
+	 * <code>images/logo.jpg</code>
+	 * @return the absolute URL of the path
+	 */
+	public String resolve(String path)
+	{
+		String link = (String)m_links.get(path);
+		if (link == null) {
+			link = m_url + path;
+			if (m_links.size() < MAX_LINKS)
+				m_links.putIfAbsent(path, link);
+		}
+		return link;
+	}
+
+	/**
+	 * @return the URL, ending in a slash
+	 */
+	public String toString()
+	{
+		return m_url;
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+/**
+ * Bounds the number of calls to a provider in progress at once, so that a
+ * slow backend holds at most that many of the container's threads and the
+ * other providers of the node keep serving.
+ * <p>
+ * A call over the limit waits in a short queue for one in progress to
+ * finish, and is refused if the queue is full or the wait is over; the
+ * caller then answers at once rather than queueing in the container.
+ * <p>
+ * An adaptive limit moves between 1 and its maximum by additive increase
+ * and multiplicative decrease, as TCP's congestion window does.  It grows by
+ * one per limit's worth of calls finishing while it was reached, and shrinks
+ * by a tenth, at most once per round of calls, when a call misses its
+ * deadline or takes both over 5 ms and more than twice the shortest
+ * latency seen recently: a backend slowing down under load lowers the
+ * limit before the calls pile up, and the limit recovers as its latency
+ * does.
+ */
+final class ConcurrencyLimiter
+{
+	// Latency over the shortest one seen recently beyond which a call counts
+	// as a sign of overload
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// Latency under which a call never counts as a sign of overload, however
+	// much it varies for a fast provider
+	private static final long MIN_OVERLOAD_LATENCY = 5000000L;
+	private static final double DECREASE = 0.9;
+	// Calls after which the shortest latency seen is forgotten, so that it
+	// follows a backend whose latency has lastingly changed
+	private static final int LATENCY_WINDOW = 1000;
+
+	private final int m_maxLimit;
+	private final boolean m_adaptive;
+	private final int m_queueSize;
+	private final long m_queueTimeout;
+
+	// Guarded by this
+	private double m_limit;
+	private int m_inFlight = 0;
+	private int m_waiting = 0;
+	private long m_minLatency = Long.MAX_VALUE;
+	private long m_windowMinLatency = Long.MAX_VALUE;
+	private int m_windowCalls = 0;
+	// The System.nanoTime() the limit was last decreased at; calls started
+	// before then don't decrease it again
+	private long m_lastDecrease;
+	private long m_rejected = 0;
+
+	/**
+	 * @param limit the number of calls in progress at once, the maximum
+	 * one when adaptive
+	 * @param adaptive whether the limit adapts to the provider's latency,
+	 * starting from its maximum
+	 * @param queueSize the number of calls that wait for a call in progress
+	 * to finish, beyond which calls are refused at once
+	 * @param queueTimeout the milliseconds a call waits at most
+	 */
+	ConcurrencyLimiter(int limit, boolean adaptive, int queueSize, long queueTimeout)
+	{
+		m_maxLimit = Math.max(1, limit);
+		m_adaptive = adaptive;
+		m_queueSize = Math.max(0, queueSize);
+		m_queueTimeout = Math.max(0, queueTimeout);
+		m_limit = m_maxLimit;
+		m_lastDecrease = System.nanoTime();
+	}
+
+	/**
+	 * Starts a call, waiting if the limit is reached and the queue isn't
+	 * full.
+	 *
+	 * @param deadline the time, in milliseconds as returned by
+	 * <code>System.currentTimeMillis()</code>, after which the call isn't
+	 * worth waiting for, or <code>Long.MAX_VALUE</code>
+	 * @return whether the call may go ahead, in which case
+	 * {@link #release(long, long, boolean)}, or {@link #release()} if it
+	 * doesn't reach the provider, must be called when it finishes
+	 */
+	synchronized boolean acquire(long deadline)
+	{
+		if (m_inFlight < (int)m_limit) {
+			m_inFlight++;
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		long until = Math.min(deadline, now + m_queueTimeout);
+		if (m_waiting >= m_queueSize || until <= now) {
+			m_rejected++;
+			return false;
+		}
+		m_waiting++;
+		try {
+			while (m_inFlight >= (int)m_limit)
+			{
+				long wait = until - System.currentTimeMillis();
+				if (wait <= 0) {
+					m_rejected++;
+					return false;
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					m_rejected++;
+					return false;
+				}
+			}
+			m_inFlight++;
+			return true;
+		} finally {
+			m_waiting--;
+		}
+	}
+
+	/**
+	 * Ends a call, adapting the limit to how it went.
+	 *
+	 * @param start the <code>System.nanoTime()</code> the call started at
+	 * @param latency the nanoseconds the call took
+	 * @param missedDeadline whether the call didn't finish by its deadline
+	 */
+	synchronized void release(long start, long latency, boolean missedDeadline)
+	{
+		boolean limited = m_inFlight >= (int)m_limit;
+		m_inFlight--;
+		if (m_adaptive)
+		{
+			if (latency < m_windowMinLatency)
+				m_windowMinLatency = latency;
+			if (latency < m_minLatency)
+				m_minLatency = latency;
+			if (++m_windowCalls >= LATENCY_WINDOW) {
+				m_minLatency = m_windowMinLatency;
+				m_windowMinLatency = Long.MAX_VALUE;
+				m_windowCalls = 0;
+			}
+
+			boolean overloaded = missedDeadline ||
+				(latency > MIN_OVERLOAD_LATENCY && latency > m_minLatency * LATENCY_TOLERANCE);
+			if (overloaded) {
+				if (start - m_lastDecrease >= 0) {
+					m_limit = Math.max(1, m_limit * DECREASE);
+					m_lastDecrease = System.nanoTime();
+				}
+			} else if (limited) {
+				m_limit = Math.min(m_maxLimit, m_limit + 1 / m_limit);
+			}
+		}
+		if (m_waiting > 0)
+			notifyAll();
+	}
+
+	/**
+	 * Ends a call that never reached the provider, leaving the limit as it
+	 * is.
+	 */
+	synchronized void release()
+	{
+		m_inFlight--;
+		if (m_waiting > 0)
+			notifyAll();
+	}
+
+	/**
+	 * @return the number of calls allowed in progress at once
+	 */
+	synchronized int getLimit() { return (int)m_limit; }
+
+	/**
+	 * @return the number of calls in progress
+	 */
+	synchronized int getInFlight() { return m_inFlight; }
+
+	/**
+	 * @return the number of calls refused
+	 */
+	synchronized long getRejected() { return m_rejected; }
+}
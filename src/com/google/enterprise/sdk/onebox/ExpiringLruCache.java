@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache that evicts the least recently used entry when full
+ * and treats entries older than a fixed time-to-live as absent.
+ * <p>
+ * All methods are synchronized, so a single instance can be shared by the
+ * threads servicing a servlet's requests.
+ */
+public class ExpiringLruCache
+{
+	private static class Entry
+	{
+		final Object value;
+		final long expires;
+		Entry(Object value, long expires) { this.value = value; this.expires = expires; }
+	}
+
+	/**
+	 * Selects the keys of the entries to discard, see
+	 * {@link ExpiringLruCache#clear(KeyFilter)}.
+	 */
+	public interface KeyFilter
+	{
+		public boolean accept(Object key);
+	}
+
+	private final long m_ttlNanos;
+	private final LinkedHashMap m_map;
+	private long m_hits = 0;
+	private long m_misses = 0;
+
+	/**
+	 * @param maxEntries the number of entries above which the least recently
+	 * used one is evicted
+	 * @param ttlMillis how long an entry stays valid after it is put
+	 */
+	public ExpiringLruCache(final int maxEntries, long ttlMillis)
+	{
+		m_ttlNanos = ttlMillis * 1000000L;
+		m_map = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the value cached for the key, or null if there is none or it
+	 * has expired
+	 */
+	public synchronized Object get(Object key)
+	{
+		Entry e = (Entry)m_map.get(key);
+		if (e == null) {
+			m_misses++;
+			return null;
+		}
+		if (System.nanoTime() - e.expires > 0) {
+			m_map.remove(key);
+			m_misses++;
+			return null;
+		}
+		m_hits++;
+		return e.value;
+	}
+
+	/**
+	 * Caches a value, replacing any previous value for the key.
+	 */
+	public synchronized void put(Object key, Object value)
+	{
+		m_map.put(key, new Entry(value, System.nanoTime() + m_ttlNanos));
+	}
+
+	/**
+	 * Discards every cached value.
+	 */
+	public synchronized void clear()
+	{
+		m_map.clear();
+	}
+
+	/**
+	 * Discards the cached values whose keys the filter accepts.
+	 *
+	 * @return the number of values discarded
+	 */
+	public synchronized int clear(KeyFilter filter)
+	{
+		int count = 0;
+		for (Iterator iter = m_map.keySet().iterator(); iter.hasNext(); )
+		{
+			if (filter.accept(iter.next())) {
+				iter.remove();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of entries currently held, including expired ones
+	 * that have not been looked up since they expired
+	 */
+	public synchronized int size()
+	{
+		return m_map.size();
+	}
+
+	/**
+	 * @return the number of lookups that found a valid value
+	 */
+	public synchronized long getHits()
+	{
+		return m_hits;
+	}
+
+	/**
+	 * @return the number of lookups that found no value or an expired one
+	 */
+	public synchronized long getMisses()
+	{
+		return m_misses;
+	}
+}
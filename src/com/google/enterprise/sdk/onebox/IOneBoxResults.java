@@ -1,37 +1,68 @@
-/*
- * Copyright (C) 2006 Google Inc.
- * 
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- * 
- *      http://www.apache.org/licenses/LICENSE-2.0
- *      
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package com.google.enterprise.sdk.onebox;
-
-/**
- * Interface that must be implemented by classes encapsulating OneBox
- * for Enterprise result sets.  This interface is used in the
- * {@link OneBoxProvider#processRequest OneBoxProvider.processRequest()}
- * method to write out an HTTP response to the OneBox request.
- * <p>
- * Your OneBoxProvider can create a custom results set object as long
- * as it implements this interface.
- * 
- * @see OneBoxProvider
- * @see OneBoxResults
- */
-public interface IOneBoxResults {
-	/**
-	 * Returns an XML String that describes a OneBox results set and
-	 * adheres to Google's OneBox for Enterprise response Schema.
-	 */
-	public String serialize();
-}
+/*
+ * Copyright (C) 2006 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Interface that must be implemented by classes encapsulating OneBox
+ * for Enterprise result sets.  This interface is used in the
+ * {@link OneBoxProvider#processRequest OneBoxProvider.processRequest()}
+ * method to write out an HTTP response to the OneBox request.
+ * <p>
+ * Your OneBoxProvider can create a custom results set object as long
+ * as it implements this interface.
+ * 
+ * @see OneBoxProvider
+ * @see OneBoxResults
+ */
+public interface IOneBoxResults {
+	/**
+	 * Returns an XML String that describes a OneBox results set and
+	 * adheres to Google's OneBox for Enterprise response Schema.
+	 */
+	public String serialize();
+	/**
+	 * Writes the XML describing the OneBox results set to a Writer.  The
+	 * Writer is not closed.  The default implementation writes the String
+	 * returned by {@link #serialize()}; implementations can override it to
+	 * write the XML without building it up as a String first.
+	 */
+	public default void serialize(Writer out) throws IOException
+	{
+		out.write(serialize());
+	}
+	/**
+	 * Writes the XML describing the OneBox results set to a stream as UTF-8
+	 * encoded bytes.  This is what {@link OneBoxProvider#processRequest
+	 * OneBoxProvider.processRequest()} uses to write its responses.  The stream
+	 * is flushed but not closed.  The default implementation encodes the
+	 * String returned by {@link #serialize()}.
+	 */
+	public default void serialize(OutputStream out) throws IOException
+	{
+		Utf8Writer writer = Utf8Writer.acquire(out);
+		try {
+			writer.write(serialize());
+			writer.close();
+		} finally {
+			Utf8Writer.release(writer);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the keywords occurring as whole words in a normalized query, in one
+ * pass over the query however many keywords there are.
+ * <p>
+ * The keywords are compiled into an Aho-Corasick automaton: a trie of the
+ * keywords whose states also link to the state of their longest suffix that
+ * is a prefix of some keyword, so that a character that can't extend the
+ * current match falls back along those links instead of restarting.
+ * Keywords are matched as {@link OneBoxRequest#getNormalizedQuery()
+ * normalized}, lower case with single spaces.
+ */
+final class KeywordMatcher
+{
+	private static final char[] NO_CHARS = new char[0];
+	private static final int[] NO_STATES = new int[0];
+
+	private final String[] m_keywords;
+	// Per state, the characters leading out of it, sorted, and the states
+	// they lead to
+	private final char[][] m_chars;
+	private final int[][] m_next;
+	// Per state, the state of its longest proper suffix in the trie
+	private final int[] m_fail;
+	// Per state, the keyword it completes or -1, and the nearest state along
+	// the suffix links that completes one or -1
+	private final int[] m_keyword;
+	private final int[] m_output;
+
+	/**
+	 * @param keywords normalized keywords, without duplicates
+	 */
+	KeywordMatcher(String[] keywords)
+	{
+		m_keywords = keywords;
+
+		// The trie, with each state's transitions in a map
+		ArrayList transitions = new ArrayList();
+		ArrayList completes = new ArrayList();
+		transitions.add(new HashMap());
+		completes.add(Integer.valueOf(-1));
+		for (int k = 0; k < keywords.length; k++)
+		{
+			int state = 0;
+			for (int i = 0; i < keywords[k].length(); i++)
+			{
+				Map next = (Map)transitions.get(state);
+				Character c = Character.valueOf(keywords[k].charAt(i));
+				Integer to = (Integer)next.get(c);
+				if (to == null) {
+					to = Integer.valueOf(transitions.size());
+					next.put(c, to);
+					transitions.add(new HashMap());
+					completes.add(Integer.valueOf(-1));
+				}
+				state = to.intValue();
+			}
+			if (keywords[k].length() > 0)
+				completes.set(state, Integer.valueOf(k));
+		}
+
+		int states = transitions.size();
+		m_chars = new char[states][];
+		m_next = new int[states][];
+		m_fail = new int[states];
+		m_keyword = new int[states];
+		m_output = new int[states];
+		for (int state = 0; state < states; state++)
+		{
+			Map next = (Map)transitions.get(state);
+			Character[] chars = (Character[])next.keySet().toArray(new Character[next.size()]);
+			Arrays.sort(chars);
+			m_chars[state] = chars.length == 0 ? NO_CHARS : new char[chars.length];
+			m_next[state] = chars.length == 0 ? NO_STATES : new int[chars.length];
+			for (int i = 0; i < chars.length; i++)
+			{
+				m_chars[state][i] = chars[i].charValue();
+				m_next[state][i] = ((Integer)next.get(chars[i])).intValue();
+			}
+			m_keyword[state] = ((Integer)completes.get(state)).intValue();
+		}
+
+		// Suffix links, breadth first so that shorter states are linked first
+		m_output[0] = -1;
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < m_next[0].length; i++)
+		{
+			m_fail[m_next[0][i]] = 0;
+			m_output[m_next[0][i]] = -1;
+			queue[tail++] = m_next[0][i];
+		}
+		while (head < tail)
+		{
+			int state = queue[head++];
+			for (int i = 0; i < m_next[state].length; i++)
+			{
+				int child = m_next[state][i];
+				int fail = m_fail[state];
+				int to;
+				while ((to = next(fail, m_chars[state][i])) < 0 && fail != 0)
+					fail = m_fail[fail];
+				m_fail[child] = (to < 0) ? 0 : to;
+				m_output[child] = (m_keyword[m_fail[child]] >= 0)
+					? m_fail[child] : m_output[m_fail[child]];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/**
+	 * @return the state a character leads to from a state, or -1
+	 */
+	private int next(int state, char c)
+	{
+		int i = Arrays.binarySearch(m_chars[state], c);
+		return (i < 0) ? -1 : m_next[state][i];
+	}
+
+	/**
+	 * Finds the keywords occurring in a normalized query, bounded on each
+	 * side by its start or end or by a character that is neither a letter
+	 * nor a digit.
+	 *
+	 * @return for each occurrence in order of its end, the index of the
+	 * keyword, where it starts and where it ends, three ints each
+	 */
+	int[] find(String query)
+	{
+		int[] found = NO_STATES;
+		int count = 0;
+		int state = 0;
+		for (int i = 0; i < query.length(); i++)
+		{
+			char c = query.charAt(i);
+			int to;
+			while ((to = next(state, c)) < 0 && state != 0)
+				state = m_fail[state];
+			state = (to < 0) ? 0 : to;
+			for (int s = (m_keyword[state] >= 0) ? state : m_output[state]; s >= 0; s = m_output[s])
+			{
+				int keyword = m_keyword[s];
+				int end = i + 1;
+				int start = end - m_keywords[keyword].length();
+				if ((start > 0 && Character.isLetterOrDigit(query.charAt(start - 1))) ||
+						(end < query.length() && Character.isLetterOrDigit(query.charAt(end))))
+					continue;
+				if (count + 3 > found.length) {
+					int[] grown = new int[Math.max(12, found.length * 2)];
+					System.arraycopy(found, 0, grown, 0, count);
+					found = grown;
+				}
+				found[count++] = keyword;
+				found[count++] = start;
+				found[count++] = end;
+			}
+		}
+		if (count == found.length)
+			return found;
+		int[] trimmed = new int[count];
+		System.arraycopy(found, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/**
+	 * @return the keyword at an index
+	 */
+	String getKeyword(int i) { return m_keywords[i]; }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counts, latency histograms and cache hit counts of a
+ * {@link OneBoxProvider} servlet, exported by {@link MetricsServlet}.
+ * <p>
+ * Latencies are kept per <code>oneboxName</code>, <code>authType</code> and
+ * result code, in buckets whose upper bounds double from 16 microseconds to
+ * about 67 seconds.  Recording a request takes neither locks nor memory once
+ * its combination has been seen.
+ */
+public final class OneBoxMetrics
+{
+	// Metrics by servlet name, for the whole web application
+	private static final ConcurrentHashMap s_servlets = new ConcurrentHashMap();
+
+	// oneboxName values above which requests are counted under OTHER, since
+	// the names come from requests
+	private static final int MAX_ONEBOX_NAMES = 64;
+	private static final String OTHER = "other";
+
+	private static final String[] AUTH_TYPES = {
+		OneBoxRequest.AUTH_NONE, OneBoxRequest.AUTH_BASIC,
+		OneBoxRequest.AUTH_LDAP, OneBoxRequest.AUTH_SSO, OTHER };
+	private static final String[] RESULT_CODES = {
+		"success", FailureCode.lookupFailure.toString(),
+		FailureCode.securityFailure.toString(), FailureCode.timeout.toString(), OTHER };
+
+	private final String m_servlet;
+	// oneboxName to the Histograms of each authType and result code
+	private final ConcurrentHashMap m_oneboxes = new ConcurrentHashMap();
+	// Cache name to ExpiringLruCache
+	private final ConcurrentHashMap m_caches = new ConcurrentHashMap();
+	private final LongAdder m_incomplete = new LongAdder();
+	// The bound on the servlet's provider calls, or null
+	private volatile ConcurrencyLimiter m_concurrencyLimiter = null;
+
+	private OneBoxMetrics(String servlet)
+	{
+		m_servlet = servlet;
+	}
+
+	/**
+	 * @return the metrics of the servlet with the given name, created the
+	 * first time they are asked for
+	 */
+	public static OneBoxMetrics forServlet(String servlet)
+	{
+		OneBoxMetrics metrics = (OneBoxMetrics)s_servlets.get(servlet);
+		if (metrics == null) {
+			metrics = new OneBoxMetrics(servlet);
+			OneBoxMetrics existing = (OneBoxMetrics)s_servlets.putIfAbsent(servlet, metrics);
+			if (existing != null)
+				metrics = existing;
+		}
+		return metrics;
+	}
+
+	/**
+	 * Exports the hits and misses of a cache, replacing the cache previously
+	 * exported under the same name.
+	 *
+	 * @param cache the cache, or null to stop exporting one
+	 */
+	public void addCache(String name, ExpiringLruCache cache)
+	{
+		if (cache == null)
+			m_caches.remove(name);
+		else
+			m_caches.put(name, cache);
+	}
+
+	/**
+	 * Exports the limit, calls in progress and refused calls of a
+	 * servlet's concurrency limiter.
+	 *
+	 * @param limiter the limiter, or null for none
+	 */
+	void setConcurrencyLimiter(ConcurrencyLimiter limiter)
+	{
+		m_concurrencyLimiter = limiter;
+	}
+
+	/**
+	 * Records a served request.
+	 *
+	 * @param resultCode "success" or the failure code of the response
+	 * @param complete false if the provider hadn't finished at the deadline
+	 * @param nanos the time taken to serve the request
+	 */
+	void record(String oneboxName, String authType, String resultCode,
+			boolean complete, long nanos)
+	{
+		AtomicReferenceArray histograms = histograms((oneboxName != null) ? oneboxName : "");
+		int slot = index(AUTH_TYPES, authType) * RESULT_CODES.length + index(RESULT_CODES, resultCode);
+		Histogram histogram = (Histogram)histograms.get(slot);
+		if (histogram == null) {
+			histograms.compareAndSet(slot, null, new Histogram());
+			histogram = (Histogram)histograms.get(slot);
+		}
+		histogram.record(nanos);
+		if (!complete)
+			m_incomplete.increment();
+	}
+
+	private AtomicReferenceArray histograms(String oneboxName)
+	{
+		AtomicReferenceArray histograms = (AtomicReferenceArray)m_oneboxes.get(oneboxName);
+		if (histograms == null) {
+			if (m_oneboxes.size() >= MAX_ONEBOX_NAMES && !oneboxName.equals(OTHER))
+				return histograms(OTHER);
+			histograms = new AtomicReferenceArray(AUTH_TYPES.length * RESULT_CODES.length);
+			AtomicReferenceArray existing =
+				(AtomicReferenceArray)m_oneboxes.putIfAbsent(oneboxName, histograms);
+			if (existing != null)
+				histograms = existing;
+		}
+		return histograms;
+	}
+
+	private static int index(String[] values, String value)
+	{
+		for (int i = 0; i < values.length - 1; i++)
+		{
+			if (values[i].equals(value))
+				return i;
+		}
+		return values.length - 1;
+	}
+
+	/**
+	 * Writes the metrics of every servlet in the Prometheus text exposition
+	 * format.
+	 */
+	static void writeAll(Writer out) throws IOException
+	{
+		TreeMap servlets = new TreeMap(s_servlets);
+
+		out.write("# HELP onebox_request_duration_seconds Time taken to serve OneBox requests.\n");
+		out.write("# TYPE onebox_request_duration_seconds histogram\n");
+		for (Iterator iter = servlets.values().iterator(); iter.hasNext(); )
+			((OneBoxMetrics)iter.next()).writeHistograms(out);
+
+		out.write("# HELP onebox_incomplete_responses_total Responses returned before the provider finished.\n");
+		out.write("# TYPE onebox_incomplete_responses_total counter\n");
+		for (Iterator iter = servlets.values().iterator(); iter.hasNext(); )
+		{
+			OneBoxMetrics metrics = (OneBoxMetrics)iter.next();
+			out.write("onebox_incomplete_responses_total{servlet=");
+			label(out, metrics.m_servlet);
+			out.write("} ");
+			out.write(Long.toString(metrics.m_incomplete.sum()));
+			out.write('\n');
+		}
+
+		String[] limiterNames = { "onebox_concurrency_limit", "onebox_concurrency_in_flight",
+			"onebox_concurrency_rejected_total" };
+		String[] limiterHelp = { "Provider calls allowed in progress at once.",
+			"Provider calls in progress.", "Requests refused for being over the concurrency limit." };
+		for (int i = 0; i < limiterNames.length; i++)
+		{
+			out.write("# HELP " + limiterNames[i] + " " + limiterHelp[i] + "\n");
+			out.write("# TYPE " + limiterNames[i] + ((i < 2) ? " gauge\n" : " counter\n"));
+			for (Iterator iter = servlets.values().iterator(); iter.hasNext(); )
+			{
+				OneBoxMetrics metrics = (OneBoxMetrics)iter.next();
+				ConcurrencyLimiter limiter = metrics.m_concurrencyLimiter;
+				if (limiter == null)
+					continue;
+				long value = (i == 0) ? limiter.getLimit()
+					: (i == 1) ? limiter.getInFlight() : limiter.getRejected();
+				out.write(limiterNames[i]);
+				out.write("{servlet=");
+				label(out, metrics.m_servlet);
+				out.write("} ");
+				out.write(Long.toString(value));
+				out.write('\n');
+			}
+		}
+
+		String[] names = { "onebox_cache_hits_total", "onebox_cache_misses_total", "onebox_cache_entries" };
+		String[] help = { "Lookups answered from the cache.",
+			"Lookups not answered from the cache.", "Entries held by the cache." };
+		for (int i = 0; i < names.length; i++)
+		{
+			out.write("# HELP " + names[i] + " " + help[i] + "\n");
+			out.write("# TYPE " + names[i] + ((i < 2) ? " counter\n" : " gauge\n"));
+			for (Iterator iter = servlets.values().iterator(); iter.hasNext(); )
+				((OneBoxMetrics)iter.next()).writeCaches(out, names[i], i);
+		}
+	}
+
+	private void writeHistograms(Writer out) throws IOException
+	{
+		TreeMap oneboxes = new TreeMap(m_oneboxes);
+		for (Iterator iter = oneboxes.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)iter.next();
+			AtomicReferenceArray histograms = (AtomicReferenceArray)entry.getValue();
+			for (int slot = 0; slot < histograms.length(); slot++)
+			{
+				Histogram histogram = (Histogram)histograms.get(slot);
+				if (histogram == null)
+					continue;
+				StringBuffer labels = new StringBuffer();
+				labels.append("servlet=");
+				label(labels, m_servlet);
+				labels.append(",onebox=");
+				label(labels, (String)entry.getKey());
+				labels.append(",auth_type=");
+				label(labels, AUTH_TYPES[slot / RESULT_CODES.length]);
+				labels.append(",result=");
+				label(labels, RESULT_CODES[slot % RESULT_CODES.length]);
+				histogram.write(out, "onebox_request_duration_seconds", labels.toString());
+			}
+		}
+	}
+
+	private void writeCaches(Writer out, String name, int value) throws IOException
+	{
+		TreeMap caches = new TreeMap(m_caches);
+		for (Iterator iter = caches.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)iter.next();
+			ExpiringLruCache cache = (ExpiringLruCache)entry.getValue();
+			long count = (value == 0) ? cache.getHits()
+				: (value == 1) ? cache.getMisses() : cache.size();
+			out.write(name);
+			out.write("{servlet=");
+			label(out, m_servlet);
+			out.write(",cache=");
+			label(out, (String)entry.getKey());
+			out.write("} ");
+			out.write(Long.toString(count));
+			out.write('\n');
+		}
+	}
+
+	private static void label(Writer out, String value) throws IOException
+	{
+		StringBuffer buf = new StringBuffer(value.length() + 2);
+		label(buf, value);
+		out.write(buf.toString());
+	}
+
+	private static void label(StringBuffer buf, String value)
+	{
+		buf.append('"');
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+				buf.append('\\').append(c);
+			else if (c == '\n')
+				buf.append("\\n");
+			else
+				buf.append(c);
+		}
+		buf.append('"');
+	}
+
+	/**
+	 * Counts of durations in buckets with doubling upper bounds.
+	 */
+	static final class Histogram
+	{
+		// Bucket i holds durations under 2^(i + MIN_SHIFT) microseconds, the
+		// last one every longer duration
+		private static final int MIN_SHIFT = 4;
+		private static final int BUCKETS = 24;
+		private static final String[] UPPER_BOUNDS = new String[BUCKETS];
+		static {
+			for (int i = 0; i < BUCKETS - 1; i++)
+			{
+				long micros = 1L << (i + MIN_SHIFT);
+				String fraction = Long.toString(1000000 + micros % 1000000).substring(1);
+				while (fraction.endsWith("0"))
+					fraction = fraction.substring(0, fraction.length() - 1);
+				UPPER_BOUNDS[i] = (micros / 1000000) + (fraction.length() > 0 ? "." + fraction : "");
+			}
+			UPPER_BOUNDS[BUCKETS - 1] = "+Inf";
+		}
+
+		private final LongAdder[] m_buckets = new LongAdder[BUCKETS];
+		private final LongAdder m_sumNanos = new LongAdder();
+
+		Histogram()
+		{
+			for (int i = 0; i < BUCKETS; i++)
+				m_buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos)
+		{
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(micros) - MIN_SHIFT);
+			m_buckets[Math.min(bucket, BUCKETS - 1)].increment();
+			m_sumNanos.add(nanos);
+		}
+
+		void write(Writer out, String name, String labels) throws IOException
+		{
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				count += m_buckets[i].sum();
+				out.write(name);
+				out.write("_bucket{");
+				out.write(labels);
+				out.write(",le=\"");
+				out.write(UPPER_BOUNDS[i]);
+				out.write("\"} ");
+				out.write(Long.toString(count));
+				out.write('\n');
+			}
+			out.write(name);
+			out.write("_sum{");
+			out.write(labels);
+			out.write("} ");
+			out.write(Double.toString(m_sumNanos.sum() / 1e9));
+			out.write('\n');
+			out.write(name);
+			out.write("_count{");
+			out.write(labels);
+			out.write("} ");
+			out.write(Long.toString(count));
+			out.write('\n');
+		}
+	}
+}
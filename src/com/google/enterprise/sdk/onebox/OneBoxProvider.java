@@ -1,269 +1,1176 @@
-/*
- * Copyright (C) 2006 Google Inc.
- * 
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- * 
- *      http://www.apache.org/licenses/LICENSE-2.0
- *      
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package com.google.enterprise.sdk.onebox;
-
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Enumeration;
-import java.util.ArrayList;
-
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.Cookie;
-
-
-/**
- * Abstract base class servlet for providing OneBox results.
- * <p>
- * Services GET method requests from OneBox clients by unpacking their
- * request parameters and delegating to one of the overloaded
- * {@link #provideOneBoxResults provideOneBoxResults()} methods depending on the
- * <code>authType</code> parameter.
- * <p>
- * Providers need to extend this class and override one or more
- * of its <code>provideOneBoxResults</code> methods.  The base class
- * implementation of those methods will all throw
- * <code>UnsupportedOperationException</code>.
- * 
- * @see OneBoxResults
- */
-public abstract class OneBoxProvider extends HttpServlet
-{
-	protected String webAppBaseURL;
-	
-	/**
-	 * Called by the application server's servlet runner when GET method
-	 * requests are made for this servlet.  OneBox clients (such as the
-	 * Google Search Appliance) make HTTP requests to OneBox providers
-	 * exclusivley using the GET method.
-	 */
-	public void doGet (HttpServletRequest request, HttpServletResponse response)
-		throws ServletException, IOException
-	{
-		getServletContext().log("--------------------------");
-		logHeaders(request);
-		webAppBaseURL = request.getScheme() + "://" +
-						request.getServerName() + ":" + request.getServerPort() +
-						request.getContextPath() + "/";
-		
-		processRequest(request, response);
-		
-		getServletContext().log("--------------------------");
-	}
-
-	/**
-	 * Convenience method for logging the HTTP headers sent in the request.  This
-	 * will log to the application server's log channel set up for this servlet
-	 * and is purely meant for use during debugging. 
-	 */
-	protected void logHeaders(HttpServletRequest request)
-	{
-		StringBuffer buf = new StringBuffer();
-		buf.append("Headers:\n");
-		Enumeration headerNames = request.getHeaderNames();
-		while (headerNames.hasMoreElements()) {
-			String headerName = (String)headerNames.nextElement();
-			String headerValue = request.getHeader(headerName);
-			buf.append("["+headerName +" = "+headerValue+"]\n");
-		}
-		getServletContext().log(buf.toString());
-	}
-	/**
-	 * Top level request processor for this OneBox provider.
-	 * <p>
-	 * Unpacks the HTTP request's parameters and passes them into one of the
-	 * <code>provideOneBoxResults</code> methods, based on the value of
-	 * the <code>authType</code> parameter, for further processing.
-	 * <p>
-	 * Returns an HTTP response with XML that adhere's to the Google DTD
-	 * defining the schema for OneBox for Enterprise provider results.
-	 */
-	protected void processRequest(HttpServletRequest request, HttpServletResponse response)
-		throws ServletException, IOException
-	{
-		String apiMaj = request.getParameter("apiMaj"); // integer (1,2,3,...)
-		String apiMin = request.getParameter("apiMin"); // integer (0,1,2,3,...)
-		String oneboxName = request.getParameter("oneboxName");
-		
-		String dateTime = request.getParameter("dateTime"); // optional, UTC format
-		String ipAddr = request.getParameter("ipAddr"); // optional
-		
-		String lang = request.getParameter("lang"); // two-character language code
-		String query = request.getParameter("query"); // UTF-8 encoded, URL-escaped
-		
-		// optional, match groups from regular expression evaluation
-		int count = 0;
-		ArrayList _matchGroups = new ArrayList();
-		String match = request.getParameter("p"+(count++));
-		while (match != null) {
-			_matchGroups.add(match);
-			match = request.getParameter("p"+(count++));
-		}
-		String[] matchGroups = (String[])_matchGroups.toArray(new String[_matchGroups.size()]);
-		
-		IOneBoxResults res = null;
-		try
-		{
-			// authType == none | basic | ldap | sso
-			String authType = request.getParameter("authType");
-			if ("none".equals(authType))
-			{
-				res = provideOneBoxResults(apiMaj, apiMin, oneboxName, dateTime,
-						ipAddr, lang, query, matchGroups);
-			}
-			else if ("basic".equals(authType))
-			{
-				String username = request.getParameter("userName");
-				String password = request.getParameter("password");
-				res = provideOneBoxResults(apiMaj, apiMin, oneboxName, dateTime,
-						ipAddr, username, password, lang, query, matchGroups);
-			}
-			else if ("ldap".equals(authType))
-			{
-				// LDAP distinguished name (DN)
-				String distinguishedName = request.getParameter("userName");
-				res = provideOneBoxResults(apiMaj, apiMin, oneboxName, dateTime,
-						ipAddr, distinguishedName, lang, query, matchGroups);
-			}
-			else if ("sso".equals(authType))
-			{
-				Cookie ssoCookie = null;
-				String cookieName = request.getParameter("userName");
-				Cookie[] cookies = request.getCookies();
-				if (cookies != null)
-				{
-					for (int i=0; i<cookies.length; i++ )
-					{
-						Cookie c = cookies[i];
-						if (c.getName().equals(cookieName))
-						{
-							ssoCookie = c;
-							break;
-						}
-					}
-				}
-				res = provideOneBoxResults(apiMaj, apiMin, oneboxName, dateTime,
-						ipAddr, ssoCookie, lang, query, matchGroups);
-			}
-			else
-			{
-				res = new OneBoxResults();
-				((OneBoxResults)res).setFailure(FailureCode.securityFailure,
-						"User authentication type not recognized: "+authType);
-			}
-		}
-		catch (UnsupportedOperationException osoe)
-		{
-			res = new OneBoxResults();
-			((OneBoxResults)res).setFailure(FailureCode.securityFailure,
-					osoe.getMessage());
-		}
-		
-		// Defines response MIME type
-		response.setContentType("text/xml");
-		PrintWriter out = response.getWriter();
-		out.print(res.serialize());
-		out.close();
-	}
-
-	/**
-	 * Method to handle OneBox requests where no user authentication is required.
-	 * 
-	 * @param apiMaj the OneBox for Enterprise API major version
-	 * @param apiMin the OneBox for Enterprise API minor version 
-	 * @param oneboxName the name of the OneBox module
-	 * @param dateTime the date and time of the OneBox query
-	 * @param ipAddr the IP address of the end user as determined by the OneBox client
-	 * @param lang the language of the user's browser, two character language code 
-	 * @param query the end user's query, UTF-8 encoded and URL-escaped
-	 * @param matchGroups reqular expression evaluation match groups
-	 * @return IOneBoxResults
-	 */
-	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
-			String dateTime, String ipAddr, String lang, String query, String[] matchGroups)
-	{
-		throw new UnsupportedOperationException("User authentication type not supported: \"None\"");
-	}
-	
-	/**
-	 * Method to handle OneBox requests where simple username / password based
-	 * authentication of the end user is required.
-	 * 
-	 * @param apiMaj the OneBox for Enterprise API major version
-	 * @param apiMin the OneBox for Enterprise API minor version
-	 * @param oneboxName the name of the OneBox module
-	 * @param dateTime the date and time of the OneBox query
-	 * @param ipAddr the IP address of the end user as determined by the OneBox client
-	 * @param userName the username entered by the end user
-	 * @param password the password entered by the end user
-	 * @param lang the language of the user's browser, two character language code
-	 * @param query the end user's query, UTF-8 encoded and URL-escaped
-	 * @param matchGroups reqular expression evaluation match groups
-	 * @return IOneBoxResults
-	 */
-	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
-			String dateTime, String ipAddr, String userName, String password, String lang,
-			String query, String[] matchGroups)
-	{
-		throw new UnsupportedOperationException("User authentication type not supported: \"Basic\"");
-	}
-	/**
-	 * Method to handle OneBox requests where LDAP based authentication of the
-	 * end user is required. 
-	 * 
-	 * @param apiMaj the OneBox for Enterprise API major version
-	 * @param apiMin the OneBox for Enterprise API minor version
-	 * @param oneboxName the name of the OneBox module
-	 * @param dateTime the date and time of the OneBox query
-	 * @param ipAddr the IP address of the end user as determined by the OneBox client
-	 * @param distinguishedName the distinguished name from the LDAP lookup of the end user
-	 * @param lang the language of the user's browser, two character language code
-	 * @param query the end user's query, UTF-8 encoded and URL-escaped
-	 * @param matchGroups reqular expression evaluation match groups
-	 * @return IOneBoxResults
-	 */
-	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
-			String dateTime, String ipAddr, String distinguishedName, String lang, String query,
-			String[] matchGroups)
-	{
-		throw new UnsupportedOperationException("User authentication type not supported: \"LDAP\"");
-	}
-	
-	/**
-	 * Method to handle OneBox requests where forms based (Single Sign-On) authentication
-	 * of the end user is required.
-	 * 
-	 * @param apiMaj the OneBox for Enterprise API major version
-	 * @param apiMin the OneBox for Enterprise API minor version
-	 * @param oneboxName the name of the OneBox module
-	 * @param dateTime the date and time of the OneBox query
-	 * @param ipAddr the IP address of the end user as determined by the OneBox client
-	 * @param ssoCookie the cookie from the authentication system containing the trusted user identity
-	 * @param lang the language of the user's browser, two character language code
-	 * @param query the end user's query, UTF-8 encoded and URL-escaped
-	 * @param matchGroups reqular expression evaluation match groups
-	 * @return IOneBoxResults
-	 */
-	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
-			String dateTime, String ipAddr, Cookie ssoCookie, String lang, String query,
-			String[] matchGroups)
-	{
-		throw new UnsupportedOperationException("User authentication type not supported: \"SSO\"");
-	}
-}
+/*
+ * Copyright (C) 2006 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Cookie;
+
+
+/**
+ * Abstract base class servlet for providing OneBox results.
+ * <p>
+ * Services GET method requests from OneBox clients by parsing their
+ * request parameters into a {@link OneBoxRequest} and passing it to
+ * {@link #provideOneBoxResults(OneBoxRequest)}.
+ * <p>
+ * Providers need to extend this class and override
+ * {@link #provideOneBoxResults(OneBoxRequest, OneBoxResults)} or
+ * <code>provideOneBoxResults(OneBoxRequest)</code>, or, as providers
+ * written against earlier versions of this class do, one or more of the
+ * <code>provideOneBoxResults</code> overloads taking the request's
+ * parameters for each <code>authType</code>.  The base class implementation
+ * of those overloads will all throw
+ * <code>UnsupportedOperationException</code>.
+ * <p>
+ * Responses to requests that need no user authentication can optionally be
+ * cached, and responses can be given a deadline after which the results
+ * found so far, or a {@link FailureCode#timeout}, are returned, see
+ * {@link #init()}.
+ * 
+ * @see OneBoxResults
+ */
+public abstract class OneBoxProvider extends HttpServlet
+{
+	/**
+	 * The URL of the web application as reached by the first request handled
+	 * through the <code>provideOneBoxResults</code> overloads taking the
+	 * request's parameters.
+	 *
+	 * @deprecated the field is shared by all the requests the servlet handles
+	 * concurrently, which may reach it through different URLs; use
+	 * {@link #getWebAppBaseURL()} or {@link OneBoxRequest#getBaseURL()}
+	 * instead
+	 */
+	@Deprecated
+	protected String webAppBaseURL;
+	
+	// The base URL of the request whose parameters the calling thread is
+	// passing to a provideOneBoxResults overload
+	private static final ThreadLocal s_webAppBaseURL = new ThreadLocal();
+	
+	// Host names above which base URLs are no longer remembered, since they
+	// come from the requests' Host header
+	private static final int MAX_BASE_URLS = 64;
+	
+	// Base URL string to BaseURL, one per scheme, host, port and context the
+	// web application is reached through
+	private final ConcurrentHashMap m_baseURLs = new ConcurrentHashMap();
+	
+	// Serialized responses to unauthenticated requests, or null when response
+	// caching is disabled
+	private ExpiringLruCache m_responseCache = null;
+	
+	// Milliseconds from a request's arrival to its deadline, 0 for none
+	private long m_responseTimeout = 0;
+	// Threads running the provider while requests wait for their results, or
+	// null when the provider runs on the container's threads
+	private ExecutorService m_providerThreads = null;
+	// Permits for the provider calls in progress on the provider threads,
+	// including the ones still running after their deadline
+	private Semaphore m_providerPermits = null;
+	// Whether the provider threads and permits belong to a OneBoxRouter
+	// rather than to this servlet
+	private boolean m_sharedProviderThreads = false;
+	// Answers the requests started asynchronously whose provider misses
+	// their deadline, or null without a timeout
+	private ScheduledThreadPoolExecutor m_deadlines = null;
+	// Bounds the provider calls in progress, or null for no bound
+	private ConcurrencyLimiter m_concurrencyLimiter = null;
+	
+	// How a call to the provider ended: run to completion or failure,
+	// answered at its deadline, or refused for want of a provider thread
+	private static final int CALL_RAN = 0;
+	private static final int CALL_MISSED_DEADLINE = 1;
+	private static final int CALL_REJECTED = 2;
+	
+	private OneBoxMetrics m_metrics = null;
+	
+	// Where requests are logged, or null
+	private AccessLog m_accessLog = null;
+	// One in how many successful requests is logged
+	private int m_accessLogSampling = 1;
+	// The names of the request headers logged, or null for none
+	private String[] m_accessLogHeaders = null;
+	
+	// Whether responses carry a Server-Timing header, and whether their
+	// Diagnostics element lists the phases too
+	private boolean m_serverTiming = false;
+	private boolean m_timingDiagnostics = false;
+	
+	/**
+	 * Sets up the response cache, timeouts and access log from the servlet's
+	 * init-params.  Requests are counted in the servlet's
+	 * {@link #getMetrics() metrics} from then on.
+	 * <p>
+	 * <code>responseCacheSize</code> is the maximum number of responses kept,
+	 * least recently used first out.  It defaults to 0, which disables the
+	 * cache.  <code>responseCacheTTL</code> is the number of seconds a response
+	 * is served from the cache, 60 by default.  Only requests with an
+	 * <code>authType</code> of <code>none</code> are cached, and only if the
+	 * provider's results were successful.
+	 * <p>
+	 * <code>responseTimeout</code> is the number of milliseconds after a
+	 * request's arrival at which the response is returned if the provider
+	 * hasn't finished yet, so that the OneBox client gets an answer within its
+	 * own time budget.  The response holds the results the provider has added
+	 * so far, see
+	 * {@link #provideOneBoxResults(OneBoxRequest, OneBoxResults)}, or is a
+	 * {@link FailureCode#timeout} if there are none.  It defaults to 0,
+	 * which lets the provider take as long as it needs.
+	 * <p>
+	 * With a timeout, or with a <code>providerExecutor</code> of
+	 * <code>virtual</code>, the provider runs on threads of its own rather
+	 * than on the container's.  <code>providerExecutor</code> is
+	 * <code>platform</code> by default.  <code>virtual</code> runs each call
+	 * on a virtual thread, which doesn't tie up an operating system thread
+	 * while the provider waits on blocking LDAP, SSO or database calls; on a
+	 * Java runtime without virtual threads it falls back to
+	 * <code>platform</code>.  At most <code>providerThreads</code> provider
+	 * calls are in progress at once, 32 by default and 1024 with virtual
+	 * threads, counting calls still running after their deadline; requests
+	 * arriving while all are taken get a timeout response at once.  Modules
+	 * of a {@link OneBoxRouter} use the router's provider threads instead.
+	 * When the servlet is declared <code>async-supported</code> in
+	 * <code>web.xml</code>, as the samples are, the request is started
+	 * asynchronously and the container's thread returned while the provider
+	 * runs, so that slow backends don't exhaust the container's threads; the
+	 * response is written as soon as the provider finishes or the deadline
+	 * passes.  Otherwise the container's thread waits for it.
+	 * <p>
+	 * <code>concurrencyLimit</code> bounds the number of requests in the
+	 * provider at once, so that a slow backend can't take all of the
+	 * container's threads from the other providers of the node.  It defaults
+	 * to 0, for no bound.  Requests over the limit wait up to
+	 * <code>concurrencyQueueTimeout</code> milliseconds, 50 by default, for
+	 * another to finish, at most <code>concurrencyQueue</code> of them, a
+	 * quarter of the limit by default; the others get a
+	 * {@link FailureCode#timeout} response at once.  Unless
+	 * <code>adaptiveConcurrency</code> is <code>false</code>, the limit is a
+	 * maximum, and the actual limit follows the provider's latency: it is
+	 * lowered when requests miss their deadline or take much longer than
+	 * usual, and raised again as they speed up.
+	 * <p>
+	 * <code>accessLog</code> is the path of a file to which requests are
+	 * appended as lines of JSON, recording their timing, query, number of
+	 * results and result code.  Requests are not logged by default.  Only one
+	 * in <code>accessLogSampling</code> successful requests is logged, 1 by
+	 * default, while failures are always logged.
+	 * <code>accessLogHeaders</code> is a comma-separated list of request
+	 * headers whose values are logged too, none by default.  Records are
+	 * written by a background thread; up to <code>accessLogBufferSize</code>
+	 * records, 8192 by default, wait to be written, and the ones arriving
+	 * while the buffer is full are dropped and counted.
+	 * <p>
+	 * With <code>serverTiming</code> set to <code>true</code>, responses carry a
+	 * <code>Server-Timing</code> header with the milliseconds spent parsing
+	 * the request, looking it up in the response cache, in the provider and
+	 * in each of the phases it {@link RequestTiming#start starts}.  The
+	 * header is sent ahead of the results, which are streamed as they are
+	 * serialized, so serializing and writing them are timed in the access log
+	 * only.  With <code>timingDiagnostics</code>
+	 * set to <code>true</code>, uncached responses also list the phases in
+	 * their <code>Diagnostics</code> element.  The access log records every
+	 * phase, including writing the response.
+	 * <p>
+	 * Subclasses overriding this method must call <code>super.init()</code>.
+	 */
+	public void init() throws ServletException
+	{
+		m_metrics = OneBoxMetrics.forServlet(getServletName());
+		int cacheSize = intInitParameter("responseCacheSize", 0);
+		int cacheTTL = intInitParameter("responseCacheTTL", 60);
+		if (cacheSize > 0 && cacheTTL > 0) {
+			m_responseCache = new ExpiringLruCache(cacheSize, cacheTTL * 1000L);
+		}
+		m_metrics.addCache("response", m_responseCache);
+		
+		m_serverTiming = "true".equalsIgnoreCase(getInitParameter("serverTiming"));
+		m_timingDiagnostics = "true".equalsIgnoreCase(getInitParameter("timingDiagnostics"));
+		
+		String accessLog = getInitParameter("accessLog");
+		if (accessLog != null && accessLog.trim().length() > 0) {
+			m_accessLogSampling = Math.max(1, intInitParameter("accessLogSampling", 1));
+			String headers = getInitParameter("accessLogHeaders");
+			if (headers != null && headers.trim().length() > 0)
+				m_accessLogHeaders = headers.trim().split("\\s*,\\s*");
+			m_accessLog = AccessLog.open(new File(accessLog.trim()),
+					intInitParameter("accessLogBufferSize", 8192), getServletContext());
+		}
+		
+		int concurrencyLimit = intInitParameter("concurrencyLimit", 0);
+		if (concurrencyLimit > 0) {
+			m_concurrencyLimiter = new ConcurrencyLimiter(concurrencyLimit,
+					!"false".equalsIgnoreCase(getInitParameter("adaptiveConcurrency")),
+					intInitParameter("concurrencyQueue", concurrencyLimit / 4),
+					intInitParameter("concurrencyQueueTimeout", 50));
+		}
+		m_metrics.setConcurrencyLimiter(m_concurrencyLimiter);
+		
+		m_responseTimeout = intInitParameter("responseTimeout", 0);
+		String executor = getInitParameter("providerExecutor");
+		boolean virtual = (executor != null) && executor.trim().equalsIgnoreCase("virtual");
+		if (executor != null && !virtual && !executor.trim().equalsIgnoreCase("platform")
+				&& executor.trim().length() > 0)
+			throw new ServletException("Init-param providerExecutor is neither platform nor virtual: " + executor);
+		if (m_responseTimeout <= 0 && !virtual) {
+			// Runs on the container's threads, even when shared ones are offered
+			m_providerThreads = null;
+			m_providerPermits = null;
+			return;
+		}
+		if (m_responseTimeout > 0) {
+			final String threadName = "OneBoxProvider deadlines " + getServletName();
+			m_deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, threadName);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			m_deadlines.setRemoveOnCancelPolicy(true);
+		}
+		if (m_sharedProviderThreads)
+			return;
+		
+		int threads = intInitParameter("providerThreads", virtual ? 1024 : 32);
+		if (threads <= 0)
+			return;
+		if (virtual) {
+			m_providerThreads = newVirtualThreadExecutor();
+			if (m_providerThreads == null)
+				getServletContext().log(getServletName() +
+						": virtual threads are not available, using platform threads");
+		}
+		if (m_providerThreads == null)
+			m_providerThreads = newPlatformThreadExecutor("OneBoxProvider " + getServletName());
+		m_providerPermits = new Semaphore(threads);
+	}
+	
+	/**
+	 * Makes the provider run on threads shared with the other modules of a
+	 * {@link OneBoxRouter}, when it has a timeout or a
+	 * <code>providerExecutor</code>, instead of on threads of its own.
+	 * Called before {@link #init()}.
+	 */
+	void shareProviderThreads(ExecutorService threads, Semaphore permits)
+	{
+		m_providerThreads = threads;
+		m_providerPermits = permits;
+		m_sharedProviderThreads = true;
+	}
+	
+	/**
+	 * @return an executor running each task on a cached daemon thread
+	 */
+	static ExecutorService newPlatformThreadExecutor(final String threadName)
+	{
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * @return an executor running each task on a new virtual thread, or null
+	 * if the Java runtime has no virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor()
+	{
+		// Looked up reflectively so that the class still runs on older runtimes
+		try {
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor", new Class[0])
+				.invoke(null, new Object[0]);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Stops the threads running the provider and closes the access log.
+	 * <p>
+	 * Subclasses overriding this method must call <code>super.destroy()</code>.
+	 */
+	public void destroy()
+	{
+		if (m_providerThreads != null && !m_sharedProviderThreads)
+			m_providerThreads.shutdownNow();
+		if (m_deadlines != null)
+			m_deadlines.shutdownNow();
+		if (m_accessLog != null)
+			m_accessLog.close();
+		super.destroy();
+	}
+	
+	/**
+	 * @return the request counts and latencies of this servlet, to which
+	 * providers can add the caches they use
+	 */
+	protected OneBoxMetrics getMetrics()
+	{
+		return m_metrics;
+	}
+	
+	/**
+	 * Reads a servlet init-param holding an integer.
+	 * 
+	 * @param name the name of the init-param
+	 * @param defaultValue the value to use if the init-param is not set
+	 * @throws ServletException if the init-param is not an integer
+	 */
+	protected int intInitParameter(String name, int defaultValue) throws ServletException
+	{
+		String value = getInitParameter(name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new ServletException("Init-param " + name + " is not an integer: " + value);
+		}
+	}
+	
+	/**
+	 * Discards all cached responses, for instance after the data the provider
+	 * serves has changed.
+	 */
+	protected void invalidateResponseCache()
+	{
+		if (m_responseCache != null)
+			m_responseCache.clear();
+	}
+	
+	/**
+	 * Selects the queries whose cached responses are stale, see
+	 * {@link OneBoxProvider#invalidateResponseCache(QueryFilter)}.
+	 */
+	public interface QueryFilter
+	{
+		/**
+		 * @param query the query of a cached response, lower-cased and with
+		 * runs of whitespace collapsed into one space
+		 */
+		public boolean accept(String query);
+	}
+	
+	/**
+	 * Discards the cached responses to the queries the filter accepts, for
+	 * instance after a change to the provider's data that only affects some
+	 * queries.
+	 */
+	protected void invalidateResponseCache(final QueryFilter stale)
+	{
+		if (m_responseCache == null)
+			return;
+		m_responseCache.clear(new ExpiringLruCache.KeyFilter() {
+			public boolean accept(Object key)
+			{
+				return stale.accept(responseCacheQuery((String)key));
+			}
+		});
+	}
+	
+	/**
+	 * Called by the application server's servlet runner when GET method
+	 * requests are made for this servlet.  OneBox clients (such as the
+	 * Google Search Appliance) make HTTP requests to OneBox providers
+	 * exclusivley using the GET method.
+	 * <p>
+	 * Requests are logged to the access log, if any, see {@link #init()}.
+	 */
+	public void doGet (HttpServletRequest request, HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		processRequest(request, response);
+	}
+
+	/**
+	 * Convenience method for logging the HTTP headers sent in the request.  This
+	 * will log to the application server's log channel set up for this servlet
+	 * and is purely meant for use during debugging.  It is not called on
+	 * every request anymore; the <code>accessLogHeaders</code> init-param
+	 * logs chosen headers with each request instead.
+	 */
+	protected void logHeaders(HttpServletRequest request)
+	{
+		StringBuffer buf = new StringBuffer();
+		buf.append("Headers:\n");
+		Enumeration headerNames = request.getHeaderNames();
+		while (headerNames.hasMoreElements()) {
+			String headerName = (String)headerNames.nextElement();
+			String headerValue = request.getHeader(headerName);
+			buf.append("["+headerName +" = "+headerValue+"]\n");
+		}
+		getServletContext().log(buf.toString());
+	}
+	/**
+	 * Top level request processor for this OneBox provider.
+	 * <p>
+	 * Parses the HTTP request's parameters once into a {@link OneBoxRequest}
+	 * and passes it to {@link #provideOneBoxResults(OneBoxRequest)} for
+	 * further processing, unless its <code>authType</code> isn't recognized.
+	 * With a <code>responseTimeout</code>, the provider runs on another thread
+	 * and the results it has found so far are returned if it hasn't finished
+	 * by the deadline.  If the servlet supports asynchronous processing, this
+	 * method returns before the response is written, see {@link #init()}.
+	 * <p>
+	 * Returns an HTTP response with XML that adhere's to the Google DTD
+	 * defining the schema for OneBox for Enterprise provider results.  The XML
+	 * is written to the response as UTF-8 bytes by
+	 * {@link IOneBoxResults#serialize(OutputStream)}.
+	 */
+	protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		long start = System.nanoTime();
+		long deadline = (m_responseTimeout > 0)
+			? System.currentTimeMillis() + m_responseTimeout : Long.MAX_VALUE;
+		OneBoxRequest oneBoxRequest = OneBoxRequest.parse(request, baseURL(request), deadline);
+		RequestTiming timing = oneBoxRequest.getTiming();
+		long phaseStart = System.nanoTime();
+		timing.add("parse", phaseStart - start);
+		
+		// Responses that don't depend on the user's identity can be served from
+		// the cache without calling the provider or serializing again
+		String cacheKey = null;
+		if (m_responseCache != null && OneBoxRequest.AUTH_NONE.equals(oneBoxRequest.getAuthType()))
+		{
+			cacheKey = responseCacheKey(oneBoxRequest);
+			byte[] cached = (byte[])m_responseCache.get(cacheKey);
+			phaseStart = endPhase(timing, "cache", phaseStart);
+			if (cached != null) {
+				writeResponse(response, serverTiming(timing), cached);
+				endPhase(timing, "write", phaseStart);
+				recordRequest(request, oneBoxRequest, start, null, true);
+				return;
+			}
+		}
+		
+		// Listed ahead of the phases the provider times
+		int providerPhase = timing.add("provider");
+		if (m_concurrencyLimiter != null && !m_concurrencyLimiter.acquire(deadline)) {
+			new Call(request, response, oneBoxRequest, start, phaseStart, providerPhase, cacheKey, false)
+				.respond(failure(FailureCode.timeout, "Too many requests in progress"));
+			return;
+		}
+		Call call = new Call(request, response, oneBoxRequest, start, phaseStart, providerPhase, cacheKey,
+				m_concurrencyLimiter != null);
+		if (m_providerThreads != null && request.isAsyncSupported()) {
+			callProviderAsync(call, deadline);
+			return;
+		}
+		IOneBoxResults res = null;
+		try {
+			res = (m_providerThreads != null)
+				? callProvider(call, deadline) : callProvider(oneBoxRequest, new OneBoxResults());
+		} finally {
+			if (res == null)
+				call.release();
+		}
+		call.respond(res);
+	}
+	
+	/**
+	 * A request passed to the provider, answered with its results by
+	 * whichever thread has them.
+	 */
+	private final class Call
+	{
+		private final HttpServletRequest m_request;
+		private final HttpServletResponse m_response;
+		private final OneBoxRequest m_oneBoxRequest;
+		// The System.nanoTime() the request arrived at, the one its provider
+		// phase started at, and the one it got past the concurrency limiter at
+		private final long m_start;
+		private final long m_providerStart;
+		private final long m_called = System.nanoTime();
+		private final int m_providerPhase;
+		private final String m_cacheKey;
+		// Whether the call holds a permit of the concurrency limiter
+		private boolean m_limited;
+		// How the call to the provider ended, set by the thread answering
+		// the request
+		private int m_outcome = CALL_RAN;
+		
+		Call(HttpServletRequest request, HttpServletResponse response, OneBoxRequest oneBoxRequest,
+				long start, long providerStart, int providerPhase, String cacheKey, boolean limited)
+		{
+			m_request = request;
+			m_response = response;
+			m_oneBoxRequest = oneBoxRequest;
+			m_start = start;
+			m_providerStart = providerStart;
+			m_providerPhase = providerPhase;
+			m_cacheKey = cacheKey;
+			m_limited = limited;
+		}
+		
+		/**
+		 * Gives back the call's permit of the concurrency limiter, if it
+		 * holds one.  Only calls the provider ran adapt the limit, those that
+		 * missed their deadline lowering it; calls refused for want of a
+		 * provider thread say nothing about the provider's latency.
+		 */
+		void release()
+		{
+			if (!m_limited)
+				return;
+			m_limited = false;
+			if (m_outcome == CALL_REJECTED)
+				m_concurrencyLimiter.release();
+			else
+				m_concurrencyLimiter.release(m_called, System.nanoTime() - m_called,
+						m_outcome == CALL_MISSED_DEADLINE);
+		}
+		
+		/**
+		 * Writes the provider's results, caching them if they can be.
+		 */
+		void respond(IOneBoxResults res) throws IOException
+		{
+			release();
+			RequestTiming timing = m_oneBoxRequest.getTiming();
+			timing.end();
+			long phaseStart = System.nanoTime();
+			timing.set(m_providerPhase, phaseStart - m_providerStart);
+			
+			boolean cacheable = m_cacheKey != null && (res instanceof OneBoxResults) &&
+				((OneBoxResults)res).isSuccess() && ((OneBoxResults)res).isComplete();
+			if (m_timingDiagnostics && !cacheable && (res instanceof OneBoxResults))
+				((OneBoxResults)res).addDiagnostics(timing.toString());
+			// Sent ahead of the results, so without the time spent serializing
+			// and writing them
+			String serverTiming = serverTiming(timing);
+			if (cacheable)
+			{
+				ByteArrayOutputStream xml = new ByteArrayOutputStream(2048);
+				res.serialize(xml);
+				byte[] bytes = xml.toByteArray();
+				phaseStart = endPhase(timing, "serialize", phaseStart);
+				m_responseCache.put(m_cacheKey, bytes);
+				writeResponse(m_response, serverTiming, bytes);
+				endPhase(timing, "write", phaseStart);
+				recordRequest(m_request, m_oneBoxRequest, m_start, res, false);
+				return;
+			}
+			
+			// Defines response MIME type
+			m_response.setContentType(CONTENT_TYPE);
+			if (serverTiming != null)
+				m_response.setHeader("Server-Timing", serverTiming);
+			OutputStream out = m_response.getOutputStream();
+			res.serialize(out);
+			out.close();
+			endPhase(timing, "serialize", phaseStart);
+			recordRequest(m_request, m_oneBoxRequest, m_start, res, false);
+		}
+	}
+	
+	/**
+	 * Adds a phase that started at the given time and ends now.
+	 * 
+	 * @return now, as returned by <code>System.nanoTime()</code>
+	 */
+	private static long endPhase(RequestTiming timing, String phase, long phaseStart)
+	{
+		long now = System.nanoTime();
+		timing.add(phase, now - phaseStart);
+		return now;
+	}
+	
+	/**
+	 * Counts a served request in the metrics and adds it to the access log,
+	 * if it is sampled.
+	 * 
+	 * @param start the <code>System.nanoTime()</code> the request arrived at
+	 * @param res the results served, or null for a cached response
+	 */
+	private void recordRequest(HttpServletRequest request, OneBoxRequest oneBoxRequest,
+			long start, IOneBoxResults res, boolean cached)
+	{
+		long elapsed = System.nanoTime() - start;
+		String resultCode = "success";
+		int results = -1;
+		boolean complete = true;
+		if (res instanceof OneBoxResults) {
+			OneBoxResults oneBoxResults = (OneBoxResults)res;
+			resultCode = oneBoxResults.getResultCode();
+			results = oneBoxResults.getResultCount();
+			complete = oneBoxResults.isComplete();
+		}
+		if (m_metrics != null)
+			m_metrics.record(oneBoxRequest.getOneboxName(), oneBoxRequest.getAuthType(),
+					resultCode, complete, elapsed);
+		
+		if (m_accessLog == null)
+			return;
+		if (m_accessLogSampling > 1 && "success".equals(resultCode) &&
+				ThreadLocalRandom.current().nextInt(m_accessLogSampling) != 0)
+			return;
+		String[] headers = null;
+		if (m_accessLogHeaders != null) {
+			headers = new String[m_accessLogHeaders.length];
+			for (int i = 0; i < headers.length; i++)
+				headers[i] = request.getHeader(m_accessLogHeaders[i]);
+		}
+		m_accessLog.add(new AccessLog.Record(System.currentTimeMillis(),
+				elapsed, getServletName(), oneBoxRequest,
+				resultCode, results, complete, cached, oneBoxRequest.getTiming(),
+				m_accessLogHeaders, headers));
+	}
+	
+	/**
+	 * Passes a request to the provider unless its <code>authType</code> isn't
+	 * recognized.
+	 */
+	private IOneBoxResults callProvider(OneBoxRequest request, OneBoxResults results)
+	{
+		String authType = request.getAuthType();
+		if (OneBoxRequest.AUTH_NONE.equals(authType) || OneBoxRequest.AUTH_BASIC.equals(authType) ||
+				OneBoxRequest.AUTH_LDAP.equals(authType) || OneBoxRequest.AUTH_SSO.equals(authType))
+		{
+			try
+			{
+				return provideOneBoxResults(request, results);
+			}
+			catch (UnsupportedOperationException osoe)
+			{
+				return failure(FailureCode.securityFailure, osoe.getMessage());
+			}
+		}
+		return failure(FailureCode.securityFailure,
+				"User authentication type not recognized: "+authType);
+	}
+	
+	/**
+	 * Passes a request to the provider on one of the provider threads and
+	 * waits for its results until the deadline, if any, for servlets that
+	 * don't support asynchronous processing.  A provider still running at
+	 * the deadline is interrupted, and the results it has added so far are
+	 * returned instead.
+	 */
+	private IOneBoxResults callProvider(Call call, long deadline)
+		throws ServletException
+	{
+		final OneBoxRequest request = call.m_oneBoxRequest;
+		if (!m_providerPermits.tryAcquire()) {
+			call.m_outcome = CALL_REJECTED;
+			return failure(FailureCode.timeout, "Too many requests in progress");
+		}
+		final OneBoxResults partial = new OneBoxResults();
+		// Claimed by the provider thread when the call starts, or by this one
+		// when it gives up on a call that hasn't, so that exactly one of them
+		// releases the permit
+		final AtomicBoolean claimed = new AtomicBoolean();
+		Future results;
+		try {
+			results = m_providerThreads.submit(new Callable() {
+				public Object call()
+				{
+					if (!claimed.compareAndSet(false, true))
+						return null;
+					try {
+						return callProvider(request, partial);
+					} finally {
+						m_providerPermits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			m_providerPermits.release();
+			call.m_outcome = CALL_REJECTED;
+			return failure(FailureCode.timeout, "Too many requests in progress");
+		}
+		try {
+			if (deadline == Long.MAX_VALUE)
+				return (IOneBoxResults)results.get();
+			long wait = Math.max(0, deadline - System.currentTimeMillis());
+			return (IOneBoxResults)results.get(wait, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			call.m_outcome = CALL_MISSED_DEADLINE;
+			OneBoxResults found = partial.copyIncomplete();
+			results.cancel(true);
+			if (claimed.compareAndSet(false, true))
+				m_providerPermits.release();
+			if (found.isSuccess() && found.getResultCount() > 0)
+				return found;
+			return failure(FailureCode.timeout, "No results within " + m_responseTimeout + " ms");
+		} catch (InterruptedException ie) {
+			call.m_outcome = CALL_MISSED_DEADLINE;
+			results.cancel(true);
+			if (claimed.compareAndSet(false, true))
+				m_providerPermits.release();
+			Thread.currentThread().interrupt();
+			return failure(FailureCode.timeout, "Interrupted while waiting for results");
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new ServletException(cause);
+		}
+	}
+	
+	/**
+	 * Passes a request to the provider on one of the provider threads and
+	 * returns at once, leaving the container's thread free while the
+	 * provider runs.  The request is answered by the provider thread when
+	 * the provider finishes, or at the deadline, if any, with the results it
+	 * has added so far, whichever comes first; a provider still running at
+	 * the deadline is interrupted.
+	 */
+	private void callProviderAsync(Call call, long deadline) throws IOException
+	{
+		if (!m_providerPermits.tryAcquire()) {
+			call.m_outcome = CALL_REJECTED;
+			call.respond(failure(FailureCode.timeout, "Too many requests in progress"));
+			return;
+		}
+		AsyncContext async;
+		try {
+			async = call.m_request.startAsync(call.m_request, call.m_response);
+			// The deadline is kept here, more precisely than by the container
+			async.setTimeout(0);
+		} catch (RuntimeException e) {
+			// Such as an IllegalStateException from a filter or a committed
+			// response; the call never reaches the provider
+			m_providerPermits.release();
+			call.m_outcome = CALL_REJECTED;
+			call.release();
+			throw e;
+		}
+		final AsyncCall asyncCall = new AsyncCall(call, async);
+		try {
+			asyncCall.m_provider = m_providerThreads.submit(asyncCall);
+		} catch (RejectedExecutionException ree) {
+			m_providerPermits.release();
+			call.m_outcome = CALL_REJECTED;
+			asyncCall.answer(failure(FailureCode.timeout, "Too many requests in progress"));
+			return;
+		}
+		if (deadline == Long.MAX_VALUE)
+			return;
+		try {
+			asyncCall.m_deadline = m_deadlines.schedule(new Runnable() {
+				public void run() { asyncCall.deadline(); }
+			}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			// Destroyed meanwhile; the provider still answers
+		}
+	}
+	
+	/**
+	 * A call to the provider answered asynchronously, either by the provider
+	 * thread or at the deadline.
+	 */
+	private final class AsyncCall implements Runnable
+	{
+		private final Call m_call;
+		private final AsyncContext m_async;
+		private final OneBoxResults m_partial = new OneBoxResults();
+		// Claimed by the provider thread when the call starts, or at the
+		// deadline for a call that hasn't, so that exactly one of them
+		// releases the permit
+		private final AtomicBoolean m_started = new AtomicBoolean();
+		// Claimed by whichever of the provider thread and the deadline
+		// answers the request
+		private final AtomicBoolean m_answered = new AtomicBoolean();
+		private volatile Future m_provider = null;
+		private volatile Future m_deadline = null;
+		
+		AsyncCall(Call call, AsyncContext async)
+		{
+			m_call = call;
+			m_async = async;
+		}
+		
+		public void run()
+		{
+			if (!m_started.compareAndSet(false, true))
+				return;
+			IOneBoxResults res;
+			try {
+				res = callProvider(m_call.m_oneBoxRequest, m_partial);
+			} catch (RuntimeException re) {
+				fail(re);
+				return;
+			} catch (Error e) {
+				fail(e);
+				throw e;
+			} finally {
+				m_providerPermits.release();
+			}
+			answer(res);
+		}
+		
+		/**
+		 * Answers with the results found so far, unless the provider has
+		 * answered already.
+		 */
+		void deadline()
+		{
+			if (!m_answered.compareAndSet(false, true))
+				return;
+			m_call.m_outcome = CALL_MISSED_DEADLINE;
+			OneBoxResults found = m_partial.copyIncomplete();
+			if (m_provider != null)
+				m_provider.cancel(true);
+			if (m_started.compareAndSet(false, true))
+				m_providerPermits.release();
+			respond((found.isSuccess() && found.getResultCount() > 0) ? (IOneBoxResults)found
+					: failure(FailureCode.timeout, "No results within " + m_responseTimeout + " ms"));
+		}
+		
+		void answer(IOneBoxResults res)
+		{
+			if (!m_answered.compareAndSet(false, true))
+				return;
+			if (m_deadline != null)
+				m_deadline.cancel(false);
+			respond(res);
+		}
+		
+		private void respond(IOneBoxResults res)
+		{
+			try {
+				m_call.respond(res);
+			} catch (IOException ioe) {
+				getServletContext().log(getServletName() + ": the response couldn't be written", ioe);
+			} catch (RuntimeException re) {
+				getServletContext().log(getServletName() + ": the response couldn't be written", re);
+			} finally {
+				m_async.complete();
+			}
+		}
+		
+		/**
+		 * Answers with an internal server error, as the container does when
+		 * a servlet throws.
+		 */
+		private void fail(Throwable t)
+		{
+			if (!m_answered.compareAndSet(false, true))
+				return;
+			if (m_deadline != null)
+				m_deadline.cancel(false);
+			m_call.release();
+			getServletContext().log(getServletName() + ": the provider failed", t);
+			try {
+				m_call.m_response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			} catch (IOException ioe) {
+				// The client is gone
+			} catch (IllegalStateException ise) {
+				// Already committed
+			} finally {
+				m_async.complete();
+			}
+		}
+	}
+	
+	private static OneBoxResults failure(FailureCode code, String diagnostics)
+	{
+		OneBoxResults res = new OneBoxResults();
+		res.setFailure(code, diagnostics);
+		return res;
+	}
+	
+	private static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+	
+	/**
+	 * @return the <code>Server-Timing</code> header of the phases timed so
+	 * far, or null if responses don't carry one
+	 */
+	private String serverTiming(RequestTiming timing)
+	{
+		return m_serverTiming ? timing.toHeader() : null;
+	}
+	
+	private static void writeResponse(HttpServletResponse response, String serverTiming, byte[] xml)
+		throws IOException
+	{
+		response.setContentType(CONTENT_TYPE);
+		if (serverTiming != null)
+			response.setHeader("Server-Timing", serverTiming);
+		response.setContentLength(xml.length);
+		OutputStream out = response.getOutputStream();
+		out.write(xml);
+		out.close();
+	}
+	
+	/**
+	 * @return the URL of the web application as reached by the request,
+	 * shared with the earlier requests through the same host name
+	 */
+	private BaseURL baseURL(HttpServletRequest request)
+	{
+		String url = BaseURL.toString(request);
+		BaseURL baseURL = (BaseURL)m_baseURLs.get(url);
+		if (baseURL == null) {
+			baseURL = new BaseURL(url);
+			if (m_baseURLs.size() < MAX_BASE_URLS) {
+				BaseURL existing = (BaseURL)m_baseURLs.putIfAbsent(url, baseURL);
+				if (existing != null)
+					baseURL = existing;
+			}
+		}
+		return baseURL;
+	}
+	
+	/**
+	 * Builds the response cache key of an unauthenticated request.  Queries
+	 * that differ only in case or whitespace share a key.  The key includes
+	 * the web application's base URL since responses contain absolute links.
+	 */
+	private String responseCacheKey(OneBoxRequest request)
+	{
+		StringBuffer key = new StringBuffer(64);
+		key.append(request.getBaseURL()).append('\n')
+			.append(request.getOneboxName()).append('\n')
+			.append(request.getApiMaj()).append('.').append(request.getApiMin()).append('\n')
+			.append(request.getLang()).append('\n')
+			.append(request.getNormalizedQuery());
+		for (int i = 0; i < request.getMatchGroupCount(); i++) {
+			key.append('\n').append(request.getMatchGroup(i));
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * @return the query of a response cache key
+	 */
+	private static String responseCacheQuery(String key)
+	{
+		int start = 0;
+		for (int i = 0; i < 4; i++)
+			start = key.indexOf('\n', start) + 1;
+		int end = key.indexOf('\n', start);
+		return key.substring(start, (end < 0) ? key.length() : end);
+	}
+	
+	/**
+	 * Handles a OneBox request, adding results as they are found so that the
+	 * ones found by the request's deadline can be returned if the provider
+	 * hasn't finished by then.  Providers whose lookups produce results
+	 * incrementally should override this method, add results to
+	 * <code>results</code> and return it; the request's
+	 * {@link OneBoxRequest#getRemainingTime() remaining time} tells how long
+	 * they have.  A title link set with
+	 * {@link OneBoxResults#setResultsTitleLink(int, String, String)} then
+	 * shows the number of results found so far, followed by a plus sign.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #provideOneBoxResults(OneBoxRequest)}, whose results are only
+	 * returned once the provider has finished.
+	 * 
+	 * @param request the parsed request
+	 * @param results an empty results set that can be returned when the
+	 * deadline passes
+	 * @return IOneBoxResults, normally <code>results</code>
+	 * @throws UnsupportedOperationException if the provider doesn't support
+	 * the request's authentication type
+	 */
+	protected IOneBoxResults provideOneBoxResults(OneBoxRequest request, OneBoxResults results)
+	{
+		return provideOneBoxResults(request);
+	}
+	
+	/**
+	 * Handles a OneBox request.  Providers should override this method or
+	 * {@link #provideOneBoxResults(OneBoxRequest, OneBoxResults)}; the
+	 * default implementation passes the request's parameters to the
+	 * <code>provideOneBoxResults</code> overload for its
+	 * <code>authType</code>, which providers written against earlier versions
+	 * of this class override.
+	 * 
+	 * @param request the parsed request, with an <code>authType</code> of
+	 * {@link OneBoxRequest#AUTH_NONE}, {@link OneBoxRequest#AUTH_BASIC},
+	 * {@link OneBoxRequest#AUTH_LDAP} or {@link OneBoxRequest#AUTH_SSO}
+	 * @return IOneBoxResults
+	 * @throws UnsupportedOperationException if the provider doesn't support
+	 * the request's authentication type
+	 */
+	protected IOneBoxResults provideOneBoxResults(OneBoxRequest request)
+	{
+		String baseURL = request.getBaseURL().toString();
+		if (webAppBaseURL == null)
+			webAppBaseURL = baseURL;
+		Object outer = s_webAppBaseURL.get();
+		s_webAppBaseURL.set(baseURL);
+		try {
+			return provideLegacyOneBoxResults(request);
+		} finally {
+			if (outer == null)
+				s_webAppBaseURL.remove();
+			else
+				s_webAppBaseURL.set(outer);
+		}
+	}
+	
+	/**
+	 * @return the URL of the web application as reached by the request whose
+	 * parameters are being passed to a <code>provideOneBoxResults</code>
+	 * overload on the calling thread, or null outside of those overloads
+	 */
+	protected String getWebAppBaseURL()
+	{
+		return (String)s_webAppBaseURL.get();
+	}
+	
+	// Passes the request's parameters to the overload for its authType
+	private IOneBoxResults provideLegacyOneBoxResults(OneBoxRequest request)
+	{
+		String[] matchGroups = request.getMatchGroups();
+		String authType = request.getAuthType();
+		if (OneBoxRequest.AUTH_BASIC.equals(authType))
+		{
+			return provideOneBoxResults(request.getApiMaj(), request.getApiMin(),
+					request.getOneboxName(), request.getDateTime(), request.getIpAddr(),
+					request.getUserName(), request.getPassword(), request.getLang(),
+					request.getQuery(), matchGroups);
+		}
+		else if (OneBoxRequest.AUTH_LDAP.equals(authType))
+		{
+			return provideOneBoxResults(request.getApiMaj(), request.getApiMin(),
+					request.getOneboxName(), request.getDateTime(), request.getIpAddr(),
+					request.getUserName(), request.getLang(), request.getQuery(), matchGroups);
+		}
+		else if (OneBoxRequest.AUTH_SSO.equals(authType))
+		{
+			return provideOneBoxResults(request.getApiMaj(), request.getApiMin(),
+					request.getOneboxName(), request.getDateTime(), request.getIpAddr(),
+					request.getSsoCookie(), request.getLang(), request.getQuery(), matchGroups);
+		}
+		return provideOneBoxResults(request.getApiMaj(), request.getApiMin(),
+				request.getOneboxName(), request.getDateTime(), request.getIpAddr(),
+				request.getLang(), request.getQuery(), matchGroups);
+	}
+	
+	/**
+	 * Method to handle OneBox requests where no user authentication is required.
+	 * 
+	 * @param apiMaj the OneBox for Enterprise API major version
+	 * @param apiMin the OneBox for Enterprise API minor version 
+	 * @param oneboxName the name of the OneBox module
+	 * @param dateTime the date and time of the OneBox query
+	 * @param ipAddr the IP address of the end user as determined by the OneBox client
+	 * @param lang the language of the user's browser, two character language code 
+	 * @param query the end user's query, UTF-8 encoded and URL-escaped
+	 * @param matchGroups reqular expression evaluation match groups
+	 * @return IOneBoxResults
+	 */
+	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
+			String dateTime, String ipAddr, String lang, String query, String[] matchGroups)
+	{
+		throw new UnsupportedOperationException("User authentication type not supported: \"None\"");
+	}
+	
+	/**
+	 * Method to handle OneBox requests where simple username / password based
+	 * authentication of the end user is required.
+	 * 
+	 * @param apiMaj the OneBox for Enterprise API major version
+	 * @param apiMin the OneBox for Enterprise API minor version
+	 * @param oneboxName the name of the OneBox module
+	 * @param dateTime the date and time of the OneBox query
+	 * @param ipAddr the IP address of the end user as determined by the OneBox client
+	 * @param userName the username entered by the end user
+	 * @param password the password entered by the end user
+	 * @param lang the language of the user's browser, two character language code
+	 * @param query the end user's query, UTF-8 encoded and URL-escaped
+	 * @param matchGroups reqular expression evaluation match groups
+	 * @return IOneBoxResults
+	 */
+	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
+			String dateTime, String ipAddr, String userName, String password, String lang,
+			String query, String[] matchGroups)
+	{
+		throw new UnsupportedOperationException("User authentication type not supported: \"Basic\"");
+	}
+	/**
+	 * Method to handle OneBox requests where LDAP based authentication of the
+	 * end user is required. 
+	 * 
+	 * @param apiMaj the OneBox for Enterprise API major version
+	 * @param apiMin the OneBox for Enterprise API minor version
+	 * @param oneboxName the name of the OneBox module
+	 * @param dateTime the date and time of the OneBox query
+	 * @param ipAddr the IP address of the end user as determined by the OneBox client
+	 * @param distinguishedName the distinguished name from the LDAP lookup of the end user
+	 * @param lang the language of the user's browser, two character language code
+	 * @param query the end user's query, UTF-8 encoded and URL-escaped
+	 * @param matchGroups reqular expression evaluation match groups
+	 * @return IOneBoxResults
+	 */
+	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
+			String dateTime, String ipAddr, String distinguishedName, String lang, String query,
+			String[] matchGroups)
+	{
+		throw new UnsupportedOperationException("User authentication type not supported: \"LDAP\"");
+	}
+	
+	/**
+	 * Method to handle OneBox requests where forms based (Single Sign-On) authentication
+	 * of the end user is required.
+	 * 
+	 * @param apiMaj the OneBox for Enterprise API major version
+	 * @param apiMin the OneBox for Enterprise API minor version
+	 * @param oneboxName the name of the OneBox module
+	 * @param dateTime the date and time of the OneBox query
+	 * @param ipAddr the IP address of the end user as determined by the OneBox client
+	 * @param ssoCookie the cookie from the authentication system containing the trusted user identity
+	 * @param lang the language of the user's browser, two character language code
+	 * @param query the end user's query, UTF-8 encoded and URL-escaped
+	 * @param matchGroups reqular expression evaluation match groups
+	 * @return IOneBoxResults
+	 */
+	protected IOneBoxResults provideOneBoxResults(String apiMaj, String apiMin, String oneboxName,
+			String dateTime, String ipAddr, Cookie ssoCookie, String lang, String query,
+			String[] matchGroups)
+	{
+		throw new UnsupportedOperationException("User authentication type not supported: \"SSO\"");
+	}
+}
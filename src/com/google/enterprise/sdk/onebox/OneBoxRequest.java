@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The parameters of a OneBox request, parsed once when the request arrives.
+ * <p>
+ * Instances are immutable, apart from their {@link #getTiming() timing}, so
+ * they can be handed to other threads and used as a whole to key caches and
+ * metrics.
+ */
+public final class OneBoxRequest
+{
+	/**
+	 * The <code>authType</code> of requests needing no user authentication.
+	 */
+	public static final String AUTH_NONE = "none";
+	/**
+	 * The <code>authType</code> of requests carrying a username and password.
+	 */
+	public static final String AUTH_BASIC = "basic";
+	/**
+	 * The <code>authType</code> of requests carrying an LDAP distinguished name.
+	 */
+	public static final String AUTH_LDAP = "ldap";
+	/**
+	 * The <code>authType</code> of requests carrying a single sign-on cookie.
+	 */
+	public static final String AUTH_SSO = "sso";
+
+	private static final String[] NO_MATCH_GROUPS = new String[0];
+
+	private final String m_apiMaj;
+	private final String m_apiMin;
+	private final int m_apiMajor;
+	private final int m_apiMinor;
+	private final String m_oneboxName;
+	private final String m_dateTime;
+	private final String m_ipAddr;
+	private final String m_lang;
+	private final String m_query;
+	private final String m_normalizedQuery;
+	private final String[] m_matchGroups;
+	private final String m_authType;
+	private final String m_userName;
+	private final String m_password;
+	private final Cookie m_ssoCookie;
+	private final BaseURL m_baseURL;
+	private final long m_deadline;
+	private final RequestTiming m_timing = new RequestTiming();
+
+	private OneBoxRequest(Map params, Cookie[] cookies, BaseURL baseURL, long deadline)
+	{
+		m_baseURL = baseURL;
+		m_deadline = deadline;
+		m_apiMaj = param(params, "apiMaj");
+		m_apiMin = param(params, "apiMin");
+		m_apiMajor = parseVersion(m_apiMaj);
+		m_apiMinor = parseVersion(m_apiMin);
+		m_oneboxName = param(params, "oneboxName");
+		m_dateTime = param(params, "dateTime");
+		m_ipAddr = param(params, "ipAddr");
+		m_lang = param(params, "lang");
+		m_query = param(params, "query");
+		m_normalizedQuery = normalizeQuery(m_query);
+
+		// Match groups from the trigger's regular expression, p0, p1, ...
+		ArrayList matchGroups = new ArrayList(4);
+		String match = param(params, "p0");
+		while (match != null) {
+			matchGroups.add(match);
+			match = param(params, "p" + matchGroups.size());
+		}
+		m_matchGroups = matchGroups.isEmpty() ? NO_MATCH_GROUPS
+			: (String[])matchGroups.toArray(new String[matchGroups.size()]);
+
+		m_authType = param(params, "authType");
+		m_userName = param(params, "userName");
+		m_password = AUTH_BASIC.equals(m_authType) ? param(params, "password") : null;
+		Cookie ssoCookie = null;
+		if (AUTH_SSO.equals(m_authType) && m_userName != null && cookies != null)
+		{
+			for (int i = 0; i < cookies.length; i++)
+			{
+				if (cookies[i].getName().equals(m_userName)) {
+					ssoCookie = cookies[i];
+					break;
+				}
+			}
+		}
+		m_ssoCookie = ssoCookie;
+	}
+
+	/**
+	 * Parses the parameters of an HTTP request from a OneBox client.
+	 */
+	public static OneBoxRequest parse(HttpServletRequest request)
+	{
+		return parse(request, BaseURL.of(request), Long.MAX_VALUE);
+	}
+
+	/**
+	 * Parses the parameters of an HTTP request from a OneBox client.
+	 *
+	 * @param baseURL the URL of the web application as reached by the request
+	 * @param deadline the time, in milliseconds as returned by
+	 * <code>System.currentTimeMillis()</code>, by which the response is due,
+	 * or <code>Long.MAX_VALUE</code> for none
+	 */
+	public static OneBoxRequest parse(HttpServletRequest request, BaseURL baseURL, long deadline)
+	{
+		return new OneBoxRequest(request.getParameterMap(), request.getCookies(), baseURL, deadline);
+	}
+
+	private static String param(Map params, String name)
+	{
+		String[] values = (String[])params.get(name);
+		return (values == null || values.length == 0) ? null : values[0];
+	}
+
+	private static int parseVersion(String version)
+	{
+		if (version == null)
+			return -1;
+		try {
+			int v = Integer.parseInt(version.trim());
+			return (v < 0) ? -1 : v;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Lower-cases the query and collapses runs of whitespace into one space.
+	 */
+	static String normalizeQuery(String query)
+	{
+		if (query == null)
+			return "";
+		StringBuffer buf = new StringBuffer(query.length());
+		boolean space = false;
+		for (int i = 0; i < query.length(); i++)
+		{
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = buf.length() > 0;
+			} else {
+				if (space)
+					buf.append(' ');
+				buf.append(Character.toLowerCase(c));
+				space = false;
+			}
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * @return the URL of the web application as reached by this request, to
+	 * resolve the links of the response against
+	 */
+	public BaseURL getBaseURL() { return m_baseURL; }
+	/**
+	 * @return the time, in milliseconds as returned by
+	 * <code>System.currentTimeMillis()</code>, by which the response is due,
+	 * or <code>Long.MAX_VALUE</code> if the provider can take as long as it
+	 * needs
+	 */
+	public long getDeadline() { return m_deadline; }
+	/**
+	 * @return the time spent in each phase of the request's processing, to
+	 * which providers can add their own phases
+	 */
+	public RequestTiming getTiming() { return m_timing; }
+	/**
+	 * @return the milliseconds left until the deadline, 0 once it has passed
+	 */
+	public long getRemainingTime()
+	{
+		if (m_deadline == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+		return Math.max(0, m_deadline - System.currentTimeMillis());
+	}
+	/**
+	 * @return the OneBox for Enterprise API major version as sent
+	 */
+	public String getApiMaj() { return m_apiMaj; }
+	/**
+	 * @return the OneBox for Enterprise API minor version as sent
+	 */
+	public String getApiMin() { return m_apiMin; }
+	/**
+	 * @return the API major version, or -1 if it is missing or not a number
+	 */
+	public int getApiMajorVersion() { return m_apiMajor; }
+	/**
+	 * @return the API minor version, or -1 if it is missing or not a number
+	 */
+	public int getApiMinorVersion() { return m_apiMinor; }
+	/**
+	 * @return whether the request's API version is valid and at least
+	 * <code>major.minor</code>
+	 */
+	public boolean isApiVersionAtLeast(int major, int minor)
+	{
+		if (m_apiMajor < 0 || m_apiMinor < 0)
+			return false;
+		return m_apiMajor > major || (m_apiMajor == major && m_apiMinor >= minor);
+	}
+	/**
+	 * @return the name of the OneBox module
+	 */
+	public String getOneboxName() { return m_oneboxName; }
+	/**
+	 * @return the date and time of the OneBox query, or null
+	 */
+	public String getDateTime() { return m_dateTime; }
+	/**
+	 * @return the IP address of the end user as determined by the OneBox
+	 * client, or null
+	 */
+	public String getIpAddr() { return m_ipAddr; }
+	/**
+	 * @return the language of the user's browser, two character language code
+	 */
+	public String getLang() { return m_lang; }
+	/**
+	 * @return the end user's query
+	 */
+	public String getQuery() { return m_query; }
+	/**
+	 * @return the query lower-cased, with runs of whitespace collapsed into
+	 * one space and without leading or trailing whitespace; queries that
+	 * differ only in case or whitespace normalize to the same string
+	 */
+	public String getNormalizedQuery() { return m_normalizedQuery; }
+	/**
+	 * @return the number of regular expression match groups
+	 */
+	public int getMatchGroupCount() { return m_matchGroups.length; }
+	/**
+	 * @return the regular expression match group at the given index
+	 */
+	public String getMatchGroup(int i) { return m_matchGroups[i]; }
+	/**
+	 * @return a copy of the regular expression match groups
+	 */
+	public String[] getMatchGroups() { return m_matchGroups.clone(); }
+	/**
+	 * @return the <code>authType</code> parameter, normally one of
+	 * {@link #AUTH_NONE}, {@link #AUTH_BASIC}, {@link #AUTH_LDAP} or
+	 * {@link #AUTH_SSO}
+	 */
+	public String getAuthType() { return m_authType; }
+	/**
+	 * @return the <code>userName</code> parameter: the username entered by
+	 * the end user for basic authentication, the distinguished name for LDAP
+	 * and the name of the single sign-on cookie for SSO
+	 */
+	public String getUserName() { return m_userName; }
+	/**
+	 * @return the password entered by the end user, for basic authentication
+	 * only
+	 */
+	public String getPassword() { return m_password; }
+	/**
+	 * @return the single sign-on cookie named by the <code>userName</code>
+	 * parameter, for SSO authentication only, or null if it wasn't sent
+	 */
+	public Cookie getSsoCookie() { return m_ssoCookie; }
+	/**
+	 * @return the identity the end user claims: the username for basic
+	 * authentication, the distinguished name for LDAP, the cookie's value for
+	 * SSO, and null otherwise or if it is missing
+	 */
+	public String getPrincipal()
+	{
+		if (AUTH_BASIC.equals(m_authType) || AUTH_LDAP.equals(m_authType))
+			return m_userName;
+		if (AUTH_SSO.equals(m_authType))
+			return (m_ssoCookie != null) ? m_ssoCookie.getValue() : null;
+		return null;
+	}
+}
@@ -1,180 +1,370 @@
-/*
- * Copyright (C) 2006 Google Inc.
- * 
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- * 
- *      http://www.apache.org/licenses/LICENSE-2.0
- *      
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package com.google.enterprise.sdk.onebox;
-
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Iterator;
-
-/**
- * Class encapsulating a response result set from a call to a OneBox provider.
- * <p>
- * OneBox clients expect an XML response that adhere's to Google's Schema.  This
- * class, along with {@link ModuleResult} and {@link Field}, hides those details
- * by providing an API for conveniently building a result set.  The
- * {@link #serialize()} method serializes the class' current state as a valid
- * OneBox for Enterprise XML response.
- * 
- * @see ModuleResult
- * @see Field
- */
-public class OneBoxResults implements IOneBoxResults
-{
-	public OneBoxResults() { }
-	
-	// A return code from the OneBox provider. The value can be one of the following:
-	// "success", "lookupFailure", "securityFailure", or "timeout"
-	// The value "success" is assumed if no value is returned, and results are
-	// processed only on success. Although this element is optional, it is good
-	// practice to always return a result code.
-	private String m_resultCode = "success";
-	
-	// Optional. If lookup fails, the provider uses this element to send diagnostic
-	// information and sets the resultCode attribute to a value other than success.
-	private String m_diagnostics = null;
-	
-	/**
-	 * In the event of provider failure, set the failure code and a diagnostic
-	 * message.  If this is called on a results set, the OneBox request will be
-	 * deemed unsuccessful and results will not appear in the end user's search
-	 * results.
-	 *  
-	 * @param failureCode the code defining the nature of the failure
-	 * @param diagnosticMessage descriptive text explaining the failure 
-	 */
-	public void setFailure(FailureCode failureCode, String diagnosticMessage)
-	{
-		m_resultCode = failureCode.toString();
-		m_diagnostics = diagnosticMessage;
-	}
-    // The name of the provider.  The name need not match the name provided in
-	// the OneBox module definition, and can be more descriptive than that name.
-	private String m_providerText = null;
-	/**
-	 * Text identifying the provider that ultimately handled the OneBox request.
-	 */
-	public void setProviderText(String providerText) { m_providerText = providerText; }
-	
-	// The title of the result, consisting of a line of text and a link to the full
-	// result set from the provider. This element is optional, but if one of the
-	// following child elements is present, both must be present.
-	private String m_urlText = null;
-	private String m_urlLink = null;
-	/**
-	 * Optionally provide a title link for the results set.  The link would be a URL
-	 * to a full result set and the text would be a display description for that link.
-	 */
-	public void setResultsTitleLink(String text, String url)
-	{
-		m_urlText = text;
-		m_urlLink = url;
-	}
-	
-	// The path to an image that is used as an identifying icon or informational
-	// image for the result set.
-	private String m_imageUrl = null;
-	/**
-	 * Optionally provide an identifying icon for the result set.  This is the URL
-	 * path to an image.
-	 */
-	public void setImageUrl(String imageUrl) { m_imageUrl = imageUrl; }
-	
-	private List m_results = new ArrayList();
-	/**
-	 * Add an actual result to the OneBox provider's result set.  Up to eight results
-	 * can be returned.
-	 * @throws IndexOutOfBoundsException when too many results are added
-	 */
-	public void addResult(ModuleResult result)
-	{
-		if (m_results.size() >= 8)
-			throw new IndexOutOfBoundsException("Attempt to return too many OneBox results");
-		m_results.add(result);
-	}
-	/**
-	 * Determines whether there is room to add another result.  If this returns true
-	 * the next call to {@link #addResult(ModuleResult) addResult()} will succeed.
-	 */
-	public boolean canAddResult()
-	{
-		return m_results.size() < 8;
-	}
-	/**
-	 * Serialize the current state of this OneBoxResults object to an XML string
-	 * that conforms to the Google Schema for OneBox for Enterprise provider responses.
-	 */
-	public String serialize()
-	{
-		StringBuffer buf = new StringBuffer();
-		buf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-		buf.append("<OneBoxResults xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"")
-			.append(" xsi:noNamespaceSchemaLocation=\"oneboxresults.xsd\">");
-		buf.append("<resultCode>").append(m_resultCode).append("</resultCode>");
-		if (m_diagnostics != null) {
-			buf.append("<Diagnostics>")
-				.append(m_diagnostics.substring(0,Math.min(m_diagnostics.length(),256)))
-				.append("</Diagnostics>");
-		}
-		if (m_providerText != null) {
-			buf.append("<provider>")
-				.append(m_providerText.substring(0,Math.min(m_providerText.length(),128)))
-				.append("</provider>");
-		}
-		if ((m_urlText != null) && (m_urlLink != null)) {
-			buf.append("<title>");
-			buf.append("<urlText>")
-				.append(m_urlText.substring(0,Math.min(m_urlText.length(),40)))
-				.append("</urlText>");
-			buf.append("<urlLink>").append(m_urlLink).append("</urlLink>");
-			buf.append("</title>");
-		}
-		if (m_imageUrl != null) {
-			buf.append("<IMAGE_SOURCE>").append(m_imageUrl).append("</IMAGE_SOURCE>");
-		}
-		for (Iterator iter = m_results.iterator(); iter.hasNext(); )
-		{
-			buf.append("<MODULE_RESULT>");
-			ModuleResult moduleResult = (ModuleResult)iter.next();
-			String url = moduleResult.getUrl();
-			if (url != null) {
-				buf.append("<U>").append(url).append("</U>");
-			}
-			String text = moduleResult.getText();
-			if (text != null) {
-				buf.append("<Title>").append(text).append("</Title>");
-			}
-			for (Iterator iter2 = moduleResult.getFields().iterator(); iter2.hasNext(); )
-			{
-				Field field = (Field)iter2.next();
-				buf.append("<Field");
-				for (Iterator iter3 = field.getAttrs().iterator(); iter3.hasNext(); )
-				{
-					String attr = (String)iter3.next();
-					buf.append(" ").append(attr);
-				}
-				buf.append(">");
-				if (field.getValue() != null) {
-					buf.append(field.getValue());
-				}
-				buf.append("</Field>");
-			}
-			buf.append("</MODULE_RESULT>");
-		}
-		buf.append("</OneBoxResults>");
-		return buf.toString();
-	}
-}
+/*
+ * Copyright (C) 2006 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *      
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Class encapsulating a response result set from a call to a OneBox provider.
+ * <p>
+ * OneBox clients expect an XML response that adhere's to Google's Schema.  This
+ * class, along with {@link ModuleResult} and {@link Field}, hides those details
+ * by providing an API for conveniently building a result set.  The
+ * {@link #serialize()} method serializes the class' current state as a valid
+ * OneBox for Enterprise XML response.
+ * <p>
+ * A provider can add results from one thread while the results found so far
+ * are returned from another when the request's deadline passes, see
+ * {@link OneBoxProvider#provideOneBoxResults(OneBoxRequest, OneBoxResults)}.
+ * 
+ * @see ModuleResult
+ * @see Field
+ */
+public class OneBoxResults implements IOneBoxResults
+{
+	public OneBoxResults() { }
+	
+	// A return code from the OneBox provider. The value can be one of the following:
+	// "success", "lookupFailure", "securityFailure", or "timeout"
+	// The value "success" is assumed if no value is returned, and results are
+	// processed only on success. Although this element is optional, it is good
+	// practice to always return a result code.
+	private String m_resultCode = "success";
+	
+	// Optional. If lookup fails, the provider uses this element to send diagnostic
+	// information and sets the resultCode attribute to a value other than success.
+	private String m_diagnostics = null;
+	
+	/**
+	 * In the event of provider failure, set the failure code and a diagnostic
+	 * message.  If this is called on a results set, the OneBox request will be
+	 * deemed unsuccessful and results will not appear in the end user's search
+	 * results.
+	 *  
+	 * @param failureCode the code defining the nature of the failure
+	 * @param diagnosticMessage descriptive text explaining the failure 
+	 */
+	public synchronized void setFailure(FailureCode failureCode, String diagnosticMessage)
+	{
+		m_resultCode = failureCode.toString();
+		m_diagnostics = diagnosticMessage;
+	}
+	/**
+	 * Adds text to the <code>Diagnostics</code> element, after any failure's
+	 * diagnostic message.
+	 */
+	public synchronized void addDiagnostics(String text)
+	{
+		m_diagnostics = (m_diagnostics == null) ? text : m_diagnostics + " " + text;
+	}
+	/**
+	 * @return true unless a failure has been set on this results set
+	 */
+	public synchronized boolean isSuccess() { return "success".equals(m_resultCode); }
+	/**
+	 * @return "success", or the failure code set on this results set
+	 */
+	public synchronized String getResultCode() { return m_resultCode; }
+	
+	// False for the results found before the deadline by a provider that
+	// hadn't finished
+	private boolean m_complete = true;
+	/**
+	 * @return false if these are the results a provider had found when the
+	 * request's deadline passed, rather than all of them
+	 */
+	public synchronized boolean isComplete() { return m_complete; }
+	/**
+	 * Marks these results as the ones found before the request's deadline,
+	 * when the provider gave up on finding the others; the title's count is
+	 * then shown as a lower bound.  Incomplete results are not cached.
+	 */
+	public synchronized void setIncomplete() { m_complete = false; }
+    // The name of the provider.  The name need not match the name provided in
+	// the OneBox module definition, and can be more descriptive than that name.
+	private String m_providerText = null;
+	/**
+	 * Text identifying the provider that ultimately handled the OneBox request.
+	 */
+	public synchronized void setProviderText(String providerText) { m_providerText = providerText; }
+	
+	// The title of the result, consisting of a line of text and a link to the full
+	// result set from the provider. This element is optional, but if one of the
+	// following child elements is present, both must be present.
+	private String m_urlText = null;
+	private String m_urlLink = null;
+	// The number of matching results the title text starts with, or -1
+	private int m_matchCount = -1;
+	/**
+	 * Optionally provide a title link for the results set.  The link would be a URL
+	 * to a full result set and the text would be a display description for that link.
+	 */
+	public synchronized void setResultsTitleLink(String text, String url)
+	{
+		m_urlText = text;
+		m_urlLink = url;
+		m_matchCount = -1;
+	}
+	/**
+	 * Optionally provide a title link starting with the number of matching
+	 * results, such as "12 matching results in the directory".  If the results
+	 * are returned before the provider has finished, the number is followed by
+	 * a plus sign, "12+ matching results in the directory", so a provider
+	 * adding results as it finds them can keep the number up to date with
+	 * {@link #setMatchCount setMatchCount()}.
+	 * 
+	 * @param matchCount the number of matching results
+	 * @param text the text following the number, such as "matching results in
+	 * the directory"
+	 * @param url the URL of the full result set
+	 */
+	public synchronized void setResultsTitleLink(int matchCount, String text, String url)
+	{
+		m_urlText = text;
+		m_urlLink = url;
+		m_matchCount = matchCount;
+	}
+	/**
+	 * Updates the number of matching results of a title link set by
+	 * {@link #setResultsTitleLink(int, String, String)}.
+	 */
+	public synchronized void setMatchCount(int matchCount)
+	{
+		if (m_matchCount >= 0)
+			m_matchCount = matchCount;
+	}
+	
+	// The path to an image that is used as an identifying icon or informational
+	// image for the result set.
+	private String m_imageUrl = null;
+	/**
+	 * Optionally provide an identifying icon for the result set.  This is the URL
+	 * path to an image.
+	 */
+	public synchronized void setImageUrl(String imageUrl) { m_imageUrl = imageUrl; }
+	
+	/**
+	 * The maximum number of results a OneBox provider can return.
+	 */
+	public static final int MAX_RESULTS = 8;
+	
+	// ModuleResult objects, or byte arrays holding already encoded results
+	private List m_results = new ArrayList();
+	/**
+	 * Add an actual result to the OneBox provider's result set.  Up to eight results
+	 * can be returned.
+	 * @throws IndexOutOfBoundsException when too many results are added
+	 */
+	public synchronized void addResult(ModuleResult result)
+	{
+		if (m_results.size() >= MAX_RESULTS)
+			throw new IndexOutOfBoundsException("Attempt to return too many OneBox results");
+		m_results.add(result);
+	}
+	/**
+	 * Add a result that has already been encoded by
+	 * {@link #encodeResult encodeResult()}.  When the same result is returned
+	 * often, for instance a popular directory entry, encoding it once and
+	 * adding the encoded form saves building and serializing its
+	 * {@link ModuleResult} for every response.
+	 * 
+	 * @param encodedResult a <code>MODULE_RESULT</code> element as UTF-8 bytes,
+	 * which must not be modified afterwards
+	 * @throws IndexOutOfBoundsException when too many results are added
+	 */
+	public synchronized void addEncodedResult(byte[] encodedResult)
+	{
+		if (m_results.size() >= MAX_RESULTS)
+			throw new IndexOutOfBoundsException("Attempt to return too many OneBox results");
+		m_results.add(encodedResult);
+	}
+	/**
+	 * Encodes a result as the UTF-8 bytes of the <code>MODULE_RESULT</code>
+	 * element it serializes to, for use with
+	 * {@link #addEncodedResult addEncodedResult()}.
+	 */
+	public static byte[] encodeResult(ModuleResult result)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		Utf8Writer writer = new Utf8Writer(512);
+		writer.reset(bytes);
+		try {
+			writeResult(writer, result);
+			writer.close();
+		} catch (IOException ioe) {
+			// ByteArrayOutputStream doesn't throw
+			throw new IllegalStateException(ioe.getMessage());
+		}
+		return bytes.toByteArray();
+	}
+	/**
+	 * Determines whether there is room to add another result.  If this returns true
+	 * the next call to {@link #addResult(ModuleResult) addResult()} will succeed.
+	 */
+	public synchronized boolean canAddResult()
+	{
+		return m_results.size() < MAX_RESULTS;
+	}
+	/**
+	 * @return the number of results added
+	 */
+	public synchronized int getResultCount()
+	{
+		return m_results.size();
+	}
+	/**
+	 * @return a copy of the results added so far, marked as incomplete, which
+	 * the provider can't change anymore
+	 */
+	synchronized OneBoxResults copyIncomplete()
+	{
+		OneBoxResults copy = new OneBoxResults();
+		copy.m_resultCode = m_resultCode;
+		copy.m_diagnostics = m_diagnostics;
+		copy.m_providerText = m_providerText;
+		copy.m_urlText = m_urlText;
+		copy.m_urlLink = m_urlLink;
+		copy.m_matchCount = m_matchCount;
+		copy.m_imageUrl = m_imageUrl;
+		copy.m_results.addAll(m_results);
+		copy.m_complete = false;
+		return copy;
+	}
+	/**
+	 * Serialize the current state of this OneBoxResults object to an XML string
+	 * that conforms to the Google Schema for OneBox for Enterprise provider responses.
+	 */
+	public String serialize()
+	{
+		StringWriter out = new StringWriter(1024);
+		try {
+			serialize(out);
+		} catch (IOException ioe) {
+			// StringWriter doesn't throw
+			throw new IllegalStateException(ioe.getMessage());
+		}
+		return out.toString();
+	}
+	/**
+	 * Serialize the current state of this OneBoxResults object as UTF-8 encoded
+	 * XML to a stream, through a pooled buffer.
+	 */
+	public void serialize(OutputStream out) throws IOException
+	{
+		Utf8Writer writer = Utf8Writer.acquire(out);
+		try {
+			serialize(writer);
+			writer.close();
+		} finally {
+			Utf8Writer.release(writer);
+		}
+	}
+	/**
+	 * Serialize the current state of this OneBoxResults object as XML to a Writer.
+	 */
+	public synchronized void serialize(Writer out) throws IOException
+	{
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.write("<OneBoxResults xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+		out.write(" xsi:noNamespaceSchemaLocation=\"oneboxresults.xsd\">");
+		out.write("<resultCode>");
+		out.write(m_resultCode);
+		out.write("</resultCode>");
+		if (m_diagnostics != null) {
+			out.write("<Diagnostics>");
+			out.write(m_diagnostics, 0, Math.min(m_diagnostics.length(),256));
+			out.write("</Diagnostics>");
+		}
+		if (m_providerText != null) {
+			out.write("<provider>");
+			out.write(m_providerText, 0, Math.min(m_providerText.length(),128));
+			out.write("</provider>");
+		}
+		if ((m_urlText != null) && (m_urlLink != null)) {
+			String urlText = m_urlText;
+			if (m_matchCount >= 0)
+				urlText = m_matchCount + (m_complete ? " " : "+ ") + urlText;
+			out.write("<title>");
+			out.write("<urlText>");
+			out.write(urlText, 0, Math.min(urlText.length(),40));
+			out.write("</urlText>");
+			out.write("<urlLink>");
+			out.write(m_urlLink);
+			out.write("</urlLink>");
+			out.write("</title>");
+		}
+		if (m_imageUrl != null) {
+			out.write("<IMAGE_SOURCE>");
+			out.write(m_imageUrl);
+			out.write("</IMAGE_SOURCE>");
+		}
+		for (int i = 0; i < m_results.size(); i++)
+		{
+			Object result = m_results.get(i);
+			if (result instanceof ModuleResult) {
+				writeResult(out, (ModuleResult)result);
+			} else if (out instanceof Utf8Writer) {
+				byte[] encoded = (byte[])result;
+				((Utf8Writer)out).writeBytes(encoded, 0, encoded.length);
+			} else {
+				out.write(new String((byte[])result, "UTF-8"));
+			}
+		}
+		out.write("</OneBoxResults>");
+	}
+	
+	private static void writeResult(Writer out, ModuleResult moduleResult) throws IOException
+	{
+		out.write("<MODULE_RESULT>");
+		String url = moduleResult.getUrl();
+		if (url != null) {
+			out.write("<U>");
+			out.write(url);
+			out.write("</U>");
+		}
+		String text = moduleResult.getText();
+		if (text != null) {
+			out.write("<Title>");
+			out.write(text);
+			out.write("</Title>");
+		}
+		for (Iterator iter2 = moduleResult.getFields().iterator(); iter2.hasNext(); )
+		{
+			Field field = (Field)iter2.next();
+			out.write("<Field");
+			for (Iterator iter3 = field.getAttrs().iterator(); iter3.hasNext(); )
+			{
+				String attr = (String)iter3.next();
+				out.write(' ');
+				out.write(attr);
+			}
+			out.write('>');
+			if (field.getValue() != null) {
+				out.write(field.getValue());
+			}
+			out.write("</Field>");
+		}
+		out.write("</MODULE_RESULT>");
+	}
+}
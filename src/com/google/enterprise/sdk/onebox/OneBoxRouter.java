@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves several OneBox modules from one servlet, passing each request to
+ * the {@link OneBoxProvider} registered under its <code>oneboxName</code>,
+ * so that the modules share one URL, one pool of provider threads and the
+ * same compiled code.
+ * <p>
+ * The <code>modules</code> init-param lists the module names, separated by
+ * commas, as given by the <code>name</code> of each module's
+ * <code>onebox.xml</code>.  For a module named <i>m</i>,
+ * <code><i>m</i>.class</code> is the provider's class,
+ * <code><i>m</i>.trigger</code> its trigger and
+ * <code><i>m</i>.triggerType</code> either <code>keyword</code>, the
+ * default, or <code>regex</code>, as in <code>onebox.xml</code>.  Any other
+ * <code><i>m</i>.<i>param</i></code> is passed to the provider as its
+ * init-param <i>param</i>; the provider's servlet name is the module name.
+ * <p>
+ * A request without match groups gets the ones of its module's trigger,
+ * evaluated against its query.  A keyword trigger lists keywords separated
+ * by <code>|</code>, matched as whole words ignoring case and spacing; the
+ * keyword found is <code>p0</code>.  A regex trigger is found anywhere in
+ * the query, ignoring case; the whole match is <code>p0</code> and its
+ * groups <code>p1</code>, <code>p2</code> and so on.  The keywords of every
+ * module are compiled into one {@link KeywordMatcher}, and the expressions
+ * are compiled once.  A request without a <code>oneboxName</code> goes to
+ * the first module listed whose trigger matches its query, and gets empty
+ * results if none does.
+ * <p>
+ * Modules with a <code>responseTimeout</code> or a
+ * <code>providerExecutor</code> run on the router's provider threads, set
+ * up by its own <code>providerExecutor</code> and
+ * <code>providerThreads</code> init-params as for a single
+ * {@link OneBoxProvider#init() provider}, instead of on threads of their
+ * own.
+ */
+public class OneBoxRouter extends HttpServlet
+{
+	private static final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+	private static final String TRIGGER_KEYWORD = "keyword";
+	private static final String TRIGGER_REGEX = "regex";
+
+	// Module name to Module, in the order of the modules init-param
+	private final LinkedHashMap m_modules = new LinkedHashMap();
+	private Module[] m_moduleList = new Module[0];
+	// The keywords of every module, and for each the modules it triggers
+	private KeywordMatcher m_keywords = null;
+	private int[][] m_keywordModules = null;
+	private ExecutorService m_providerThreads = null;
+
+	private static final class Module
+	{
+		final String m_name;
+		final int m_index;
+		final OneBoxProvider m_provider;
+		// The compiled regex trigger, or null
+		final Pattern m_regex;
+
+		Module(String name, int index, OneBoxProvider provider, Pattern regex)
+		{
+			m_name = name;
+			m_index = index;
+			m_provider = provider;
+			m_regex = regex;
+		}
+	}
+
+	/**
+	 * Loads, compiles the triggers of and initializes the modules listed by
+	 * the <code>modules</code> init-param.
+	 */
+	public void init() throws ServletException
+	{
+		String modules = getInitParameter("modules");
+		if (modules == null || modules.trim().length() == 0)
+			throw new ServletException("Init-param modules names no OneBox modules");
+		String[] names = modules.trim().split("\\s*,\\s*");
+
+		String executor = getInitParameter("providerExecutor");
+		boolean virtual = (executor != null) && executor.trim().equalsIgnoreCase("virtual");
+		if (executor != null && !virtual && !executor.trim().equalsIgnoreCase("platform")
+				&& executor.trim().length() > 0)
+			throw new ServletException("Init-param providerExecutor is neither platform nor virtual: " + executor);
+		int threads = intInitParameter("providerThreads", virtual ? 1024 : 32);
+		Semaphore permits = null;
+		if (threads > 0) {
+			if (virtual) {
+				m_providerThreads = OneBoxProvider.newVirtualThreadExecutor();
+				if (m_providerThreads == null)
+					getServletContext().log(getServletName() +
+							": virtual threads are not available, using platform threads");
+			}
+			if (m_providerThreads == null)
+				m_providerThreads = OneBoxProvider.newPlatformThreadExecutor("OneBoxRouter " + getServletName());
+			permits = new Semaphore(threads);
+		}
+
+		// Keyword to its index, and to the modules it triggers
+		LinkedHashMap keywords = new LinkedHashMap();
+		ArrayList moduleList = new ArrayList();
+		try {
+			for (int i = 0; i < names.length; i++)
+			{
+				String name = names[i];
+				if (m_modules.containsKey(name))
+					throw new ServletException("Module " + name + " is listed twice");
+				Pattern regex = null;
+				String trigger = getInitParameter(name + ".trigger");
+				String triggerType = getInitParameter(name + ".triggerType");
+				triggerType = (triggerType == null) ? TRIGGER_KEYWORD : triggerType.trim();
+				if (trigger != null && trigger.trim().length() > 0) {
+					if (triggerType.equalsIgnoreCase(TRIGGER_REGEX)) {
+						try {
+							regex = Pattern.compile(trigger.trim(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+						} catch (PatternSyntaxException pse) {
+							throw new ServletException("Module " + name + " has an invalid regex trigger: " +
+									pse.getMessage());
+						}
+					} else if (triggerType.equalsIgnoreCase(TRIGGER_KEYWORD)) {
+						String[] words = trigger.split("\\|");
+						for (int w = 0; w < words.length; w++)
+						{
+							String keyword = OneBoxRequest.normalizeQuery(words[w]);
+							if (keyword.length() == 0)
+								continue;
+							ArrayList triggered = (ArrayList)keywords.get(keyword);
+							if (triggered == null) {
+								triggered = new ArrayList(1);
+								keywords.put(keyword, triggered);
+							}
+							if (!triggered.contains(Integer.valueOf(i)))
+								triggered.add(Integer.valueOf(i));
+						}
+					} else {
+						throw new ServletException("Module " + name +
+								" has a triggerType that is neither keyword nor regex: " + triggerType);
+					}
+				}
+
+				OneBoxProvider provider = loadProvider(name);
+				if (permits != null)
+					provider.shareProviderThreads(m_providerThreads, permits);
+				provider.init(new ModuleConfig(name, getServletConfig()));
+				Module module = new Module(name, i, provider, regex);
+				m_modules.put(name, module);
+				moduleList.add(module);
+			}
+		} catch (ServletException se) {
+			m_moduleList = (Module[])moduleList.toArray(new Module[moduleList.size()]);
+			destroy();
+			throw se;
+		}
+		m_moduleList = (Module[])moduleList.toArray(new Module[moduleList.size()]);
+
+		m_keywords = new KeywordMatcher((String[])keywords.keySet().toArray(new String[keywords.size()]));
+		m_keywordModules = new int[keywords.size()][];
+		int k = 0;
+		for (Iterator iter = keywords.values().iterator(); iter.hasNext(); k++)
+		{
+			ArrayList triggered = (ArrayList)iter.next();
+			m_keywordModules[k] = new int[triggered.size()];
+			for (int i = 0; i < m_keywordModules[k].length; i++)
+				m_keywordModules[k][i] = ((Integer)triggered.get(i)).intValue();
+		}
+	}
+
+	private OneBoxProvider loadProvider(String name) throws ServletException
+	{
+		String className = getInitParameter(name + ".class");
+		if (className == null || className.trim().length() == 0)
+			throw new ServletException("Module " + name + " has no init-param " + name + ".class");
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null)
+			loader = getClass().getClassLoader();
+		Object provider;
+		try {
+			provider = Class.forName(className.trim(), true, loader)
+				.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+		} catch (Exception e) {
+			throw new ServletException("Module " + name + " can't load " + className + ": " + e);
+		}
+		if (!(provider instanceof OneBoxProvider))
+			throw new ServletException("Module " + name + ": " + className + " is not a OneBoxProvider");
+		return (OneBoxProvider)provider;
+	}
+
+	/**
+	 * Reads a servlet init-param holding an integer.
+	 *
+	 * @throws ServletException if the init-param is not an integer
+	 */
+	private int intInitParameter(String name, int defaultValue) throws ServletException
+	{
+		String value = getInitParameter(name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			throw new ServletException("Init-param " + name + " is not an integer: " + value);
+		}
+	}
+
+	/**
+	 * Destroys the modules and stops the provider threads.
+	 */
+	public void destroy()
+	{
+		for (int i = m_moduleList.length - 1; i >= 0; i--)
+			m_moduleList[i].m_provider.destroy();
+		if (m_providerThreads != null)
+			m_providerThreads.shutdownNow();
+		super.destroy();
+	}
+
+	/**
+	 * Passes a request to its module, with the match groups of the module's
+	 * trigger if it has none.
+	 */
+	public void doGet(HttpServletRequest request, HttpServletResponse response)
+		throws ServletException, IOException
+	{
+		String name = request.getParameter("oneboxName");
+		String query = request.getParameter("query");
+		boolean hasMatchGroups = request.getParameter("p0") != null;
+		Module module;
+		String[] matchGroups = null;
+		if (name != null) {
+			module = (Module)m_modules.get(name);
+			if (module == null) {
+				OneBoxResults res = new OneBoxResults();
+				res.setFailure(FailureCode.lookupFailure, "No OneBox module named " + name);
+				writeResults(response, res);
+				return;
+			}
+			if (!hasMatchGroups)
+				matchGroups = trigger(module, query, m_keywords.find(OneBoxRequest.normalizeQuery(query)));
+		} else {
+			module = null;
+			String normalized = OneBoxRequest.normalizeQuery(query);
+			int[] found = m_keywords.find(normalized);
+			for (int i = 0; i < m_moduleList.length && module == null; i++)
+			{
+				String[] groups = trigger(m_moduleList[i], query, found);
+				if (groups != null) {
+					module = m_moduleList[i];
+					matchGroups = groups;
+				}
+			}
+			if (module == null) {
+				writeResults(response, new OneBoxResults());
+				return;
+			}
+		}
+
+		HashMap added = new HashMap();
+		if (name == null)
+			added.put("oneboxName", new String[] { module.m_name });
+		if (matchGroups != null && !hasMatchGroups) {
+			for (int i = 0; i < matchGroups.length; i++)
+				added.put("p" + i, new String[] { matchGroups[i] });
+		}
+		module.m_provider.service(added.isEmpty() ? request : new RoutedRequest(request, added), response);
+	}
+
+	/**
+	 * Evaluates a module's trigger against a query.
+	 *
+	 * @param found the keywords found in the normalized query, as returned
+	 * by {@link KeywordMatcher#find(String)}
+	 * @return the match groups, or null if the trigger doesn't match
+	 */
+	private String[] trigger(Module module, String query, int[] found)
+	{
+		if (module.m_regex != null) {
+			if (query == null)
+				return null;
+			Matcher matcher = module.m_regex.matcher(query);
+			if (!matcher.find())
+				return null;
+			String[] groups = new String[matcher.groupCount() + 1];
+			for (int i = 0; i < groups.length; i++)
+				groups[i] = (matcher.group(i) == null) ? "" : matcher.group(i);
+			return groups;
+		}
+		for (int f = 0; f < found.length; f += 3)
+		{
+			int[] modules = m_keywordModules[found[f]];
+			for (int i = 0; i < modules.length; i++)
+			{
+				if (modules[i] == module.m_index)
+					return new String[] { m_keywords.getKeyword(found[f]) };
+			}
+		}
+		return null;
+	}
+
+	private static void writeResults(HttpServletResponse response, OneBoxResults res)
+		throws IOException
+	{
+		ByteArrayOutputStream xml = new ByteArrayOutputStream(512);
+		res.serialize(xml);
+		response.setContentType(CONTENT_TYPE);
+		response.setContentLength(xml.size());
+		OutputStream out = response.getOutputStream();
+		xml.writeTo(out);
+		out.close();
+	}
+
+	/**
+	 * A request with the parameters the router adds.
+	 */
+	private static class RoutedRequest extends HttpServletRequestWrapper
+	{
+		private final Map m_parameters;
+
+		RoutedRequest(HttpServletRequest request, Map added)
+		{
+			super(request);
+			HashMap parameters = new HashMap(request.getParameterMap());
+			parameters.putAll(added);
+			m_parameters = Collections.unmodifiableMap(parameters);
+		}
+
+		public String getParameter(String name)
+		{
+			String[] values = (String[])m_parameters.get(name);
+			return (values == null || values.length == 0) ? null : values[0];
+		}
+		public String[] getParameterValues(String name) { return (String[])m_parameters.get(name); }
+		public Map getParameterMap() { return m_parameters; }
+		public Enumeration getParameterNames() { return Collections.enumeration(m_parameters.keySet()); }
+	}
+
+	/**
+	 * The configuration of a module: the router's init-params prefixed with
+	 * the module's name, without the prefix.
+	 */
+	private static class ModuleConfig implements ServletConfig
+	{
+		private final String m_name;
+		private final ServletConfig m_router;
+
+		ModuleConfig(String name, ServletConfig router)
+		{
+			m_name = name;
+			m_router = router;
+		}
+
+		public String getServletName() { return m_name; }
+		public ServletContext getServletContext() { return m_router.getServletContext(); }
+		public String getInitParameter(String name) { return m_router.getInitParameter(m_name + "." + name); }
+		public Enumeration getInitParameterNames()
+		{
+			ArrayList names = new ArrayList();
+			String prefix = m_name + ".";
+			for (Enumeration all = m_router.getInitParameterNames(); all.hasMoreElements(); )
+			{
+				String name = (String)all.nextElement();
+				if (name.startsWith(prefix))
+					names.add(name.substring(prefix.length()));
+			}
+			return Collections.enumeration(names);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The time a request spent in each phase of its processing, such as parsing,
+ * authentication or search.
+ * <p>
+ * {@link OneBoxProvider} times the phases it runs itself, and providers can
+ * time their own with {@link #start start()} while they handle the request.
+ * The phases are reported in the response's <code>Server-Timing</code>
+ * header and in the access log, see {@link OneBoxProvider#init()}.
+ */
+public final class RequestTiming
+{
+	// Phases above which further ones are ignored
+	private static final int MAX_PHASES = 16;
+
+	private final String[] m_names = new String[MAX_PHASES];
+	private final long[] m_nanos = new long[MAX_PHASES];
+	private int m_count = 0;
+	// The phase started by the provider and not ended yet, or -1
+	private int m_running = -1;
+	private long m_runningStart;
+
+	RequestTiming() { }
+
+	/**
+	 * Starts timing a phase of the provider, ending the one it started
+	 * before, if any.
+	 *
+	 * @param phase the name of the phase, a token such as <code>auth</code>
+	 * or <code>search</code>
+	 */
+	public synchronized void start(String phase)
+	{
+		end();
+		if (m_count < MAX_PHASES) {
+			m_names[m_count] = phase;
+			m_running = m_count++;
+			m_runningStart = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Ends the phase started last, if it hasn't ended yet.
+	 */
+	public synchronized void end()
+	{
+		if (m_running >= 0) {
+			m_nanos[m_running] = System.nanoTime() - m_runningStart;
+			m_running = -1;
+		}
+	}
+
+	/**
+	 * Adds a phase whose time is set later by {@link #set set()}, so that
+	 * it is listed before the phases it contains.
+	 *
+	 * @return the phase's index, or -1 if there are too many phases
+	 */
+	synchronized int add(String phase)
+	{
+		if (m_count == MAX_PHASES)
+			return -1;
+		m_names[m_count] = phase;
+		return m_count++;
+	}
+
+	synchronized void add(String phase, long nanos)
+	{
+		set(add(phase), nanos);
+	}
+
+	synchronized void set(int index, long nanos)
+	{
+		if (index >= 0)
+			m_nanos[index] = nanos;
+	}
+
+	/**
+	 * @return the value of a <code>Server-Timing</code> header, such as
+	 * <code>parse;dur=0.052, provider;dur=3.108</code>, in milliseconds
+	 */
+	public synchronized String toHeader()
+	{
+		StringBuffer buf = new StringBuffer(24 * m_count);
+		for (int i = 0; i < m_count; i++)
+		{
+			if (i > 0)
+				buf.append(", ");
+			buf.append(m_names[i]).append(";dur=");
+			millis(buf, m_nanos[i]);
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * @return the phases as text, such as
+	 * <code>parse=0.052ms provider=3.108ms</code>
+	 */
+	public synchronized String toString()
+	{
+		StringBuffer buf = new StringBuffer(24 * m_count);
+		for (int i = 0; i < m_count; i++)
+		{
+			if (i > 0)
+				buf.append(' ');
+			buf.append(m_names[i]).append('=');
+			millis(buf, m_nanos[i]);
+			buf.append("ms");
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Writes the phases as a JSON object of milliseconds.
+	 */
+	synchronized void writeJson(Writer out) throws IOException
+	{
+		StringBuffer buf = new StringBuffer(24 * m_count + 2);
+		buf.append('{');
+		for (int i = 0; i < m_count; i++)
+		{
+			if (i > 0)
+				buf.append(',');
+			buf.append('"');
+			// Names are meant to be tokens, keep the line valid if they aren't
+			for (int j = 0; j < m_names[i].length(); j++)
+			{
+				char c = m_names[i].charAt(j);
+				if (c >= 0x20 && c != '"' && c != '\\')
+					buf.append(c);
+			}
+			buf.append("\":");
+			millis(buf, m_nanos[i]);
+		}
+		buf.append('}');
+		out.write(buf.toString());
+	}
+
+	private static void millis(StringBuffer buf, long nanos)
+	{
+		long micros = nanos / 1000;
+		buf.append(micros / 1000).append('.');
+		String fraction = Long.toString(1000 + micros % 1000);
+		buf.append(fraction, 1, 4);
+	}
+}
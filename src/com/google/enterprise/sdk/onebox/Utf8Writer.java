@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writer that encodes characters as UTF-8 straight into a byte buffer and
+ * hands full buffers to an OutputStream.
+ * <p>
+ * Unlike an <code>OutputStreamWriter</code> it doesn't go through a
+ * <code>CharsetEncoder</code> and its char buffers, and an instance can be
+ * pointed at a new stream with {@link #reset reset()} so that its buffer
+ * can be reused for response after response.  A few idle writers are kept
+ * in a pool shared by all threads, rather than one per thread, so that
+ * many short-lived or virtual threads don't each hold a buffer.
+ */
+class Utf8Writer extends Writer
+{
+	private static final int BUFFER_SIZE = 8192;
+	// Idle writers; beyond this many, released ones are left to the garbage
+	// collector
+	private static final BlockingQueue s_pool = new ArrayBlockingQueue(16);
+
+	/**
+	 * @return a writer from the pool, or a new one, pointed at the given
+	 * stream; it should be given back with {@link #release release()}
+	 */
+	static Utf8Writer acquire(OutputStream out)
+	{
+		Utf8Writer writer = (Utf8Writer)s_pool.poll();
+		if (writer == null)
+			writer = new Utf8Writer(BUFFER_SIZE);
+		writer.reset(out);
+		return writer;
+	}
+
+	/**
+	 * Returns a writer to the pool, discarding any output it still buffers.
+	 */
+	static void release(Utf8Writer writer)
+	{
+		writer.reset(null);
+		s_pool.offer(writer);
+	}
+
+	private final byte[] m_buf;
+	private int m_count;
+	private OutputStream m_out;
+	// High surrogate waiting for its low surrogate, or 0
+	private char m_highSurrogate;
+
+	Utf8Writer(int bufferSize)
+	{
+		m_buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Discards any buffered output and directs further output to a stream.
+	 */
+	void reset(OutputStream out)
+	{
+		m_out = out;
+		m_count = 0;
+		m_highSurrogate = 0;
+	}
+
+	public void write(int c) throws IOException
+	{
+		writeChar((char)c);
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		for (int i = off; i < off + len; i++)
+			writeChar(cbuf[i]);
+	}
+
+	public void write(String str, int off, int len) throws IOException
+	{
+		for (int i = off; i < off + len; i++)
+			writeChar(str.charAt(i));
+	}
+
+	public void write(String str) throws IOException
+	{
+		write(str, 0, str.length());
+	}
+
+	private void writeChar(char c) throws IOException
+	{
+		if (m_count + 4 > m_buf.length)
+			flushBuffer();
+		if (c < 0x80 && m_highSurrogate == 0) {
+			m_buf[m_count++] = (byte)c;
+		} else if (Character.isHighSurrogate(c)) {
+			if (m_highSurrogate != 0)
+				m_buf[m_count++] = (byte)'?';
+			m_highSurrogate = c;
+		} else if (Character.isLowSurrogate(c) && m_highSurrogate != 0) {
+			int cp = Character.toCodePoint(m_highSurrogate, c);
+			m_highSurrogate = 0;
+			m_buf[m_count++] = (byte)(0xF0 | (cp >> 18));
+			m_buf[m_count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+			m_buf[m_count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+			m_buf[m_count++] = (byte)(0x80 | (cp & 0x3F));
+		} else {
+			if (m_highSurrogate != 0) {
+				// Unpaired surrogate, replace it like the JDK encoders do
+				m_buf[m_count++] = (byte)'?';
+				m_highSurrogate = 0;
+				writeChar(c);
+				return;
+			}
+			if (Character.isLowSurrogate(c)) {
+				m_buf[m_count++] = (byte)'?';
+			} else if (c < 0x800) {
+				m_buf[m_count++] = (byte)(0xC0 | (c >> 6));
+				m_buf[m_count++] = (byte)(0x80 | (c & 0x3F));
+			} else {
+				m_buf[m_count++] = (byte)(0xE0 | (c >> 12));
+				m_buf[m_count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				m_buf[m_count++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Writes bytes that are already UTF-8 encoded.
+	 */
+	void writeBytes(byte[] b, int off, int len) throws IOException
+	{
+		if (m_highSurrogate != 0) {
+			m_buf[m_count++] = (byte)'?';
+			m_highSurrogate = 0;
+		}
+		if (len > m_buf.length - m_count) {
+			flushBuffer();
+			if (len > m_buf.length) {
+				m_out.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, m_buf, m_count, len);
+		m_count += len;
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if (m_count > 0) {
+			m_out.write(m_buf, 0, m_count);
+			m_count = 0;
+		}
+	}
+
+	/**
+	 * Writes out buffered bytes and flushes the underlying stream.
+	 */
+	public void flush() throws IOException
+	{
+		if (m_highSurrogate != 0) {
+			m_buf[m_count++] = (byte)'?';
+			m_highSurrogate = 0;
+		}
+		flushBuffer();
+		m_out.flush();
+	}
+
+	/**
+	 * Flushes, but leaves the underlying stream open for the caller to close,
+	 * and detaches from it.
+	 */
+	public void close() throws IOException
+	{
+		flush();
+		m_out = null;
+	}
+}
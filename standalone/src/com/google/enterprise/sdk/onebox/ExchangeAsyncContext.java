@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The {@link AsyncContext} of a request to {@link StandaloneServer}.  The
+ * response is sent and the exchange ended once the request is completed
+ * and the servlet has returned, whichever comes last.
+ * <p>
+ * Requests can't be dispatched, and timeouts are not enforced: the servlet
+ * is expected to complete every request it starts asynchronously.
+ */
+class ExchangeAsyncContext implements AsyncContext
+{
+	private final HttpExchange m_exchange;
+	private final ExchangeRequest m_exchangeRequest;
+	private final ExchangeResponse m_exchangeResponse;
+	private final ServletRequest m_request;
+	private final ServletResponse m_response;
+	private final Executor m_executor;
+	private final ServletContext m_context;
+	private final ArrayList m_listeners = new ArrayList(1);
+	private long m_timeout = 30000;
+
+	// Guarded by this
+	private boolean m_completed = false;
+	private boolean m_returned = false;
+
+	/**
+	 * @param request the request given to the servlet, or one wrapping it
+	 * @param response the response given to the servlet, or one wrapping it
+	 * @param executor the threads running the tasks started by the servlet
+	 */
+	ExchangeAsyncContext(HttpExchange exchange, ExchangeRequest exchangeRequest,
+			ExchangeResponse exchangeResponse, ServletRequest request, ServletResponse response,
+			Executor executor, ServletContext context)
+	{
+		m_exchange = exchange;
+		m_exchangeRequest = exchangeRequest;
+		m_exchangeResponse = exchangeResponse;
+		m_request = request;
+		m_response = response;
+		m_executor = executor;
+		m_context = context;
+	}
+
+	public void complete()
+	{
+		synchronized (this) {
+			if (m_completed)
+				return;
+			m_completed = true;
+			if (!m_returned)
+				return;
+		}
+		finish();
+	}
+
+	/**
+	 * Called once the servlet has returned, ending the exchange if the
+	 * request is already completed.
+	 */
+	void returned()
+	{
+		synchronized (this) {
+			m_returned = true;
+			if (!m_completed)
+				return;
+		}
+		finish();
+	}
+
+	private void finish()
+	{
+		try {
+			m_exchangeResponse.finish();
+		} catch (IOException e) {
+			m_context.log("Response to " + m_exchange.getRequestURI() + " failed", e);
+		} finally {
+			m_exchange.close();
+		}
+		AsyncEvent event = new AsyncEvent(this, m_request, m_response);
+		for (int i = 0; i < m_listeners.size(); i++)
+		{
+			try {
+				((AsyncListener)m_listeners.get(i)).onComplete(event);
+			} catch (IOException e) {
+				m_context.log("Listener of " + m_exchange.getRequestURI() + " failed", e);
+			}
+		}
+	}
+
+	public ServletRequest getRequest() { return m_request; }
+	public ServletResponse getResponse() { return m_response; }
+	public boolean hasOriginalRequestAndResponse()
+	{
+		return m_request == m_exchangeRequest && m_response == m_exchangeResponse;
+	}
+
+	public void start(Runnable task) { m_executor.execute(task); }
+
+	public void addListener(AsyncListener listener) { m_listeners.add(listener); }
+	public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response)
+	{
+		m_listeners.add(listener);
+	}
+	public AsyncListener createListener(Class listenerClass) throws ServletException
+	{
+		try {
+			return (AsyncListener)listenerClass.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+		} catch (Exception e) {
+			throw new ServletException("Listener " + listenerClass.getName() + " can't be created", e);
+		}
+	}
+
+	public void setTimeout(long timeout) { m_timeout = timeout; }
+	public long getTimeout() { return m_timeout; }
+
+	public void dispatch() { throw notSupported(); }
+	public void dispatch(String path) { throw notSupported(); }
+	public void dispatch(ServletContext context, String path) { throw notSupported(); }
+
+	private static UnsupportedOperationException notSupported()
+	{
+		return new UnsupportedOperationException("StandaloneServer doesn't dispatch requests");
+	}
+}
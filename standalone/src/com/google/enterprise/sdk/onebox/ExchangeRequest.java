@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * An {@link HttpServletRequest} over an exchange of the JDK's HTTP server.
+ * <p>
+ * Query parameters are decoded as UTF-8, which is how the appliance encodes
+ * them, unless the servlet sets another encoding before reading them.
+ * Servlets declared <code>async-supported</code> can complete requests
+ * asynchronously, see {@link ExchangeAsyncContext}.  Sessions, request
+ * dispatching, multipart requests and container authentication are not
+ * supported.
+ */
+class ExchangeRequest implements HttpServletRequest
+{
+	private final HttpExchange m_exchange;
+	private final ServletContext m_context;
+	private final String m_contextPath;
+	private final String m_servletPath;
+	private final String m_pathInfo;
+	private final ExchangeResponse m_response;
+	private final boolean m_asyncSupported;
+	private final Executor m_executor;
+	private final HashMap m_attributes = new HashMap();
+	private String m_encoding = null;
+	// Parsed on first use, so that the servlet can set the encoding first
+	private Map m_parameters = null;
+	private Cookie[] m_cookies = null;
+	private ExchangeAsyncContext m_async = null;
+
+	/**
+	 * @param response the response to the request
+	 * @param asyncSupported whether the servlet is declared
+	 * <code>async-supported</code>
+	 * @param executor the threads running the tasks started by the servlet
+	 */
+	ExchangeRequest(HttpExchange exchange, ServletContext context,
+			String contextPath, String servletPath, String pathInfo,
+			ExchangeResponse response, boolean asyncSupported, Executor executor)
+	{
+		m_exchange = exchange;
+		m_context = context;
+		m_contextPath = contextPath;
+		m_servletPath = servletPath;
+		m_pathInfo = pathInfo;
+		m_response = response;
+		m_asyncSupported = asyncSupported;
+		m_executor = executor;
+	}
+
+	private Map parameters()
+	{
+		if (m_parameters != null)
+			return m_parameters;
+		LinkedHashMap values = new LinkedHashMap();
+		String query = m_exchange.getRequestURI().getRawQuery();
+		if (query != null) {
+			StringTokenizer pairs = new StringTokenizer(query, "&");
+			while (pairs.hasMoreTokens())
+			{
+				String pair = pairs.nextToken();
+				int eq = pair.indexOf('=');
+				String name = decode((eq < 0) ? pair : pair.substring(0, eq));
+				String value = (eq < 0) ? "" : decode(pair.substring(eq + 1));
+				List list = (List)values.get(name);
+				if (list == null) {
+					list = new ArrayList(1);
+					values.put(name, list);
+				}
+				list.add(value);
+			}
+		}
+		LinkedHashMap parameters = new LinkedHashMap();
+		for (Iterator iter = values.entrySet().iterator(); iter.hasNext(); )
+		{
+			Map.Entry entry = (Map.Entry)iter.next();
+			List list = (List)entry.getValue();
+			parameters.put(entry.getKey(), list.toArray(new String[list.size()]));
+		}
+		m_parameters = Collections.unmodifiableMap(parameters);
+		return m_parameters;
+	}
+
+	private String decode(String s)
+	{
+		try {
+			return URLDecoder.decode(s, (m_encoding != null) ? m_encoding : "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s;
+		} catch (IllegalArgumentException e) {
+			// Malformed escapes are kept as sent
+			return s;
+		}
+	}
+
+	public String getParameter(String name)
+	{
+		String[] values = (String[])parameters().get(name);
+		return (values == null) ? null : values[0];
+	}
+	public Map getParameterMap() { return parameters(); }
+	public Enumeration getParameterNames() { return Collections.enumeration(parameters().keySet()); }
+	public String[] getParameterValues(String name) { return (String[])parameters().get(name); }
+
+	public Cookie[] getCookies()
+	{
+		if (m_cookies != null)
+			return (m_cookies.length == 0) ? null : m_cookies;
+		ArrayList cookies = new ArrayList();
+		List headers = m_exchange.getRequestHeaders().get("Cookie");
+		for (int i = 0; headers != null && i < headers.size(); i++)
+		{
+			StringTokenizer pairs = new StringTokenizer((String)headers.get(i), ";,");
+			while (pairs.hasMoreTokens())
+			{
+				String pair = pairs.nextToken().trim();
+				int eq = pair.indexOf('=');
+				if (eq <= 0 || pair.charAt(0) == '$')
+					continue;
+				String value = pair.substring(eq + 1).trim();
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+					value = value.substring(1, value.length() - 1);
+				try {
+					cookies.add(new Cookie(pair.substring(0, eq).trim(), value));
+				} catch (IllegalArgumentException e) {
+					// Not a valid cookie name, ignored as a container would
+				}
+			}
+		}
+		m_cookies = (Cookie[])cookies.toArray(new Cookie[cookies.size()]);
+		return (m_cookies.length == 0) ? null : m_cookies;
+	}
+
+	public String getHeader(String name) { return m_exchange.getRequestHeaders().getFirst(name); }
+	public Enumeration getHeaderNames() { return Collections.enumeration(m_exchange.getRequestHeaders().keySet()); }
+	public Enumeration getHeaders(String name)
+	{
+		List values = m_exchange.getRequestHeaders().get(name);
+		return Collections.enumeration((values == null) ? Collections.EMPTY_LIST : values);
+	}
+	public long getDateHeader(String name)
+	{
+		String value = getHeader(name);
+		if (value == null)
+			return -1;
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Not a date: " + value);
+		}
+	}
+	public int getIntHeader(String name)
+	{
+		String value = getHeader(name);
+		return (value == null) ? -1 : Integer.parseInt(value.trim());
+	}
+
+	public String getMethod() { return m_exchange.getRequestMethod(); }
+	public String getProtocol() { return m_exchange.getProtocol(); }
+	public String getScheme() { return "http"; }
+	public boolean isSecure() { return false; }
+	public String getServerName()
+	{
+		String host = getHeader("Host");
+		if (host == null)
+			return m_exchange.getLocalAddress().getHostName();
+		int colon = host.lastIndexOf(':');
+		return (colon > host.lastIndexOf(']')) ? host.substring(0, colon) : host;
+	}
+	public int getServerPort()
+	{
+		String host = getHeader("Host");
+		int colon = (host == null) ? -1 : host.lastIndexOf(':');
+		if (colon >= 0 && colon > host.lastIndexOf(']')) {
+			try {
+				return Integer.parseInt(host.substring(colon + 1));
+			} catch (NumberFormatException e) {
+				// Falls back to the port connected to
+			}
+		}
+		return m_exchange.getLocalAddress().getPort();
+	}
+	public String getContextPath() { return m_contextPath; }
+	public String getServletPath() { return m_servletPath; }
+	public String getPathInfo() { return m_pathInfo; }
+	public String getPathTranslated()
+	{
+		return (m_pathInfo == null) ? null : m_context.getRealPath(m_pathInfo);
+	}
+	public String getRequestURI() { return m_exchange.getRequestURI().getRawPath(); }
+	public StringBuffer getRequestURL()
+	{
+		StringBuffer url = new StringBuffer(getScheme()).append("://").append(getServerName());
+		if (getServerPort() != 80)
+			url.append(':').append(getServerPort());
+		return url.append(getRequestURI());
+	}
+	public String getQueryString() { return m_exchange.getRequestURI().getRawQuery(); }
+
+	public String getRemoteAddr()
+	{
+		InetSocketAddress remote = m_exchange.getRemoteAddress();
+		return remote.getAddress().getHostAddress();
+	}
+	public String getRemoteHost() { return getRemoteAddr(); }
+	public int getRemotePort() { return m_exchange.getRemoteAddress().getPort(); }
+	public String getLocalName() { return m_exchange.getLocalAddress().getHostName(); }
+	public String getLocalAddr() { return m_exchange.getLocalAddress().getAddress().getHostAddress(); }
+	public int getLocalPort() { return m_exchange.getLocalAddress().getPort(); }
+	public String getRemoteUser() { return null; }
+	public String getAuthType() { return null; }
+	public Principal getUserPrincipal() { return null; }
+	public boolean isUserInRole(String role) { return false; }
+	public boolean authenticate(HttpServletResponse response) throws ServletException
+	{
+		throw new ServletException("Container authentication is not supported");
+	}
+	public void login(String userName, String password) throws ServletException
+	{
+		throw new ServletException("Container authentication is not supported");
+	}
+	public void logout() { }
+
+	public Object getAttribute(String name) { return m_attributes.get(name); }
+	public Enumeration getAttributeNames() { return Collections.enumeration(m_attributes.keySet()); }
+	public void setAttribute(String name, Object value) { m_attributes.put(name, value); }
+	public void removeAttribute(String name) { m_attributes.remove(name); }
+
+	public String getCharacterEncoding() { return m_encoding; }
+	public void setCharacterEncoding(String encoding) throws UnsupportedEncodingException
+	{
+		"".getBytes(encoding);
+		m_encoding = encoding;
+	}
+	public int getContentLength() { return getIntHeader("Content-Length"); }
+	public String getContentType() { return getHeader("Content-Type"); }
+	public ServletInputStream getInputStream()
+	{
+		final InputStream in = m_exchange.getRequestBody();
+		return new ServletInputStream() {
+			public int read() throws IOException { return in.read(); }
+			public int read(byte[] b, int off, int len) throws IOException { return in.read(b, off, len); }
+		};
+	}
+	public BufferedReader getReader() throws UnsupportedEncodingException
+	{
+		return new BufferedReader(new InputStreamReader(m_exchange.getRequestBody(),
+				(m_encoding != null) ? m_encoding : "ISO-8859-1"));
+	}
+	public Collection getParts() throws ServletException
+	{
+		throw new ServletException("Multipart requests are not supported");
+	}
+	public Part getPart(String name) throws ServletException
+	{
+		throw new ServletException("Multipart requests are not supported");
+	}
+	public Locale getLocale() { return Locale.getDefault(); }
+	public Enumeration getLocales() { return Collections.enumeration(Collections.singletonList(getLocale())); }
+
+	public HttpSession getSession() { return null; }
+	public HttpSession getSession(boolean create) { return null; }
+	public String getRequestedSessionId() { return null; }
+	public boolean isRequestedSessionIdValid() { return false; }
+	public boolean isRequestedSessionIdFromCookie() { return false; }
+	public boolean isRequestedSessionIdFromURL() { return false; }
+	@Deprecated public boolean isRequestedSessionIdFromUrl() { return false; }
+	public RequestDispatcher getRequestDispatcher(String path) { return null; }
+	@Deprecated public String getRealPath(String path) { return m_context.getRealPath(path); }
+	public ServletContext getServletContext() { return m_context; }
+	public DispatcherType getDispatcherType() { return DispatcherType.REQUEST; }
+
+	public boolean isAsyncSupported() { return m_asyncSupported; }
+	public boolean isAsyncStarted() { return m_async != null; }
+	public AsyncContext getAsyncContext()
+	{
+		if (m_async == null)
+			throw new IllegalStateException("The request wasn't started asynchronously");
+		return m_async;
+	}
+	public AsyncContext startAsync() { return startAsync(this, m_response); }
+	public AsyncContext startAsync(ServletRequest request, ServletResponse response)
+	{
+		if (!m_asyncSupported)
+			throw new IllegalStateException("The servlet isn't declared async-supported");
+		if (m_async != null)
+			throw new IllegalStateException("The request was already started asynchronously");
+		m_async = new ExchangeAsyncContext(m_exchange, this, m_response, request, response,
+				m_executor, m_context);
+		return m_async;
+	}
+
+	/**
+	 * @return the context of the request if the servlet started it
+	 * asynchronously, or null
+	 */
+	ExchangeAsyncContext getStartedAsyncContext() { return m_async; }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * An {@link HttpServletResponse} over an exchange of the JDK's HTTP server.
+ * <p>
+ * The body is buffered until the servlet returns, so that the response is
+ * sent with its length and the servlet can still change the status and
+ * headers, as with a container's default buffer; OneBox responses are a
+ * few kilobytes.
+ */
+class ExchangeResponse implements HttpServletResponse
+{
+	private final HttpExchange m_exchange;
+	private final ByteArrayOutputStream m_body = new ByteArrayOutputStream(4096);
+	private int m_status = SC_OK;
+	private String m_encoding = "ISO-8859-1";
+	private PrintWriter m_writer = null;
+	private ServletOutputStream m_out = null;
+	private boolean m_committed = false;
+
+	ExchangeResponse(HttpExchange exchange)
+	{
+		m_exchange = exchange;
+	}
+
+	/**
+	 * Sends the status, headers and body, and ends the exchange.
+	 */
+	void finish() throws IOException
+	{
+		flushBuffer();
+		m_committed = true;
+		int length = m_body.size();
+		boolean head = "HEAD".equals(m_exchange.getRequestMethod());
+		boolean empty = length == 0 || m_status == SC_NO_CONTENT || m_status == SC_NOT_MODIFIED;
+		if (head)
+			m_exchange.getResponseHeaders().set("Content-Length", Integer.toString(length));
+		m_exchange.sendResponseHeaders(m_status, (head || empty) ? -1 : length);
+		OutputStream out = m_exchange.getResponseBody();
+		if (!head && !empty)
+			m_body.writeTo(out);
+		out.close();
+	}
+
+	private Headers headers() { return m_exchange.getResponseHeaders(); }
+
+	public ServletOutputStream getOutputStream()
+	{
+		if (m_writer != null)
+			throw new IllegalStateException("getWriter() has already been called");
+		if (m_out == null) {
+			m_out = new ServletOutputStream() {
+				public void write(int b) { m_body.write(b); }
+				public void write(byte[] b, int off, int len) { m_body.write(b, off, len); }
+			};
+		}
+		return m_out;
+	}
+	public PrintWriter getWriter() throws UnsupportedEncodingException
+	{
+		if (m_out != null)
+			throw new IllegalStateException("getOutputStream() has already been called");
+		if (m_writer == null)
+			m_writer = new PrintWriter(new OutputStreamWriter(m_body, m_encoding));
+		return m_writer;
+	}
+	public void flushBuffer()
+	{
+		if (m_writer != null)
+			m_writer.flush();
+	}
+	public boolean isCommitted() { return m_committed; }
+	public void reset()
+	{
+		resetBuffer();
+		headers().clear();
+		m_status = SC_OK;
+	}
+	public void resetBuffer()
+	{
+		if (m_committed)
+			throw new IllegalStateException("The response has been sent");
+		flushBuffer();
+		m_body.reset();
+	}
+	public int getBufferSize() { return Integer.MAX_VALUE; }
+	public void setBufferSize(int size) { }
+	public void setContentLength(int length) { }
+	public void setContentType(String type)
+	{
+		headers().set("Content-Type", type);
+		int charset = type.toLowerCase().indexOf("charset=");
+		if (charset >= 0 && m_writer == null) {
+			String encoding = type.substring(charset + 8).trim();
+			int end = encoding.indexOf(';');
+			m_encoding = ((end < 0) ? encoding : encoding.substring(0, end)).trim();
+		}
+	}
+	public String getContentType() { return headers().getFirst("Content-Type"); }
+	public String getCharacterEncoding() { return m_encoding; }
+	public void setCharacterEncoding(String encoding)
+	{
+		if (m_writer != null || encoding == null)
+			return;
+		m_encoding = encoding;
+		String type = getContentType();
+		if (type != null) {
+			int params = type.indexOf(';');
+			headers().set("Content-Type", ((params < 0) ? type : type.substring(0, params)) +
+					"; charset=" + encoding);
+		}
+	}
+	public Locale getLocale() { return Locale.getDefault(); }
+	public void setLocale(Locale locale) { }
+
+	public void setHeader(String name, String value) { headers().set(name, value); }
+	public void addHeader(String name, String value) { headers().add(name, value); }
+	public void setIntHeader(String name, int value) { setHeader(name, Integer.toString(value)); }
+	public void addIntHeader(String name, int value) { addHeader(name, Integer.toString(value)); }
+	public void setDateHeader(String name, long date) { setHeader(name, formatDate(date)); }
+	public void addDateHeader(String name, long date) { addHeader(name, formatDate(date)); }
+	public boolean containsHeader(String name) { return headers().containsKey(name); }
+	public String getHeader(String name) { return headers().getFirst(name); }
+	public Collection getHeaders(String name)
+	{
+		List values = headers().get(name);
+		return (values == null) ? Collections.EMPTY_LIST : new ArrayList(values);
+	}
+	public Collection getHeaderNames() { return new ArrayList(headers().keySet()); }
+
+	private static String formatDate(long date)
+	{
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(date));
+	}
+
+	public void addCookie(Cookie cookie)
+	{
+		StringBuffer header = new StringBuffer(cookie.getName()).append('=');
+		if (cookie.getValue() != null)
+			header.append(cookie.getValue());
+		if (cookie.getPath() != null)
+			header.append("; Path=").append(cookie.getPath());
+		if (cookie.getDomain() != null)
+			header.append("; Domain=").append(cookie.getDomain());
+		if (cookie.getMaxAge() >= 0)
+			header.append("; Max-Age=").append(cookie.getMaxAge());
+		if (cookie.getSecure())
+			header.append("; Secure");
+		addHeader("Set-Cookie", header.toString());
+	}
+
+	public int getStatus() { return m_status; }
+	public void setStatus(int status) { m_status = status; }
+	@Deprecated public void setStatus(int status, String message) { m_status = status; }
+	public void sendError(int status) throws IOException { sendError(status, null); }
+	public void sendError(int status, String message) throws IOException
+	{
+		resetBuffer();
+		m_status = status;
+		if (message != null) {
+			setContentType("text/plain; charset=UTF-8");
+			m_body.write(message.getBytes("UTF-8"));
+		}
+	}
+	public void sendRedirect(String location) throws IOException
+	{
+		resetBuffer();
+		m_status = SC_MOVED_TEMPORARILY;
+		setHeader("Location", location);
+	}
+
+	public String encodeURL(String url) { return url; }
+	public String encodeRedirectURL(String url) { return url; }
+	@Deprecated public String encodeUrl(String url) { return url; }
+	@Deprecated public String encodeRedirectUrl(String url) { return url; }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.EventListener;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterRegistration;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.Servlet;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.SessionCookieConfig;
+import javax.servlet.SessionTrackingMode;
+import javax.servlet.descriptor.JspConfigDescriptor;
+
+/**
+ * The {@link ServletContext} of a web application hosted by
+ * {@link StandaloneServer}, logging to standard error.  Servlets, filters
+ * and listeners can't be added at run time, and sessions aren't supported.
+ */
+class StandaloneContext implements ServletContext
+{
+	private final File m_root;
+	private final String m_name;
+	private final Map m_initParameters;
+	private final ClassLoader m_loader;
+	private final ConcurrentHashMap m_attributes = new ConcurrentHashMap();
+
+	/**
+	 * @param root the directory the application's files are served from
+	 * @param name the path the application is served under
+	 * @param initParameters the context-params of <code>web.xml</code>
+	 * @param loader the loader of the application's classes
+	 */
+	StandaloneContext(File root, String name, Map initParameters, ClassLoader loader)
+	{
+		m_root = root;
+		m_name = name;
+		m_initParameters = initParameters;
+		m_loader = loader;
+	}
+
+	public void log(String msg)
+	{
+		SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+		System.err.println(time.format(new Date()) + " " + m_name + ": " + msg);
+	}
+	public void log(String msg, Throwable t)
+	{
+		log(msg);
+		t.printStackTrace();
+	}
+	@Deprecated public void log(Exception e, String msg) { log(msg, e); }
+
+	public String getInitParameter(String name) { return (String)m_initParameters.get(name); }
+	public Enumeration getInitParameterNames() { return Collections.enumeration(m_initParameters.keySet()); }
+	public Object getAttribute(String name) { return m_attributes.get(name); }
+	public Enumeration getAttributeNames() { return Collections.enumeration(m_attributes.keySet()); }
+	public void setAttribute(String name, Object value)
+	{
+		if (value == null)
+			m_attributes.remove(name);
+		else
+			m_attributes.put(name, value);
+	}
+	public void removeAttribute(String name) { m_attributes.remove(name); }
+
+	/**
+	 * @return the file at a path of the application, or null if the path
+	 * leads outside it
+	 */
+	File file(String path)
+	{
+		if (path == null || !path.startsWith("/"))
+			return null;
+		try {
+			File file = new File(m_root, path.substring(1)).getCanonicalFile();
+			String root = m_root.getCanonicalPath();
+			return (file.getPath().equals(root) || file.getPath().startsWith(root + File.separator))
+				? file : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether a file of the application lies in its
+	 * <code>WEB-INF</code> or <code>META-INF</code> directory, whose files
+	 * aren't served
+	 */
+	boolean isPrivate(File file)
+	{
+		try {
+			String path = file.getCanonicalPath();
+			String[] dirs = { "WEB-INF", "META-INF" };
+			for (int i = 0; i < dirs.length; i++)
+			{
+				String dir = new File(m_root, dirs[i]).getCanonicalPath();
+				if (path.equalsIgnoreCase(dir) || path.regionMatches(true, 0, dir + File.separator, 0, dir.length() + 1))
+					return true;
+			}
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	public String getRealPath(String path)
+	{
+		File file = file(path);
+		return (file == null) ? null : file.getPath();
+	}
+	public URL getResource(String path) throws MalformedURLException
+	{
+		File file = file(path);
+		return (file == null || !file.exists()) ? null : file.toURI().toURL();
+	}
+	public InputStream getResourceAsStream(String path)
+	{
+		File file = file(path);
+		try {
+			return (file == null || !file.isFile()) ? null : new FileInputStream(file);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	public Set getResourcePaths(String path)
+	{
+		File dir = file(path);
+		if (dir == null || !dir.isDirectory())
+			return null;
+		String prefix = path.endsWith("/") ? path : path + "/";
+		HashSet paths = new HashSet();
+		File[] files = dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			paths.add(prefix + files[i].getName() + (files[i].isDirectory() ? "/" : ""));
+		return paths;
+	}
+	public String getMimeType(String file)
+	{
+		String lower = file.toLowerCase();
+		if (lower.endsWith(".xml"))
+			return "text/xml";
+		if (lower.endsWith(".css"))
+			return "text/css";
+		if (lower.endsWith(".js"))
+			return "application/javascript";
+		return URLConnection.guessContentTypeFromName(lower);
+	}
+
+	public String getContextPath() { return m_name; }
+	public ClassLoader getClassLoader() { return m_loader; }
+	public ServletContext getContext(String uripath) { return null; }
+	public RequestDispatcher getRequestDispatcher(String path) { return null; }
+	public RequestDispatcher getNamedDispatcher(String name) { return null; }
+	public int getMajorVersion() { return 3; }
+	public int getMinorVersion() { return 0; }
+	public int getEffectiveMajorVersion() { return 3; }
+	public int getEffectiveMinorVersion() { return 0; }
+	public String getServerInfo() { return "OneBox StandaloneServer"; }
+	public String getServletContextName() { return m_name; }
+	@Deprecated public Servlet getServlet(String name) { return null; }
+	@Deprecated public Enumeration getServlets() { return Collections.enumeration(Collections.EMPTY_LIST); }
+	@Deprecated public Enumeration getServletNames() { return Collections.enumeration(Collections.EMPTY_LIST); }
+
+	public boolean setInitParameter(String name, String value)
+	{
+		throw new UnsupportedOperationException("Context-params can't be set at run time");
+	}
+	public ServletRegistration.Dynamic addServlet(String name, String className) { throw notDynamic(); }
+	public ServletRegistration.Dynamic addServlet(String name, Servlet servlet) { throw notDynamic(); }
+	public ServletRegistration.Dynamic addServlet(String name, Class servletClass) { throw notDynamic(); }
+	public Servlet createServlet(Class servletClass) throws ServletException { throw notDynamic(); }
+	public ServletRegistration getServletRegistration(String name) { return null; }
+	public Map getServletRegistrations() { return Collections.EMPTY_MAP; }
+	public FilterRegistration.Dynamic addFilter(String name, String className) { throw notDynamic(); }
+	public FilterRegistration.Dynamic addFilter(String name, Filter filter) { throw notDynamic(); }
+	public FilterRegistration.Dynamic addFilter(String name, Class filterClass) { throw notDynamic(); }
+	public Filter createFilter(Class filterClass) throws ServletException { throw notDynamic(); }
+	public FilterRegistration getFilterRegistration(String name) { return null; }
+	public Map getFilterRegistrations() { return Collections.EMPTY_MAP; }
+	public void addListener(String className) { throw notDynamic(); }
+	public void addListener(EventListener listener) { throw notDynamic(); }
+	public void addListener(Class listenerClass) { throw notDynamic(); }
+	public EventListener createListener(Class listenerClass) throws ServletException { throw notDynamic(); }
+	public void declareRoles(String... roles) { throw notDynamic(); }
+	public SessionCookieConfig getSessionCookieConfig() { return null; }
+	public void setSessionTrackingModes(Set modes) { throw notDynamic(); }
+	public Set getDefaultSessionTrackingModes() { return EnumSet.noneOf(SessionTrackingMode.class); }
+	public Set getEffectiveSessionTrackingModes() { return EnumSet.noneOf(SessionTrackingMode.class); }
+	public JspConfigDescriptor getJspConfigDescriptor() { return null; }
+
+	private static UnsupportedOperationException notDynamic()
+	{
+		return new UnsupportedOperationException("StandaloneServer only runs what web.xml declares");
+	}
+}
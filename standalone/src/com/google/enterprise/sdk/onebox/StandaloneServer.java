@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2006 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.enterprise.sdk.onebox;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Hosts OneBox providers on the JDK's HTTP server, for machines without a
+ * servlet container.
+ * <p>
+ * The context-params, listeners, servlets and servlet mappings of a
+ * <code>web.xml</code> are honored, every servlet being initialized at
+ * startup; servlets that can't be loaded are logged and answer 503.  Other
+ * paths are served from the files of the application.  Filters, sessions
+ * and error pages are not supported, nor are security constraints: an
+ * application declaring any is refused rather than served unprotected.
+ * <p>
+ * Requests are served on virtual threads, or where the Java runtime has
+ * none on a pool of <code>threads</code> platform threads, 64 by default.
+ * Servlets declared <code>async-supported</code> can complete requests
+ * after returning, without holding a thread.  The response body is
+ * buffered and sent with its length.
+ * <p>
+ * Run from the source tree, the server reads <code>web.xml</code>, serves
+ * the files of <code>www</code> and loads the servlets from the class path:
+ * <pre>
+ * java -cp build/standalone:bin:lib/servlet-3.0.jar com.google.enterprise.sdk.onebox.StandaloneServer [port=8080]
+ * </pre>
+ * <code>webxml=</code> and <code>root=</code> name other files.  Given
+ * <code>webapp=</code><i>dir</i> instead, an unpacked web application
+ * archive, it reads <code>WEB-INF/web.xml</code>, serves the directory and
+ * loads the servlets from <code>WEB-INF/classes</code> and
+ * <code>WEB-INF/lib</code>, as a container would.  The application is
+ * served under <code>context=/onebox</code> on <code>host=</code>, every
+ * address by default.
+ */
+public class StandaloneServer implements HttpHandler
+{
+	private final String m_contextPath;
+	private final ClassLoader m_loader;
+	private final StandaloneContext m_context;
+	private final ArrayList m_listeners = new ArrayList();
+	// Servlet name to Servlet, in web.xml order, or to the reason it's
+	// unavailable
+	private final LinkedHashMap m_servlets = new LinkedHashMap();
+	// The names of the servlets declared async-supported
+	private final HashSet m_asyncServlets = new HashSet();
+	// Servlet mappings by kind of url-pattern
+	private final HashMap m_exactMappings = new HashMap();
+	private final ArrayList m_prefixMappings = new ArrayList();
+	private final HashMap m_extensionMappings = new HashMap();
+	private String m_defaultMapping = null;
+	private HttpServer m_server;
+	private ExecutorService m_executor;
+
+	/**
+	 * Reads the <code>web.xml</code> of an unpacked web application archive,
+	 * whose classes are loaded from <code>WEB-INF/classes</code> and
+	 * <code>WEB-INF/lib</code> apart from the server's own.
+	 *
+	 * @param contextPath the path the application is served under, such as
+	 * <code>/onebox</code>
+	 */
+	public StandaloneServer(File webApp, String contextPath) throws IOException
+	{
+		this(new File(webApp, "WEB-INF/web.xml"), webApp, contextPath, webAppClassLoader(webApp));
+	}
+
+	/**
+	 * Reads a <code>web.xml</code>.
+	 *
+	 * @param root the directory of the files served, and of the real paths
+	 * of the application
+	 * @param contextPath the path the application is served under, such as
+	 * <code>/onebox</code>
+	 * @param loader the loader of the application's classes
+	 */
+	public StandaloneServer(File webXml, File root, String contextPath, ClassLoader loader)
+		throws IOException
+	{
+		m_contextPath = contextPath;
+		m_loader = loader;
+		Element webApp = parse(webXml);
+		if (!children(webApp, "security-constraint").isEmpty())
+			throw new IOException(webXml + " declares security constraints, which can't be enforced");
+		LinkedHashMap contextParams = new LinkedHashMap();
+		params(webApp, "context-param", contextParams);
+		m_context = new StandaloneContext(root, contextPath, contextParams, loader);
+		readServlets(webApp);
+	}
+
+	/**
+	 * @return a loader of the classes of <code>WEB-INF</code> that shares
+	 * only the Java runtime and the servlet API with the server, so that the
+	 * application uses the SDK classes it was built with
+	 */
+	private static ClassLoader webAppClassLoader(File webApp) throws IOException
+	{
+		ArrayList urls = new ArrayList();
+		urls.add(new File(webApp, "WEB-INF/classes/").toURI().toURL());
+		File[] libs = new File(webApp, "WEB-INF/lib").listFiles();
+		for (int i = 0; libs != null && i < libs.length; i++)
+		{
+			String name = libs[i].getName().toLowerCase();
+			if (name.endsWith(".jar") || name.endsWith(".zip"))
+				urls.add(libs[i].toURI().toURL());
+		}
+		final ClassLoader servletAPI = Servlet.class.getClassLoader();
+		ClassLoader parent = new ClassLoader(ClassLoader.getSystemClassLoader().getParent()) {
+			protected Class loadClass(String name, boolean resolve) throws ClassNotFoundException
+			{
+				if (name.startsWith("javax.servlet."))
+					return servletAPI.loadClass(name);
+				return super.loadClass(name, resolve);
+			}
+		};
+		return new URLClassLoader((URL[])urls.toArray(new URL[urls.size()]), parent);
+	}
+
+	private static Element parse(File webXml) throws IOException
+	{
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setValidating(false);
+			try {
+				// The DTD of older descriptors is neither needed nor reachable
+				factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+			} catch (Exception e) {
+				// Another parser, which may fetch it
+			}
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			return builder.parse(webXml).getDocumentElement();
+		} catch (Exception e) {
+			throw new IOException(webXml + " can't be read: " + e);
+		}
+	}
+
+	private static List children(Element parent, String name)
+	{
+		ArrayList children = new ArrayList();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling())
+		{
+			if (node instanceof Element && name.equals(((Element)node).getTagName()))
+				children.add(node);
+		}
+		return children;
+	}
+
+	private static String text(Element parent, String name)
+	{
+		List children = children(parent, name);
+		return children.isEmpty() ? null : ((Element)children.get(0)).getTextContent().trim();
+	}
+
+	private static void params(Element parent, String name, Map params)
+	{
+		for (Iterator iter = children(parent, name).iterator(); iter.hasNext(); )
+		{
+			Element param = (Element)iter.next();
+			params.put(text(param, "param-name"), text(param, "param-value"));
+		}
+	}
+
+	private void readServlets(Element webApp)
+	{
+		for (Iterator iter = children(webApp, "listener").iterator(); iter.hasNext(); )
+			m_listeners.add(text((Element)iter.next(), "listener-class"));
+		for (Iterator iter = children(webApp, "servlet").iterator(); iter.hasNext(); )
+		{
+			Element servlet = (Element)iter.next();
+			m_servlets.put(text(servlet, "servlet-name"), servlet);
+			if ("true".equalsIgnoreCase(text(servlet, "async-supported")))
+				m_asyncServlets.add(text(servlet, "servlet-name"));
+		}
+		for (Iterator iter = children(webApp, "servlet-mapping").iterator(); iter.hasNext(); )
+		{
+			Element mapping = (Element)iter.next();
+			String name = text(mapping, "servlet-name");
+			for (Iterator patterns = children(mapping, "url-pattern").iterator(); patterns.hasNext(); )
+			{
+				String pattern = ((Element)patterns.next()).getTextContent().trim();
+				if (pattern.equals("/"))
+					m_defaultMapping = name;
+				else if (pattern.startsWith("*."))
+					m_extensionMappings.put(pattern.substring(1), name);
+				else if (pattern.endsWith("/*"))
+					m_prefixMappings.add(new String[] { pattern.substring(0, pattern.length() - 2), name });
+				else
+					m_exactMappings.put(pattern, name);
+			}
+		}
+		// Longest prefixes first
+		Collections.sort(m_prefixMappings, new Comparator() {
+			public int compare(Object o1, Object o2)
+			{
+				return ((String[])o2)[0].length() - ((String[])o1)[0].length();
+			}
+		});
+	}
+
+	/**
+	 * Starts the listeners and servlets, then serves requests on virtual
+	 * threads, or on a pool of platform threads if the Java runtime has none.
+	 *
+	 * @param address the address to listen on, port 0 for any free one
+	 * @param threads the number of platform threads serving requests, or 0
+	 * to use virtual threads where available
+	 */
+	public void start(InetSocketAddress address, int threads) throws IOException
+	{
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(m_loader);
+		try {
+			for (int i = 0; i < m_listeners.size(); i++)
+			{
+				String className = (String)m_listeners.get(i);
+				try {
+					Object listener = m_loader.loadClass(className)
+						.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+					if (listener instanceof ServletContextListener)
+						((ServletContextListener)listener).contextInitialized(new ServletContextEvent(m_context));
+					m_listeners.set(i, listener);
+				} catch (Exception e) {
+					throw new IOException("Listener " + className + " failed to start: " + e);
+				}
+			}
+			for (Iterator iter = m_servlets.entrySet().iterator(); iter.hasNext(); )
+			{
+				Map.Entry entry = (Map.Entry)iter.next();
+				Element servlet = (Element)entry.getValue();
+				String name = (String)entry.getKey();
+				String className = text(servlet, "servlet-class");
+				LinkedHashMap initParams = new LinkedHashMap();
+				params(servlet, "init-param", initParams);
+				try {
+					Servlet instance = (Servlet)m_loader.loadClass(className)
+						.getDeclaredConstructor(new Class[0]).newInstance(new Object[0]);
+					instance.init(new Config(name, initParams, m_context));
+					entry.setValue(instance);
+				} catch (Throwable t) {
+					m_context.log("Servlet " + name + " is unavailable: " + t);
+					entry.setValue(t.toString());
+				}
+			}
+		} finally {
+			thread.setContextClassLoader(previous);
+		}
+
+		if (threads <= 0) {
+			m_executor = OneBoxProvider.newVirtualThreadExecutor();
+			threads = 64;
+		}
+		if (m_executor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			m_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "StandaloneServer-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		m_server = HttpServer.create(address, 0);
+		m_server.createContext(m_contextPath.length() == 0 ? "/" : m_contextPath, this);
+		m_server.setExecutor(m_executor);
+		m_server.start();
+	}
+
+	/**
+	 * @return the port requests are served on
+	 */
+	public int getPort() { return m_server.getAddress().getPort(); }
+
+	/**
+	 * @return the URL of the application on the loopback interface, ending
+	 * in a slash
+	 */
+	public String getURL()
+	{
+		return "http://127.0.0.1:" + getPort() + m_contextPath + "/";
+	}
+
+	/**
+	 * Stops serving, then destroys the servlets and listeners.
+	 */
+	public void stop()
+	{
+		if (m_server != null) {
+			m_server.stop(1);
+			m_executor.shutdown();
+			try {
+				m_executor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(m_loader);
+		try {
+			ArrayList servlets = new ArrayList(m_servlets.values());
+			for (int i = servlets.size() - 1; i >= 0; i--)
+			{
+				if (servlets.get(i) instanceof Servlet)
+					((Servlet)servlets.get(i)).destroy();
+			}
+			for (int i = m_listeners.size() - 1; i >= 0; i--)
+			{
+				if (m_listeners.get(i) instanceof ServletContextListener)
+					((ServletContextListener)m_listeners.get(i)).contextDestroyed(new ServletContextEvent(m_context));
+			}
+		} finally {
+			thread.setContextClassLoader(previous);
+		}
+		if (m_loader instanceof URLClassLoader) {
+			try {
+				((URLClassLoader)m_loader).close();
+			} catch (IOException e) {
+				// Only the files remain open
+			}
+		}
+	}
+
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		Thread thread = Thread.currentThread();
+		ClassLoader previous = thread.getContextClassLoader();
+		thread.setContextClassLoader(m_loader);
+		ExchangeResponse response = new ExchangeResponse(exchange);
+		ExchangeRequest request = null;
+		try {
+			String path = exchange.getRequestURI().getPath().substring(m_contextPath.length());
+			if (path.length() == 0 && m_contextPath.length() > 0) {
+				response.sendRedirect(m_contextPath + "/");
+				response.finish();
+				return;
+			}
+			if (!path.startsWith("/") || !isNormalized(path)) {
+				// Another context starting with the same characters, or a
+				// path that could reach a file other than the one it names
+				response.sendError(ExchangeResponse.SC_NOT_FOUND);
+				response.finish();
+				return;
+			}
+			String[] mapping = map(path);
+			if (mapping == null) {
+				serveFile(path, exchange, response);
+			} else {
+				Object servlet = m_servlets.get(mapping[0]);
+				if (servlet instanceof Servlet) {
+					request = new ExchangeRequest(exchange, m_context, m_contextPath,
+							mapping[1], mapping[2], response, m_asyncServlets.contains(mapping[0]), m_executor);
+					((Servlet)servlet).service(request, response);
+				} else {
+					response.sendError(ExchangeResponse.SC_SERVICE_UNAVAILABLE);
+				}
+			}
+			if (request == null || !request.isAsyncStarted())
+				response.finish();
+		} catch (Throwable t) {
+			m_context.log("Request " + exchange.getRequestURI() + " failed", t);
+			if (request != null && request.isAsyncStarted()) {
+				// Answered now, whatever the servlet does with the request later
+				if (!response.isCommitted())
+					response.sendError(ExchangeResponse.SC_INTERNAL_SERVER_ERROR);
+				request.getAsyncContext().complete();
+			} else if (!response.isCommitted()) {
+				response.sendError(ExchangeResponse.SC_INTERNAL_SERVER_ERROR);
+				response.finish();
+			}
+		} finally {
+			// A request started asynchronously ends once completed
+			if (request != null && request.isAsyncStarted())
+				request.getStartedAsyncContext().returned();
+			else
+				exchange.close();
+			thread.setContextClassLoader(previous);
+		}
+	}
+
+	/**
+	 * @return the servlet name, servlet path and path info a path maps to,
+	 * or null if no servlet is mapped
+	 */
+	private String[] map(String path)
+	{
+		String name = (String)m_exactMappings.get(path);
+		if (name != null)
+			return new String[] { name, path, null };
+		for (int i = 0; i < m_prefixMappings.size(); i++)
+		{
+			String[] prefix = (String[])m_prefixMappings.get(i);
+			if (path.equals(prefix[0]) || path.startsWith(prefix[0] + "/"))
+				return new String[] { prefix[1], prefix[0],
+					(path.length() > prefix[0].length()) ? path.substring(prefix[0].length()) : null };
+		}
+		int dot = path.lastIndexOf('.');
+		if (dot > path.lastIndexOf('/')) {
+			name = (String)m_extensionMappings.get(path.substring(dot));
+			if (name != null)
+				return new String[] { name, path, null };
+		}
+		if (m_defaultMapping != null)
+			return new String[] { m_defaultMapping, path, null };
+		return null;
+	}
+
+	/**
+	 * @return whether a decoded path has no empty, <code>.</code> or
+	 * <code>..</code> segment and no backslash, so that servlets are mapped
+	 * and files found by the path as given
+	 */
+	private static boolean isNormalized(String path)
+	{
+		if (path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0)
+			return false;
+		int start = 1;
+		while (start <= path.length())
+		{
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			String segment = path.substring(start, end);
+			if ((segment.length() == 0 && end < path.length()) ||
+					segment.equals(".") || segment.equals(".."))
+				return false;
+			start = end + 1;
+		}
+		return true;
+	}
+
+	private void serveFile(String path, HttpExchange exchange, ExchangeResponse response)
+		throws IOException
+	{
+		File file = m_context.file(path);
+		if (file == null || m_context.isPrivate(file) || !file.isFile()) {
+			response.sendError(ExchangeResponse.SC_NOT_FOUND);
+			return;
+		}
+		String method = exchange.getRequestMethod();
+		if (!method.equals("GET") && !method.equals("HEAD")) {
+			response.sendError(ExchangeResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		String type = m_context.getMimeType(file.getName());
+		if (type != null)
+			response.setContentType(type);
+		InputStream in = new FileInputStream(file);
+		try {
+			copy(in, response.getOutputStream());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		long started = System.nanoTime();
+		HashMap options = new HashMap();
+		options.put("port", "8080");
+		options.put("host", "");
+		options.put("context", "/onebox");
+		options.put("webapp", "");
+		options.put("webxml", "");
+		options.put("root", "");
+		options.put("threads", "0");
+		for (int i = 0; i < args.length; i++)
+		{
+			int eq = args[i].indexOf('=');
+			if (eq < 0 || !options.containsKey(args[i].substring(0, eq))) {
+				System.err.println("Usage: StandaloneServer [port=8080] [host=address] [context=/onebox] " +
+						"[webapp=dir | webxml=web.xml root=www] [threads=n]");
+				System.exit(2);
+			}
+			options.put(args[i].substring(0, eq), args[i].substring(eq + 1).trim());
+		}
+
+		String webApp = (String)options.get("webapp");
+		String webXml = (String)options.get("webxml");
+		String root = (String)options.get("root");
+		String contextPath = (String)options.get("context");
+		if (contextPath.equals("/"))
+			contextPath = "";
+		StandaloneServer server;
+		if (webApp.length() > 0) {
+			server = new StandaloneServer(new File(webApp), contextPath);
+		} else {
+			server = new StandaloneServer(
+					new File(webXml.length() > 0 ? webXml : "web.xml"),
+					new File(root.length() > 0 ? root : "www"),
+					contextPath, StandaloneServer.class.getClassLoader());
+		}
+		String host = (String)options.get("host");
+		int port = Integer.parseInt((String)options.get("port"));
+		server.start(host.length() > 0 ? new InetSocketAddress(host, port) : new InetSocketAddress(port),
+				Integer.parseInt((String)options.get("threads")));
+		server.m_context.log("Serving on port " + server.getPort() + " under " +
+				(contextPath.length() > 0 ? contextPath : "/") + ", started in " +
+				(System.nanoTime() - started) / 1000000 + " ms");
+	}
+
+	private static class Config implements ServletConfig
+	{
+		private final String m_name;
+		private final Map m_initParameters;
+		private final ServletContext m_context;
+
+		Config(String name, Map initParameters, ServletContext context)
+		{
+			m_name = name;
+			m_initParameters = initParameters;
+			m_context = context;
+		}
+
+		public String getServletName() { return m_name; }
+		public ServletContext getServletContext() { return m_context; }
+		public String getInitParameter(String name) { return (String)m_initParameters.get(name); }
+		public Enumeration getInitParameterNames() { return Collections.enumeration(m_initParameters.keySet()); }
+	}
+}